@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -13,8 +15,11 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.SecondaryIndex;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
 import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
@@ -489,7 +494,96 @@ public class Parser {
         return curtrans;
     }
 
+    // CREATE INDEX is not part of the SQL Zql parses
+    private static final Pattern CREATE_INDEX = Pattern.compile(
+            "\\s*create\\s+index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\)"
+            + "(?:\\s*include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Build a secondary index over one or more fields of a HeapFile table, in
+     * a transaction of its own, and save it in the catalog file. The index is
+     * stored next to the table, in a file named after the index.
+     *
+     * @param fieldNames the names of the fields to key the index on, separated by commas
+     */
+    public void handleCreateIndexStatement(String name, String tableName, String fieldNames)
+            throws IOException, simpledb.ParsingException {
+        handleCreateIndexStatement(name, tableName, fieldNames, null);
+    }
+
+    /**
+     * Build a secondary index which includes the values of other fields in its
+     * entries, see {@link #handleCreateIndexStatement(String, String, String)}.
+     *
+     * @param includeNames the names of the fields to include, separated by
+     *     commas, or null if there are none
+     */
+    public void handleCreateIndexStatement(String name, String tableName, String fieldNames, String includeNames)
+            throws IOException, simpledb.ParsingException {
+        if (inUserTrans)
+            throw new simpledb.ParsingException(
+                    "CREATE INDEX can't run inside a transaction.");
+        if (Database.getCatalog().getIndex(name) != null)
+            throw new simpledb.ParsingException("Index " + name + " already exists");
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table : " + tableName);
+        }
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        if (!(table instanceof HeapFile))
+            throw new simpledb.ParsingException("Table " + tableName
+                    + " is not a heap file and cannot have secondary indexes");
+        int[] fields = fieldIndexes(table.getTupleDesc(), fieldNames);
+        int[] includes = includeNames == null ? new int[0] : fieldIndexes(table.getTupleDesc(), includeNames);
+        File f = new File(((HeapFile) table).getFile().getAbsoluteFile().getParentFile(), name + ".idx");
+
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            SecondaryIndex.create(t.getId(), name, tableid, fields, includes, f);
+            t.commit();
+        } catch (Exception e) {
+            t.abort();
+            SecondaryIndex index = Database.getCatalog().getIndex(name);
+            if (index != null)
+                Database.getCatalog().removeIndex(index);
+            throw new simpledb.ParsingException(e);
+        }
+        Database.getCatalog().saveIndex(Database.getCatalog().getIndex(name));
+        TableStats.computeStatistics(tableid);
+        System.out.println("Created index " + name + " on " + tableName + " (" + fieldNames + ")"
+                + (includeNames == null ? "" : " include (" + includeNames + ")"));
+    }
+
+    // the indexes of the fields with the specified names, separated by commas
+    private static int[] fieldIndexes(TupleDesc td, String fieldNames) throws simpledb.ParsingException {
+        String[] names = fieldNames.split(",");
+        int[] fields = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            try {
+                fields[i] = td.fieldNameToIndex(names[i].trim());
+            } catch (NoSuchElementException e) {
+                throw new simpledb.ParsingException("Unknown field " + names[i].trim());
+            }
+        }
+        return fields;
+    }
+
     public void processNextStatement(String s) {
+        Matcher m = CREATE_INDEX.matcher(s);
+        if (m.matches()) {
+            try {
+                handleCreateIndexStatement(m.group(1), m.group(2), m.group(3), m.group(4));
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (simpledb.ParsingException e) {
+                System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+            }
+            return;
+        }
         processNextStatement(new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)));
     }
 
@@ -567,7 +661,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "create index", "on" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -660,7 +754,6 @@ public class Parser {
                     buffer.append(line, 0, split + 1);
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-                    byte[] statementBytes = cmd.getBytes(StandardCharsets.UTF_8);
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
                         shutdown();
@@ -669,8 +762,7 @@ public class Parser {
                     }
 
                     long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
+                    processNextStatement(cmd);
                     long time = System.currentTimeMillis() - startTime;
                     System.out.printf("----------------\n%.2f seconds\n\n",
                             ((double) time / 1000.0));
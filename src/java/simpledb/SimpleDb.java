@@ -1,12 +1,28 @@
 package simpledb;
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SimpleDb {
     public static void main (String[] args)
@@ -95,6 +111,44 @@ public class SimpleDb {
                     e.printStackTrace();
                 }
 
+                break;
+            case "lockstats":
+                if (args.length < 3 || args.length > 6) {
+                    System.err.println("Usage: lockstats <catalog file> <table> [threads] [transactions per thread] [top pages]");
+                    return;
+                }
+                int threads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+                int transactions = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+                int top = args.length > 5 ? Integer.parseInt(args[5]) : 5;
+                try {
+                    runLockStats(args[1], args[2], threads, transactions, top);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                break;
+            case "logstats":
+                if (args.length < 2 || args.length > 3) {
+                    System.err.println("Usage: logstats <log file> [top transactions]");
+                    return;
+                }
+                try {
+                    LogStats stats = LogStats.scan(new File(args[1]));
+                    System.out.print(stats.report(args.length > 2 ? Integer.parseInt(args[2]) : 5));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                break;
+            case "logreplay":
+                if (args.length < 3 || args.length > 4) {
+                    System.err.println("Usage: logreplay <log file> <catalog file> [redo threads]");
+                    return;
+                }
+                try {
+                    runLogReplay(new File(args[1]), args[2],
+                            args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
                 break;
             default:
                 System.err.println("Unknown command: " + args[0]);
@@ -102,4 +156,228 @@ public class SimpleDb {
         }
     }
 
+    /**
+     * Recover copies of a log and of the tables of a catalog and of their
+     * indexes, as after a crash at the end of the log, and print how long
+     * recovery took. The copies keep the table ids of the originals, which
+     * the log refers to, and are deleted afterwards; the originals are not
+     * modified.
+     */
+    private static void runLogReplay(File log, String catalogFile, int redoThreads) throws IOException {
+        Database.getCatalog().loadSchema(catalogFile);
+        File dir = Files.createTempDirectory("logreplay").toFile();
+        try {
+            File copyLog = new File(dir, log.getName());
+            copy(log, copyLog);
+            String prefix = log.getName() + ".";
+            File[] segments = log.getAbsoluteFile().getParentFile().listFiles(
+                    (d, name) -> name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+"));
+            for (File segment : segments) {
+                copy(segment, new File(dir, segment.getName()));
+            }
+
+            List<DbFile> tables = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<DbFile> indexes = new ArrayList<>();
+            Iterator<Integer> ids = Database.getCatalog().tableIdIterator();
+            while (ids.hasNext()) {
+                int id = ids.next();
+                tables.add(copy(Database.getCatalog().getDatabaseFile(id), dir));
+                names.add(Database.getCatalog().getTableName(id));
+                for (SecondaryIndex index : Database.getCatalog().getIndexes(id)) {
+                    indexes.add(copy(index.getFile(), dir));
+                }
+            }
+            Database.getCatalog().clear();
+            for (int i = 0; i < tables.size(); i++) {
+                Database.getCatalog().addTable(tables.get(i), names.get(i));
+            }
+            // recovery only reads and writes the pages of the B+ trees of the
+            // indexes, so they are added as tables of their own
+            for (DbFile index : indexes) {
+                Database.getCatalog().addTable(index);
+            }
+
+            LogFile replay = new LogFile(copyLog);
+            replay.setRedoThreads(redoThreads);
+            long start = System.nanoTime();
+            replay.recover();
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            replay.shutdown();
+            System.out.println("recovered " + tables.size() + " tables and " + indexes.size() + " indexes from "
+                    + log + " in " + elapsed
+                    + " ms with " + redoThreads + " redo threads");
+        } finally {
+            File[] left = dir.listFiles();
+            if (left != null) {
+                for (File f : left) {
+                    f.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Copy a table or a B+ tree into the specified directory. The copy keeps
+     * the id of the original, which the pages it reads and writes have; the
+     * B+ tree operations of a copied BTreeFile must not be used.
+     */
+    private static DbFile copy(DbFile original, File dir) throws IOException {
+        final int id = original.getId();
+        if (original instanceof HeapFile) {
+            HeapFile hf = (HeapFile) original;
+            return new HeapFile(copy(hf.getFile(), new File(dir, hf.getFile().getName())), hf.getTupleDesc()) {
+                @Override
+                public int getId() {
+                    return id;
+                }
+            };
+        }
+        if (original instanceof BTreeFile) {
+            BTreeFile bf = (BTreeFile) original;
+            return new BTreeFile(copy(bf.getFile(), new File(dir, bf.getFile().getName())), bf.keyFields(),
+                    bf.getTupleDesc()) {
+                @Override
+                public int getId() {
+                    return id;
+                }
+            };
+        }
+        throw new IllegalArgumentException("cannot copy " + original.getClass().getSimpleName() + " " + id);
+    }
+
+    private static File copy(File from, File to) throws IOException {
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return to;
+    }
+
+    /**
+     * Run concurrent transactions against a heap table of a catalog, then
+     * print the lock contention statistics collected while they ran and the
+     * causes of the aborts. Each thread alternates between a transaction that
+     * reads a tuple of a random page of the table, and one that moves that
+     * tuple: it inserts a copy and deletes the original, so the table keeps
+     * the tuples it had. Aborted transactions are retried; transactions that
+     * fail with an error are rolled back and counted, but not retried.
+     */
+    private static void runLockStats(String catalogFile, String tableName, int threads,
+            final int transactions, int top) throws InterruptedException {
+        Database.getCatalog().loadSchema(catalogFile);
+        DbFile file = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(tableName));
+        if (!(file instanceof HeapFile)) {
+            System.err.println("lockstats needs a heap table, " + tableName + " is not one");
+            return;
+        }
+        final HeapFile table = (HeapFile) file;
+        Database.getBufferPool().getLockStats().reset();
+
+        final AtomicLong aborts = new AtomicLong();
+        final AtomicLong stale = new AtomicLong();
+        final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+        List<Thread> workers = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                Tuple read = null;
+                for (int j = 0; j < transactions; j++) {
+                    while (true) {
+                        Transaction tx = new Transaction();
+                        tx.start();
+                        try {
+                            if (read == null) {
+                                read = readTuple(tx.getId(), table);
+                                tx.commit();
+                            } else if (moveTuple(tx.getId(), table, read)) {
+                                read = null;
+                                tx.commit();
+                            } else {
+                                read = null;
+                                stale.incrementAndGet();
+                                abort(tx);
+                            }
+                            break;
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                            abort(tx);
+                        } catch (DbException | IOException | RuntimeException e) {
+                            errors.computeIfAbsent(e.getClass().getSimpleName() + ": " + e.getMessage(),
+                                    k -> new AtomicLong()).incrementAndGet();
+                            read = null;
+                            abort(tx);
+                            break;
+                        }
+                    }
+                }
+            });
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        // every lock timeout aborts the transaction that made it; the other
+        // aborts gave up on a B+ tree latch of an index of the table
+        long timeouts = Database.getBufferPool().getLockStats().getTimeouts();
+        long failed = 0;
+        for (AtomicLong count : errors.values()) {
+            failed += count.get();
+        }
+        System.out.println(threads * transactions + " transactions on " + tableName + " by " + threads
+                + " threads in " + elapsed + " ms, " + (aborts.get() + stale.get() + failed) + " aborted: "
+                + timeouts + " lock timeouts, " + (aborts.get() - timeouts) + " other aborts, "
+                + stale.get() + " moves of tuples moved by another transaction, " + failed + " errors");
+        for (Map.Entry<String, AtomicLong> e : new TreeMap<>(errors).entrySet()) {
+            System.out.println("  " + e.getValue().get() + " x " + e.getKey());
+        }
+        System.out.print(Database.getBufferPool().getLockStats().report(top));
+    }
+
+    /**
+     * Read a random page of a heap table, and return one of its tuples, or
+     * null if it has none.
+     */
+    private static Tuple readTuple(TransactionId tid, HeapFile table)
+            throws DbException, TransactionAbortedException {
+        Random r = ThreadLocalRandom.current();
+        HeapPageId pid = new HeapPageId(table.getId(), r.nextInt(table.numPages()));
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        List<Tuple> tuples = new ArrayList<>();
+        page.iterator().forEachRemaining(tuples::add);
+        return tuples.isEmpty() ? null : tuples.get(r.nextInt(tuples.size()));
+    }
+
+    /**
+     * Insert a copy of a tuple read by an earlier transaction, then delete the
+     * tuple. The insert locks the pages of the table in order from the first,
+     * so the page of the tuple is locked last: moves do not deadlock.
+     *
+     * @return false if the tuple is no longer where it was read
+     */
+    private static boolean moveTuple(TransactionId tid, HeapFile table, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple copy = new Tuple(t.getTupleDesc());
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            copy.setField(i, t.getField(i));
+        }
+        Database.getBufferPool().insertTuple(tid, table.getId(), copy);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(),
+                Permissions.READ_WRITE);
+        Tuple current = page.getTuple(t.getRecordId().getTupleNumber());
+        if (current == null || !current.toString().equals(t.toString())) {
+            return false;
+        }
+        Database.getBufferPool().deleteTuple(tid, current);
+        return true;
+    }
+
+    private static void abort(Transaction tx) {
+        try {
+            tx.abort();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
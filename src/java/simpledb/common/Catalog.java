@@ -1,5 +1,6 @@
 package simpledb.common;
 
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -7,8 +8,14 @@ import simpledb.storage.TupleDesc;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -16,6 +23,10 @@ import java.util.*;
  * For now, this is a stub catalog that must be populated with tables by a
  * user program before it can be used -- eventually, this should be converted
  * to a catalog that reads a catalog table from disk.
+ * <p>
+ * The catalog also keeps track of the secondary indexes of the tables. The
+ * BTreeFile of an index can be read through {@link #getDatabaseFile} like a
+ * table, but is not listed by {@link #tableIdIterator}.
  * 
  * @Threadsafe
  */
@@ -49,6 +60,21 @@ public class Catalog {
 
     private final Map<Integer, TableInfo> id2info;
 
+    /** the indexes of every table; read by the BufferPool on every update */
+    private final Map<Integer, List<SecondaryIndex>> indexes = new ConcurrentHashMap<>();
+
+    /** the BTreeFiles of the indexes, by id */
+    private final Map<Integer, SecondaryIndex> indexFiles = new ConcurrentHashMap<>();
+
+    /** the catalog file loaded by {@link #loadSchema}, where new indexes are saved */
+    private volatile File catalogFile = null;
+
+    /** format of the definition of an index in a catalog file, on one or more fields,
+     *  optionally including others */
+    private static final Pattern INDEX_LINE = Pattern.compile(
+            "\\s*index\\s+(\\w+)\\s+on\\s+(\\w+)\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\)"
+            + "(?:\\s*include\\s*\\(\\s*(\\w+(?:\\s*,\\s*\\w+)*)\\s*\\))?\\s*");
+
     /**
      * Constructor.
      * Creates a new, empty catalog.
@@ -102,13 +128,16 @@ public class Catalog {
     }
 
     /**
-     * Returns the tuple descriptor (schema) of the specified table
+     * Returns the tuple descriptor (schema) of the specified table, or of the
+     * entries of the specified secondary index file
      * @param tableid The id of the table, as specified by the DbFile.getId()
      *     function passed to addTable
      * @throws NoSuchElementException if the table doesn't exist
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
+        SecondaryIndex index = this.indexFiles.get(tableid);
+        if(index != null) return index.getFile().getTupleDesc();
         if(!this.id2info.containsKey(tableid)) throw new NoSuchElementException();
         return this.id2info.get(tableid).getFile().getTupleDesc();
     }
@@ -121,10 +150,77 @@ public class Catalog {
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
+        SecondaryIndex index = this.indexFiles.get(tableid);
+        if(index != null) return index.getFile();
         if(!this.id2info.containsKey(tableid)) throw new NoSuchElementException();
         return this.id2info.get(tableid).getFile();
     }
 
+    /**
+     * Add a secondary index to the catalog. From then on the BufferPool
+     * updates it whenever a tuple is inserted into or deleted from its table.
+     * @param index the index to add
+     */
+    public void addIndex(SecondaryIndex index) {
+        if(getIndex(index.getName()) != null)
+            throw new IllegalArgumentException("index " + index.getName() + " already exists");
+        this.indexFiles.put(index.getFile().getId(), index);
+        this.indexes.computeIfAbsent(index.getTableId(), id -> new CopyOnWriteArrayList<>()).add(index);
+    }
+
+    /**
+     * Remove a secondary index from the catalog, for instance when building
+     * it failed. Its file is left on disk.
+     * @param index the index to remove
+     */
+    public void removeIndex(SecondaryIndex index) {
+        this.indexFiles.remove(index.getFile().getId());
+        List<SecondaryIndex> l = this.indexes.get(index.getTableId());
+        if(l != null) l.remove(index);
+    }
+
+    /**
+     * @return the secondary indexes of the specified table, in the order they
+     *     were added; empty if it has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> l = this.indexes.get(tableid);
+        return l == null ? Collections.emptyList() : l;
+    }
+
+    /**
+     * @return the secondary index with the specified name, or null if there is none
+     */
+    public SecondaryIndex getIndex(String name) {
+        for(SecondaryIndex index : this.indexFiles.values()) {
+            if(index.getName().equals(name)) return index;
+        }
+        return null;
+    }
+
+    /**
+     * Append the definition of an index to the catalog file loaded by
+     * {@link #loadSchema}, so the index is opened again the next time the
+     * catalog is loaded. Does nothing if no catalog file was loaded.
+     * @param index the index to save; its file must be named after the index,
+     *     next to the catalog file
+     */
+    public void saveIndex(SecondaryIndex index) throws IOException {
+        File f = this.catalogFile;
+        if(f == null) return;
+        try (PrintWriter w = new PrintWriter(new FileWriter(f, true))) {
+            TupleDesc td = getTupleDesc(index.getTableId());
+            StringJoiner fields = new StringJoiner(", ");
+            for (int field : index.getFields())
+                fields.add(td.getFieldName(field));
+            StringJoiner includes = new StringJoiner(", ", " include (", ")").setEmptyValue("");
+            for (int field : index.getIncludes())
+                includes.add(td.getFieldName(field));
+            w.println("index " + index.getName() + " on " + getTableName(index.getTableId())
+                    + " (" + fields + ")" + includes);
+        }
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
         if(!this.id2info.containsKey(tableid)) throw new NoSuchElementException();
@@ -148,8 +244,19 @@ public class Catalog {
         // some code goes here
         this.name2id.clear();
         this.id2info.clear();
+        this.indexes.clear();
+        this.indexFiles.clear();
     }
     
+    // the indexes of the fields of a table with the specified names, separated by commas
+    private int[] fieldIndexes(int tableid, String names) {
+        String[] els = names.split(",");
+        int[] fields = new int[els.length];
+        for (int i = 0; i < els.length; i++)
+            fields[i] = getTupleDesc(tableid).fieldNameToIndex(els[i].trim());
+        return fields;
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
      * @param catalogFile The name of the catalogFile on disk to be loaded.
@@ -159,8 +266,22 @@ public class Catalog {
         String baseFolder=new File(new File(catalogFile).getAbsolutePath()).getParent();
         try {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
+            this.catalogFile = new File(catalogFile);
             
             while ((line = br.readLine()) != null) {
+                Matcher index = INDEX_LINE.matcher(line);
+                if (index.matches()) {
+                    //index name on table (field, field, ...) [include (field, ...)], stored in name.idx
+                    int tableid = getTableId(index.group(2));
+                    int[] fields = fieldIndexes(tableid, index.group(3));
+                    int[] includes = index.group(4) == null ? new int[0] : fieldIndexes(tableid, index.group(4));
+                    addIndex(new SecondaryIndex(index.group(1), tableid, fields, includes,
+                            new File(baseFolder + "/" + index.group(1) + ".idx")));
+                    System.out.println("Added index : " + index.group(1) + " on " + index.group(2)
+                            + " (" + index.group(3) + ")"
+                            + (index.group(4) == null ? "" : " include (" + index.group(4) + ")"));
+                    continue;
+                }
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
@@ -202,7 +323,7 @@ public class Catalog {
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NoSuchElementException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
@@ -0,0 +1,409 @@
+package simpledb.index;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.OpIterator;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds the pages of a B+ tree bottom-up from tuples given
+ * in any order. The tuples are first sorted on the key field: runs that fit
+ * in memory are sorted and spilled to temporary files, then merged. Once
+ * they are sorted their number is known, and so is the shape of the whole
+ * tree: how many pages each level has, which page is the parent of which,
+ * and how many tuples or children each page holds. Every page is then
+ * written once, in its final state, at the end of the file: the leaves in
+ * key order followed by the internal pages, level by level up to the root.
+ * <p>
+ * Pages are filled up to a fill factor, but never less than half full, so
+ * the tree has the occupancy a tree built by inserts would have. The
+ * separators of an internal page are the first keys of its children,
+ * shortened by {@link BTreeInternalPage#separator}, as when a page is split.
+ * Internal pages are sized for keys of maximum length.
+ * <p>
+ * The pages are written directly to the file rather than through the
+ * BufferPool: see {@link BTreeFile#bulkLoad} for how they become part of
+ * the tree.
+ */
+class BTreeBulkLoader {
+
+	private final BTreeFile file;
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private final double fillFactor;
+	private final int runTuples;
+	private final Comparator<Tuple> byKey;
+
+	private final List<File> runs = new ArrayList<>();
+	private final List<Integer> runSizes = new ArrayList<>();
+	private List<Tuple> lastRun = new ArrayList<>(); // the last run, kept in memory
+	private int count = 0;
+
+	// the shape of the tree: the number of pages of each level, leaves
+	// first, and the number of the first page of each level
+	private int[] levelPages;
+	private int[] firstPage;
+
+	// the page of each level being filled, and what it holds so far: the
+	// tuples of a leaf, or the first keys and ids of the children of an
+	// internal page
+	private int[] current;
+	private List<Tuple> leafTuples;
+	private Field lastKey; // of the last leaf written
+	private List<List<Field>> childKeys;
+	private List<List<BTreePageId>> childIds;
+
+	private FileChannel channel;
+
+	/**
+	 * @param file - the B+ tree to build
+	 * @param fillFactor - the fraction of the capacity of a page to fill
+	 * @param sortPages - the number of leaf pages worth of tuples sorted in memory at once
+	 */
+	BTreeBulkLoader(BTreeFile file, double fillFactor, int sortPages) {
+		this.file = file;
+		this.td = file.getTupleDesc();
+		this.keyFields = file.keyFields();
+		this.fillFactor = fillFactor;
+		this.runTuples = Math.max(1, sortPages) * leafCapacity();
+		this.byKey = new BTreeFileEncoder.TupleComparator(keyFields);
+	}
+
+	private int leafCapacity() {
+		try {
+			return new BTreeLeafPage(new BTreePageId(file.getId(), 1, BTreePageId.LEAF),
+					BTreeLeafPage.createEmptyPageData(), keyFields).getMaxTuples();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private int internalCapacity() {
+		try {
+			return new BTreeInternalPage(new BTreePageId(file.getId(), 1, BTreePageId.INTERNAL),
+					BTreeInternalPage.createEmptyPageData(), keyFields).getMaxEntries();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read and sort the tuples to load, spilling sorted runs to temporary files.
+	 *
+	 * @return the number of tuples read
+	 */
+	int sort(OpIterator source) throws DbException, IOException, TransactionAbortedException {
+		source.open();
+		try {
+			while (source.hasNext()) {
+				Tuple t = source.next();
+				if (!t.getTupleDesc().equals(td)) {
+					throw new DbException("tuple " + t + " does not match the TupleDesc of the B+ tree");
+				}
+				// copy the tuple, as the leaf page will give it a RecordId
+				Tuple copy = new Tuple(td);
+				for (int i = 0; i < td.numFields(); i++) {
+					copy.setField(i, t.getField(i));
+				}
+				lastRun.add(copy);
+				count++;
+				if (lastRun.size() == runTuples) {
+					spill();
+				}
+			}
+		} finally {
+			source.close();
+		}
+		lastRun.sort(byKey);
+		return count;
+	}
+
+	private void spill() throws IOException {
+		lastRun.sort(byKey);
+		File run = File.createTempFile("btree", ".run");
+		run.deleteOnExit();
+		runs.add(run);
+		runSizes.add(lastRun.size());
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+			for (Tuple t : lastRun) {
+				for (int i = 0; i < td.numFields(); i++) {
+					t.getField(i).serialize(dos);
+				}
+			}
+		}
+		lastRun = new ArrayList<>();
+	}
+
+	/**
+	 * Write the pages of the tree after the last page of the file, starting
+	 * with page number first, and force them to disk. Call after
+	 * {@link #sort}.
+	 *
+	 * @return the id of the root of the new tree, or null if there are no tuples
+	 */
+	BTreePageId write(int first) throws DbException, IOException {
+		if (count == 0) {
+			return null;
+		}
+		layOut(first);
+		try (RandomAccessFile rf = new RandomAccessFile(file.getFile(), "rw")) {
+			channel = rf.getChannel();
+			int total = firstPage[levelPages.length - 1] + 1 - first;
+			rf.setLength(offset(first + total));
+
+			Merge merge = new Merge();
+			Tuple t;
+			while ((t = merge.next()) != null) {
+				addTuple(t);
+			}
+			channel.force(true);
+		} finally {
+			channel = null;
+		}
+		int root = levelPages.length - 1;
+		return new BTreePageId(file.getId(), firstPage[root], root == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+	}
+
+	/** Delete the temporary files of the runs */
+	void close() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+
+	// the number of pages needed for n items (tuples or children) of which a
+	// page holds at most max, at least min unless it is the only one (the
+	// root), and target if possible
+	private static int pagesFor(int n, int max, int min, int target) {
+		target = Math.max(min, Math.min(max, target));
+		int pages = (n + target - 1) / target;
+		if (pages > 1 && n / pages < min) {
+			pages = Math.max(1, n / min);
+		}
+		return pages;
+	}
+
+	// the number of items of a page of a level of n items in the specified number of pages
+	private static int share(int n, int pages, int page) {
+		return n / pages + (page < n % pages ? 1 : 0);
+	}
+
+	private void layOut(int first) {
+		List<Integer> pages = new ArrayList<>();
+		int leafMax = leafCapacity();
+		pages.add(pagesFor(count, leafMax, leafMax / 2, (int) Math.ceil(fillFactor * leafMax)));
+		int entryMax = internalCapacity();
+		while (pages.get(pages.size() - 1) > 1) {
+			// an internal page with k entries has k + 1 children
+			pages.add(pagesFor(pages.get(pages.size() - 1), entryMax + 1, entryMax / 2 + 1,
+					(int) Math.ceil(fillFactor * entryMax) + 1));
+		}
+		levelPages = new int[pages.size()];
+		firstPage = new int[pages.size()];
+		current = new int[pages.size()];
+		childKeys = new ArrayList<>();
+		childIds = new ArrayList<>();
+		for (int level = 0; level < levelPages.length; level++) {
+			levelPages[level] = pages.get(level);
+			firstPage[level] = level == 0 ? first : firstPage[level - 1] + levelPages[level - 1];
+			childKeys.add(new ArrayList<>());
+			childIds.add(new ArrayList<>());
+		}
+		leafTuples = new ArrayList<>();
+	}
+
+	// the number of items of the page of a level being filled
+	private int currentShare(int level) {
+		int items = level == 0 ? count : levelPages[level - 1];
+		return share(items, levelPages[level], current[level]);
+	}
+
+	private BTreePageId currentId(int level) {
+		return new BTreePageId(file.getId(), firstPage[level] + current[level],
+				level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+	}
+
+	// the page the page of a level being filled will be a child of
+	private BTreePageId parentId(int level) {
+		if (level == levelPages.length - 1) {
+			return BTreeRootPtrPage.getId(file.getId());
+		}
+		return currentId(level + 1);
+	}
+
+	private void addTuple(Tuple t) throws DbException, IOException {
+		leafTuples.add(t);
+		if (leafTuples.size() < currentShare(0)) {
+			return;
+		}
+		BTreePageId pid = currentId(0);
+		BTreeLeafPage leaf = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(leafTuples,
+				BufferPool.getPageSize(), td.numFields(), typeArray(), keyFields), keyFields);
+		leaf.setParentId(parentId(0));
+		if (current[0] > 0) {
+			leaf.setLeftSiblingId(new BTreePageId(file.getId(), pid.getPageNumber() - 1, BTreePageId.LEAF));
+		}
+		if (current[0] < levelPages[0] - 1) {
+			leaf.setRightSiblingId(new BTreePageId(file.getId(), pid.getPageNumber() + 1, BTreePageId.LEAF));
+		}
+		writePage(leaf);
+		// the separator of the leaf and the previous one, as if the leaves were split
+		Field firstKey = file.getKey(leafTuples.get(0));
+		if (lastKey != null) {
+			firstKey = BTreeInternalPage.separator(lastKey, firstKey);
+		}
+		lastKey = file.getKey(leafTuples.get(leafTuples.size() - 1));
+		leafTuples = new ArrayList<>();
+		current[0]++;
+		addChild(1, firstKey, pid);
+	}
+
+	private void addChild(int level, Field firstKey, BTreePageId child) throws DbException, IOException {
+		if (level == levelPages.length) {
+			return; // the root
+		}
+		List<Field> keys = childKeys.get(level);
+		List<BTreePageId> ids = childIds.get(level);
+		keys.add(firstKey);
+		ids.add(child);
+		if (ids.size() < currentShare(level)) {
+			return;
+		}
+		List<BTreeEntry> entries = new ArrayList<>();
+		for (int i = 1; i < ids.size(); i++) {
+			entries.add(new BTreeEntry(keys.get(i), ids.get(i - 1), ids.get(i)));
+		}
+		BTreePageId pid = currentId(level);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeFileEncoder.convertToInternalPage(entries,
+				BufferPool.getPageSize(), keyTypes(), child.pgcateg()), keyFields);
+		page.setParentId(parentId(level));
+		writePage(page);
+		Field pageKey = keys.get(0);
+		keys.clear();
+		ids.clear();
+		current[level]++;
+		addChild(level + 1, pageKey, pid);
+	}
+
+	private Type[] keyTypes() {
+		Type[] types = new Type[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++) {
+			types[i] = td.getFieldType(keyFields[i]);
+		}
+		return types;
+	}
+
+	private Type[] typeArray() {
+		Type[] types = new Type[td.numFields()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+		return types;
+	}
+
+	private static long offset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pageNo - 1) * BufferPool.getPageSize();
+	}
+
+	private void writePage(BTreePage page) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(page.getPageData());
+		long position = offset(page.getId().getPageNumber());
+		while (data.hasRemaining()) {
+			position += channel.write(data, position);
+		}
+	}
+
+	/**
+	 * Merges the sorted runs, reading each of them sequentially.
+	 */
+	private class Merge {
+		private final PriorityQueue<Run> heads = new PriorityQueue<>();
+
+		Merge() throws IOException {
+			for (int i = 0; i < runs.size(); i++) {
+				Run r = new Run(i, new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)))),
+						runSizes.get(i));
+				if (r.advance()) {
+					heads.add(r);
+				}
+			}
+			Run memory = new Run(runs.size(), null, lastRun.size());
+			if (memory.advance()) {
+				heads.add(memory);
+			}
+		}
+
+		/** @return the next tuple in key order, or null if there are no more */
+		Tuple next() throws IOException {
+			Run r = heads.poll();
+			if (r == null) {
+				return null;
+			}
+			Tuple t = r.head;
+			if (r.advance()) {
+				heads.add(r);
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * A sorted run being merged: a temporary file, or the last run if in is null.
+	 */
+	private class Run implements Comparable<Run> {
+		private final int number;
+		private final DataInputStream in;
+		private int remaining;
+		private int next = 0; // in the last run
+		Tuple head;
+
+		Run(int number, DataInputStream in, int size) {
+			this.number = number;
+			this.in = in;
+			this.remaining = size;
+		}
+
+		boolean advance() throws IOException {
+			if (remaining == 0) {
+				if (in != null) {
+					in.close();
+				}
+				head = null;
+				return false;
+			}
+			remaining--;
+			if (in == null) {
+				head = lastRun.get(next++);
+				return true;
+			}
+			Tuple t = new Tuple(td);
+			try {
+				for (int i = 0; i < td.numFields(); i++) {
+					t.setField(i, td.getFieldType(i).parse(in));
+				}
+			} catch (ParseException e) {
+				in.close();
+				throw new IOException("could not read sorted run: " + e.getMessage());
+			}
+			head = t;
+			return true;
+		}
+
+		// runs holding equal keys are merged in the order the tuples were read
+		public int compareTo(Run other) {
+			int cmp = byKey.compare(head, other.head);
+			return cmp != 0 ? cmp : Integer.compare(number, other.number);
+		}
+	}
+}
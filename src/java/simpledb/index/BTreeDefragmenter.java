@@ -0,0 +1,748 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.Field;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * BTreeDefragmenter reorganizes a B+ tree while other transactions use it.
+ * Deletions leave leaves between half full and full, and free pages all
+ * over the file; splits take the lowest free page, so leaves which are
+ * neighbours in key order end up far apart in the file. The job undoes
+ * this in four phases:
+ * <ol>
+ * <li>compact: the tuples of runs of underfull leaves under the same parent
+ * are redistributed to fill them up to a fill factor, and the leaves left
+ * empty are freed;</li>
+ * <li>order: the leaves are moved so that the i-th leaf in key order is
+ * page i of the file, so a range scan reads the file sequentially;</li>
+ * <li>pack: the internal and header pages after the last used page number
+ * are moved down into free pages;</li>
+ * <li>truncate: the free pages at the end of the file are cut off.</li>
+ * </ol>
+ * The job runs in small steps, each in a transaction of its own which
+ * compacts or moves at most a given number of pages, so it never holds many
+ * locks for long. A step which conflicts with another transaction aborts,
+ * and is retried by {@link #run}.
+ * <p>
+ * A compact step finds the run it compacts by a key, like an insert finds
+ * its leaf, and only locks the pages it changes, so it runs alongside the
+ * structure modifications of other transactions. The steps of the other
+ * phases move pages, so they hold the structure latch of the tree
+ * exclusively, and keep the page numbers of the pages of the tree in memory
+ * between steps: the pages are read once when the order phase starts, and
+ * again only if another transaction changed the structure of the tree in
+ * the meantime. A step thus reads only the pages it moves and their
+ * neighbours.
+ * <p>
+ * Moving a page copies it to a free page, points its parent, siblings and
+ * children at the copy, and frees it. The end of the file is only cut off
+ * once no snapshot transaction is running, since they may still read the
+ * pages of the end of the file through old versions of the tree; until
+ * then the last phase is retried.
+ */
+public class BTreeDefragmenter {
+
+	/** Default number of pages a step compacts or moves */
+	public static final int DEFAULT_STEP_PAGES = 16;
+
+	/** Number of times in a row {@link #run} retries a step which aborted */
+	private static final int MAX_RETRIES = 20;
+
+	/** Time {@link #run} waits before retrying a step which aborted or could not truncate, in milliseconds */
+	private static final long RETRY_DELAY = 50;
+
+	private enum Phase { COMPACT, ORDER, PACK, TRUNCATE, DONE }
+
+	private final BTreeFile file;
+	private final double fillFactor;
+	private final int stepPages;
+
+	private Phase phase = Phase.COMPACT;
+	private Cursor compacted = new Cursor(null, null); // where the compact phase goes on
+	private Layout layout; // the pages of the tree, or null if they have to be read again
+	private long layoutCount; // the structure modification count of the file the layout is valid at
+	private int ordered = 0; // the number of leaves, in key order, the order phase found in place
+	private boolean waiting = false; // true if the last step could not truncate because of snapshots
+	private int released = 0;
+
+	/**
+	 * Create a job reorganizing the specified tree, filling the leaves it
+	 * compacts up to {@link BTreeFile#DEFAULT_FILL_FACTOR}.
+	 *
+	 * @param file - the B+ tree to reorganize
+	 */
+	public BTreeDefragmenter(BTreeFile file) {
+		this(file, BTreeFile.DEFAULT_FILL_FACTOR, DEFAULT_STEP_PAGES);
+	}
+
+	/**
+	 * @param file - the B+ tree to reorganize
+	 * @param fillFactor - the fraction of the capacity of a leaf to fill, between 0.5 and 1
+	 * @param stepPages - the number of pages a step compacts or moves at most
+	 */
+	public BTreeDefragmenter(BTreeFile file, double fillFactor, int stepPages) {
+		if(fillFactor < 0.5 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor " + fillFactor + " is not between 0.5 and 1");
+		}
+		this.file = file;
+		this.fillFactor = fillFactor;
+		this.stepPages = Math.max(2, stepPages);
+	}
+
+	/** @return true if the job has finished */
+	public boolean isDone() {
+		return phase == Phase.DONE;
+	}
+
+	/** @return the number of pages the job cut off the end of the file */
+	public int getReleasedPages() {
+		return released;
+	}
+
+	/**
+	 * Run the job to completion, retrying the steps which abort, and waiting for the
+	 * snapshot transactions to end before truncating the file.
+	 *
+	 * @throws TransactionAbortedException if a step aborted too many times in a row
+	 */
+	public void run() throws DbException, IOException, TransactionAbortedException {
+		int retries = 0;
+		while(!isDone()) {
+			TransactionAbortedException aborted = null;
+			try {
+				step();
+				retries = 0;
+			} catch(TransactionAbortedException e) {
+				if(++retries > MAX_RETRIES) {
+					throw e;
+				}
+				aborted = e;
+			}
+			if(aborted != null || waiting) {
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch(InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw aborted != null ? aborted : new TransactionAbortedException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run one step of the job in a transaction of its own. The job only moves
+	 * on once the transaction has committed, so a step which throws can be
+	 * retried.
+	 *
+	 * @return false if the job has finished
+	 * @throws TransactionAbortedException if the step conflicted with another
+	 * transaction, and was rolled back
+	 */
+	public boolean step() throws DbException, IOException, TransactionAbortedException {
+		if(isDone()) {
+			return false;
+		}
+		file.initFile();
+		waiting = false;
+		Transaction t = new Transaction();
+		t.start();
+		TransactionId tid = t.getId();
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		boolean committed = false;
+		Cursor cursor = null; // where the compact phase goes on, null if it is over
+		int next = 0; // what the step did, -1 if its phase is over; see the method of each phase
+		try {
+			file.beginStructureModification(tid, phase != Phase.COMPACT);
+			boolean done = false;
+			try {
+				if(phase == Phase.COMPACT) {
+					cursor = compact(tid, dirtypages);
+				} else {
+					Layout layout = layout(tid, dirtypages);
+					switch(phase) {
+					case ORDER:
+						next = order(tid, dirtypages, layout);
+						break;
+					case PACK:
+						next = pack(tid, dirtypages, layout);
+						break;
+					default:
+						next = takeTail(tid, dirtypages, layout);
+					}
+					if(!layout.covers(dirtypages.keySet())) {
+						this.layout = null; // the step added header pages
+					}
+				}
+				done = true;
+			} finally {
+				if(done) {
+					file.commitStructureModification(tid, dirtypages);
+				} else {
+					file.endStructureModification(tid, dirtypages, true);
+				}
+			}
+			t.commit();
+			committed = true;
+		} finally {
+			if(!committed) {
+				layout = null; // the step may have moved pages in it
+				t.abort();
+			}
+		}
+
+		switch(phase) {
+		case COMPACT:
+			compacted = cursor;
+			if(cursor == null) {
+				phase = Phase.ORDER;
+			}
+			break;
+		case ORDER:
+			if(next < 0) {
+				phase = Phase.PACK;
+			}
+			break;
+		case PACK:
+			if(next < 0) {
+				phase = Phase.TRUNCATE;
+			}
+			break;
+		default:
+			if(truncate(next)) {
+				phase = Phase.DONE;
+			}
+		}
+		return !isDone();
+	}
+
+	/**
+	 * Where the compact phase goes on: at the left-most leaf possibly holding a key, or
+	 * at the leaf after it if that is the leaf the last run ended with.
+	 */
+	private static class Cursor {
+		/** the key, or null for the first leaf */
+		final Field key;
+		/** the last leaf of the last run, or null */
+		final BTreePageId after;
+
+		Cursor(Field key, BTreePageId after) {
+			this.key = key;
+			this.after = after;
+		}
+	}
+
+	/**
+	 * The pages of the tree and the header pages, as the job last found them.
+	 */
+	private static class Layout {
+		/** the pages of the tree and the header pages, by page number */
+		final TreeMap<Integer, BTreePageId> pages = new TreeMap<>();
+		/** the leaves, in key order */
+		final List<BTreePageId> leaves = new ArrayList<>();
+		/** the position of each leaf in key order */
+		final Map<BTreePageId, Integer> positions = new HashMap<>();
+		/** the header pages, in the order of their chain */
+		final List<BTreePageId> headers = new ArrayList<>();
+		/** the pages freed by the step, which must not be reused before it commits */
+		final Set<Integer> freed = new HashSet<>();
+
+		void add(BTreePageId pid) {
+			pages.put(pid.getPageNumber(), pid);
+		}
+
+		void addLeaf(BTreePageId pid) {
+			add(pid);
+			positions.put(pid, leaves.size());
+			leaves.add(pid);
+		}
+
+		void moved(BTreePageId from, BTreePageId to) {
+			pages.remove(from.getPageNumber());
+			freed.add(from.getPageNumber());
+			add(to);
+			Integer i = positions.remove(from);
+			if(i != null) {
+				leaves.set(i, to);
+				positions.put(to, i);
+			}
+			i = headers.indexOf(from);
+			if(i >= 0) {
+				headers.set(i, to);
+			}
+		}
+
+		/** @return the lowest page number in the specified range which no page uses, or 0 */
+		int unused(int first, int last) {
+			for(int pageNo = first; pageNo <= last; pageNo++) {
+				if(!pages.containsKey(pageNo) && !freed.contains(pageNo)) {
+					return pageNo;
+				}
+			}
+			return 0;
+		}
+
+		/** @return true if the specified pages are all known to the layout, or were freed by the step */
+		boolean covers(Collection<PageId> pids) {
+			for(PageId pid : pids) {
+				int pageNo = pid.getPageNumber();
+				if(((BTreePageId) pid).pgcateg() != BTreePageId.ROOT_PTR
+						&& !pid.equals(pages.get(pageNo)) && !freed.contains(pageNo)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Return the pages of the tree and the header pages. They are read again, without
+	 * locking them, unless no structure modification but the steps of this job ran since
+	 * they were last read: the caller holds the structure latch exclusively.
+	 *
+	 * @throws TransactionAbortedException if another transaction is in the middle of a
+	 * structure modification
+	 */
+	private Layout layout(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, TransactionAbortedException {
+		long count = file.getModificationCount(); // counts the step's own modification
+		if(layout == null || count != layoutCount + 1) {
+			layout = read(tid, dirtypages);
+			ordered = 0;
+		}
+		layoutCount = count;
+		layout.freed.clear();
+		return layout;
+	}
+
+	// read the pages of the tree level by level, which keeps each level in key order
+	private Layout read(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, TransactionAbortedException {
+		Layout layout = new Layout();
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) unmodified(tid, dirtypages,
+				BTreeRootPtrPage.getId(file.getId()));
+		BTreePageId rootId = rootPtr.getRootId();
+		List<BTreePageId> level = Collections.singletonList(
+				rootId != null ? rootId : new BTreePageId(file.getId(), 1, BTreePageId.LEAF));
+
+		while(level.get(0).pgcateg() == BTreePageId.INTERNAL) {
+			List<BTreePageId> children = new ArrayList<>();
+			for(BTreePageId pid : level) {
+				layout.add(pid);
+				BTreeInternalPage page = (BTreeInternalPage) unmodified(tid, dirtypages, pid);
+				Iterator<BTreeEntry> it = page.iterator();
+				boolean first = true;
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					if(first) {
+						children.add(e.getLeftChild());
+						first = false;
+					}
+					children.add(e.getRightChild());
+				}
+			}
+			level = children;
+		}
+		for(BTreePageId pid : level) {
+			layout.addLeaf(pid);
+		}
+
+		BTreePageId headerId = rootPtr.getHeaderId();
+		while(headerId != null) {
+			layout.add(headerId);
+			layout.headers.add(headerId);
+			headerId = ((BTreeHeaderPage) unmodified(tid, dirtypages, headerId)).getNextPageId();
+		}
+		return layout;
+	}
+
+	// fetch a page without locking it, and abort if another transaction modified it
+	private Page unmodified(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		Page page = file.getPageUnlocked(tid, dirtypages, pid);
+		if(file.isModifiedByOther(tid, page)) {
+			throw new TransactionAbortedException();
+		}
+		return page;
+	}
+
+	/**
+	 * Compact the run of leaves under the same parent starting at the leaf the compact
+	 * phase goes on at.
+	 *
+	 * @return where the compact phase goes on after the run, or null if no leaf follows it
+	 */
+	private Cursor compact(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeLeafPage first = file.findLeafPage(tid, dirtypages, Permissions.READ_ONLY, compacted.key);
+		if(first != null && first.getId().equals(compacted.after)) {
+			// the keys of the last run went on into the leaf after it
+			BTreePageId right = first.getRightSiblingId();
+			first = right == null ? null
+					: (BTreeLeafPage) file.getPage(tid, dirtypages, right, Permissions.READ_ONLY);
+		}
+		if(first == null || first.getParentId().pgcateg() != BTreePageId.INTERNAL) {
+			return null;
+		}
+
+		// the parent cannot change while the leaf is locked
+		BTreePageId parentId = first.getParentId();
+		BTreeInternalPage parent = (BTreeInternalPage) file.getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+		List<BTreePageId> run = new ArrayList<>();
+		run.add(first.getId());
+		Iterator<BTreeEntry> entries = parent.iterator();
+		boolean found = false;
+		while(entries.hasNext() && run.size() < stepPages) {
+			BTreeEntry e = entries.next();
+			if(found || e.getLeftChild().equals(first.getId())) {
+				run.add(e.getRightChild());
+				found = true;
+			}
+		}
+
+		// the number of tuples each leaf should hold
+		int total = 0;
+		int maxTuples = 0;
+		BTreeLeafPage leaf = null;
+		for(BTreePageId pid : run) {
+			leaf = (BTreeLeafPage) file.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			total += leaf.getNumTuples();
+			maxTuples = leaf.getMaxTuples();
+		}
+		Cursor cursor = after(tid, dirtypages, leaf);
+		int[] counts = distribute(total, maxTuples);
+		int keep = counts.length;
+		if(run.size() < 2 || total == 0 || keep >= run.size() || !parent.canUpdateKeys(keep)) {
+			return cursor;
+		}
+
+		// take the tuples out of the leaves, and deal them out to the first ones again
+		parent = (BTreeInternalPage) file.getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+		List<BTreeLeafPage> leaves = new ArrayList<>();
+		List<Tuple> tuples = new ArrayList<>(total);
+		for(BTreePageId pid : run) {
+			leaf = (BTreeLeafPage) file.getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+			leaves.add(leaf);
+			Iterator<Tuple> it = leaf.iterator();
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				leaf.deleteTuple(t);
+				tuples.add(t);
+			}
+		}
+		int n = 0;
+		List<Field> firstKeys = new ArrayList<>();
+		List<Field> lastKeys = new ArrayList<>();
+		for(int i = 0; i < keep; i++) {
+			firstKeys.add(file.getKey(tuples.get(n)));
+			for(int j = 0; j < counts[i]; j++) {
+				leaves.get(i).insertTuple(tuples.get(n++));
+			}
+			lastKeys.add(file.getKey(tuples.get(n - 1)));
+		}
+
+		// drop the entries of the leaves left empty, except the last one
+		for(int i = keep; i < run.size() - 1; i++) {
+			parent.deleteKeyAndRightChild(entryOf(parent, run.get(i)));
+			file.setEmptyPage(tid, dirtypages, run.get(i).getPageNumber());
+		}
+
+		// raise the separators of the kept leaves, which must stay in order at all times:
+		// first all to the last key of the run, then each to its final value
+		BTreeEntry last = entryOf(parent, run.get(run.size() - 1));
+		List<BTreeEntry> raised = new ArrayList<>();
+		for(int i = 1; i < keep; i++) {
+			raised.add(entryOf(parent, run.get(i)));
+		}
+		raised.add(last);
+		Field maxKey = lastKeys.get(keep - 1);
+		for(int i = raised.size() - 1; i >= 0; i--) {
+			raised.get(i).setKey(maxKey);
+			parent.updateEntry(raised.get(i));
+		}
+		for(int i = 0; i < keep - 1; i++) {
+			raised.get(i).setKey(BTreeInternalPage.separator(lastKeys.get(i), firstKeys.get(i + 1)));
+			parent.updateEntry(raised.get(i));
+		}
+
+		// merging the last leaf fixes the sibling pointers, and the occupancy of the parent
+		file.mergeLeafPages(tid, dirtypages, leaves.get(keep - 1), leaves.get(run.size() - 1), parent, last);
+		return cursor == null ? null : new Cursor(cursor.key, run.get(keep - 1));
+	}
+
+	/**
+	 * @return where the compact phase goes on after a run ending with the specified leaf:
+	 * at the first key of the leaf after it, or null if there is none
+	 */
+	private Cursor after(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage leaf)
+			throws DbException, TransactionAbortedException {
+		BTreePageId right = leaf.getRightSiblingId();
+		if(right == null) {
+			return null;
+		}
+		Iterator<Tuple> it = ((BTreeLeafPage) file.getPage(tid, dirtypages, right, Permissions.READ_ONLY)).iterator();
+		return it.hasNext() ? new Cursor(file.getKey(it.next()), leaf.getId()) : null;
+	}
+
+	/**
+	 * @return the number of tuples each of the fewest leaves holding the specified number of
+	 * tuples should hold, filling them up to the fill factor but never less than half full
+	 */
+	private int[] distribute(int total, int maxTuples) {
+		int minTuples = maxTuples / 2;
+		int fill = Math.max(1, Math.max(minTuples, (int) (maxTuples * fillFactor)));
+		int count = Math.max(1, (total + fill - 1) / fill);
+		int[] counts = new int[count];
+		Arrays.fill(counts, fill);
+		counts[count - 1] = total - (count - 1) * fill;
+		if(count > 1 && counts[count - 1] < minTuples) {
+			int both = fill + counts[count - 1];
+			if(both <= maxTuples) {
+				counts = Arrays.copyOf(counts, count - 1);
+				counts[count - 2] = both;
+			} else {
+				counts[count - 2] = both - both / 2;
+				counts[count - 1] = both / 2;
+			}
+		}
+		return counts;
+	}
+
+	// the entry of the parent whose right child is the specified page
+	private static BTreeEntry entryOf(BTreeInternalPage parent, BTreePageId child) throws DbException {
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(e.getRightChild().equals(child)) {
+				return e;
+			}
+		}
+		throw new DbException("page " + child + " is not a right child of " + parent.getId());
+	}
+
+	/**
+	 * Move the leaves so that the i-th leaf in key order is page i. A page in the way is
+	 * moved to a free page, after the pages the leaves take if possible, and the leaf takes
+	 * its place in the next step: a page freed by a step is only reused once it commits.
+	 *
+	 * @return the number of pages moved, or -1 if the leaves are all in place
+	 */
+	private int order(TransactionId tid, Map<PageId, Page> dirtypages, Layout layout)
+			throws DbException, IOException, TransactionAbortedException {
+		int leaves = layout.leaves.size();
+		while(ordered < leaves && layout.leaves.get(ordered).getPageNumber() == ordered + 1) {
+			ordered++;
+		}
+		int moved = 0;
+		for(int pageNo = ordered + 1; pageNo <= leaves && moved < stepPages; pageNo++) {
+			BTreePageId leafId = layout.leaves.get(pageNo - 1);
+			if(leafId.getPageNumber() == pageNo) {
+				continue;
+			}
+			BTreePageId occupant = layout.pages.get(pageNo);
+			if(occupant != null) {
+				int free = layout.unused(leaves + 1, file.numPages());
+				if(free == 0) {
+					free = layout.unused(1, file.numPages());
+				}
+				if(free == 0) {
+					if(!layout.freed.isEmpty()) {
+						break; // the only free pages are the ones this step freed
+					}
+					free = file.getEmptyPageNo(tid, dirtypages);
+				}
+				move(tid, dirtypages, layout, occupant, free);
+				moved++;
+			} else if(!layout.freed.contains(pageNo)) {
+				move(tid, dirtypages, layout, leafId, pageNo);
+				moved++;
+			}
+		}
+		return moved == 0 ? -1 : moved;
+	}
+
+	/**
+	 * Move the pages after the last page number a file holding only the pages in use would
+	 * have to the lowest free pages, starting with the last one.
+	 *
+	 * @return the number of pages moved, or -1 if there is none to move
+	 */
+	private int pack(TransactionId tid, Map<PageId, Page> dirtypages, Layout layout)
+			throws DbException, IOException, TransactionAbortedException {
+		int used = layout.pages.size();
+		List<BTreePageId> tail = new ArrayList<>(layout.pages.tailMap(used, false).descendingMap().values());
+		int moved = 0;
+		for(BTreePageId pid : tail) {
+			int free = layout.unused(1, used);
+			if(free == 0 || moved == stepPages) {
+				break;
+			}
+			move(tid, dirtypages, layout, pid, free);
+			moved++;
+		}
+		return moved == 0 ? -1 : moved;
+	}
+
+	/**
+	 * Mark the pages after the last page in use as used in the header pages, so that no
+	 * transaction takes them once the step commits and they can be cut off the file.
+	 *
+	 * @return the page number of the last page in use
+	 */
+	private int takeTail(TransactionId tid, Map<PageId, Page> dirtypages, Layout layout)
+			throws DbException, IOException, TransactionAbortedException {
+		int lastUsed = layout.pages.lastKey();
+		for(int pageNo = lastUsed + 1; pageNo <= file.numPages(); pageNo++) {
+			file.takeEmptyPage(tid, dirtypages, pageNo);
+		}
+		return lastUsed;
+	}
+
+	/**
+	 * Cut off the pages after the specified one, unless another transaction used or freed
+	 * one of them since the step which marked them as used committed. Nothing is cut off
+	 * while snapshot transactions are running: the last phase is then run again later.
+	 *
+	 * @return false if the last phase has to be run again
+	 */
+	private boolean truncate(int lastUsed) throws DbException, IOException, TransactionAbortedException {
+		TransactionId tid = new TransactionId();
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		file.beginStructureModification(tid, true);
+		try {
+			if(Database.getBufferPool().hasSnapshots()) {
+				waiting = true;
+				return false;
+			}
+			Layout layout = layout(tid, dirtypages);
+			if(layout.pages.lastKey() > lastUsed) {
+				return false;
+			}
+			int slots = BTreeHeaderPage.getNumSlots();
+			for(int i = 0; i < layout.headers.size(); i++) {
+				BTreeHeaderPage header = (BTreeHeaderPage) unmodified(tid, dirtypages, layout.headers.get(i));
+				for(int slot = Math.max(0, lastUsed + 1 - i * slots); slot < slots; slot++) {
+					if(!header.isSlotUsed(slot)) {
+						return false;
+					}
+				}
+			}
+			released += file.truncate(lastUsed);
+			return true;
+		} finally {
+			file.endStructureModification(tid, dirtypages, false);
+		}
+	}
+
+	/**
+	 * Move a page of the tree, or a header page, to the specified page, which is not in use.
+	 * Its parent, siblings and children, or the pages of the header chain, are pointed at
+	 * the new page, and the old one is freed.
+	 */
+	private void move(TransactionId tid, Map<PageId, Page> dirtypages, Layout layout, BTreePageId pid, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId newId = new BTreePageId(file.getId(), pageNo, pid.pgcateg());
+		file.takeEmptyPage(tid, dirtypages, pageNo);
+		Page page = file.getPage(tid, dirtypages, pid, Permissions.READ_WRITE);
+		Page copy = file.newPage(tid, dirtypages, newId);
+
+		if(pid.pgcateg() == BTreePageId.HEADER) {
+			BTreeHeaderPage from = (BTreeHeaderPage) page;
+			BTreeHeaderPage to = (BTreeHeaderPage) copy;
+			for(int slot = 0; slot < BTreeHeaderPage.getNumSlots(); slot++) {
+				to.markSlotUsed(slot, from.isSlotUsed(slot));
+			}
+			to.setPrevPageId(from.getPrevPageId());
+			to.setNextPageId(from.getNextPageId());
+			if(from.getPrevPageId() == null) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) file.getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(file.getId()), Permissions.READ_WRITE);
+				rootPtr.setHeaderId(newId);
+			} else {
+				((BTreeHeaderPage) file.getPage(tid, dirtypages, from.getPrevPageId(), Permissions.READ_WRITE))
+						.setNextPageId(newId);
+			}
+			if(from.getNextPageId() != null) {
+				((BTreeHeaderPage) file.getPage(tid, dirtypages, from.getNextPageId(), Permissions.READ_WRITE))
+						.setPrevPageId(newId);
+			}
+			file.forgetHeaderPages();
+		} else {
+			BTreePage from = (BTreePage) page;
+			if(pid.pgcateg() == BTreePageId.LEAF) {
+				moveLeaf(tid, dirtypages, (BTreeLeafPage) from, (BTreeLeafPage) copy);
+			} else {
+				BTreeInternalPage to = (BTreeInternalPage) copy;
+				Iterator<BTreeEntry> it = ((BTreeInternalPage) from).iterator();
+				while(it.hasNext()) {
+					BTreeEntry e = it.next();
+					((BTreeInternalPage) from).deleteKeyAndLeftChild(e);
+					to.insertEntry(e);
+				}
+				file.updateParentPointers(tid, dirtypages, to);
+			}
+			((BTreePage) copy).setParentId(from.getParentId());
+			replaceChild(tid, dirtypages, from.getParentId(), pid, newId);
+		}
+
+		file.setEmptyPage(tid, dirtypages, pid.getPageNumber());
+		layout.moved(pid, newId);
+	}
+
+	// copy the tuples of a leaf to another page, and point its siblings at that page
+	private void moveLeaf(TransactionId tid, Map<PageId, Page> dirtypages, BTreeLeafPage from, BTreeLeafPage to)
+			throws DbException, TransactionAbortedException {
+		Iterator<Tuple> it = from.iterator();
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			from.deleteTuple(t);
+			to.insertTuple(t);
+		}
+		BTreePageId left = from.getLeftSiblingId();
+		BTreePageId right = from.getRightSiblingId();
+		to.setLeftSiblingId(left);
+		to.setRightSiblingId(right);
+		if(left != null) {
+			((BTreeLeafPage) file.getPage(tid, dirtypages, left, Permissions.READ_WRITE)).setRightSiblingId(to.getId());
+		}
+		if(right != null) {
+			((BTreeLeafPage) file.getPage(tid, dirtypages, right, Permissions.READ_WRITE)).setLeftSiblingId(to.getId());
+		}
+	}
+
+	// point the parent of a page, or the root pointer, at the page's new location
+	private void replaceChild(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId parentId,
+			BTreePageId oldId, BTreePageId newId) throws DbException, TransactionAbortedException {
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) file.getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			rootPtr.setRootId(newId);
+			return;
+		}
+		BTreeInternalPage parent = (BTreeInternalPage) file.getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+		Iterator<BTreeEntry> it = parent.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			if(e.getLeftChild().equals(oldId)) {
+				e.setLeftChild(newId);
+				parent.updateEntry(e);
+				return;
+			}
+			if(e.getRightChild().equals(oldId)) {
+				e.setRightChild(newId);
+				parent.updateEntry(e);
+				return;
+			}
+		}
+		throw new DbException("page " + oldId + " is not a child of " + parentId);
+	}
+}
@@ -5,13 +5,20 @@ import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
 import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate.Op;
 import simpledb.storage.*;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BTreeFile is an implementation of a DbFile that stores a B+ tree.
@@ -19,6 +26,23 @@ import java.util.*;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Concurrency: transactions only lock the leaf pages they read or write. Internal
+ * pages and the root pointer page are read during a descent optimistically: each of
+ * them carries a version stamp ({@link OptimisticLatch}) which is validated after it is
+ * read. Structure modifications (splits, merges and redistributions) lock every page
+ * they modify, which orders them, and latch the internal and root pointer pages among
+ * them until they end; a descent that runs into a latched page waits for the latch to
+ * be released and reads the page again. A descent that reaches a page locked for
+ * writing by another transaction waits for that lock, without keeping it.
+ * <p>
+ * Rollback restores whole pages, so the pages a modification changes stay locked
+ * until its transaction ends. A leaf split is therefore run in a transaction of its
+ * own, which commits before the insert goes on and releases the internal pages it
+ * changed; only when the inserting transaction holds a lock on one of the pages the
+ * split changes, and for the merges and redistributions of deletes, are the pages
+ * changed as part of the transaction itself. The structure latch of the file is only
+ * taken exclusively by reorganizations of the whole tree ({@link BTreeDefragmenter}).
  * 
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
@@ -31,7 +55,47 @@ public class BTreeFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private final int keyField;
+	private final int[] keyFields;
+
+	/** Maximum time to wait for the structure latch or the latch of a page before giving up, in ms */
+	private static final long LATCH_TIMEOUT = 5000;
+
+	/** Latch taken in shared mode by structure modifications, and exclusively by reorganizations
+	 * of the whole tree */
+	private final ReentrantReadWriteLock structureLatch = new ReentrantReadWriteLock();
+
+	/** Transactions running a structure modification, mapped to the transaction it is run for */
+	private final Map<TransactionId, TransactionId> modifications = new ConcurrentHashMap<>();
+
+	/** Number of structure modifications started so far */
+	private final AtomicLong modificationCount = new AtomicLong();
+
+	/** Default number of leaves read ahead of a scan, see {@link #setPrefetchLeaves} */
+	public static final int DEFAULT_PREFETCH_LEAVES = 8;
+
+	/** Number of leaves read ahead of a scan */
+	private volatile int prefetchLeaves = DEFAULT_PREFETCH_LEAVES;
+
+	/** Number of pages the file is extended by when it has no empty page left */
+	public static final int EXTEND_PAGES = 16;
+
+	/** Number of pages at the end of the file which have been added by an extension but not
+	 * handed out yet, or -1 until they are counted. They are not counted by {@link #numPages()} */
+	private int sparePages = -1;
+
+	/** First int of a spare page on disk. The pages of the tree all start with a page number,
+	 * which is never negative */
+	private static final int SPARE_MARK = -1;
+
+	/** Page numbers of the header pages, in the order of the chain, as far as they are known.
+	 * Only header pages which are not modified by an uncommitted transaction are added, and
+	 * header pages are never removed from the chain, so the list stays valid. Also used to
+	 * synchronize on for itself and {@link #firstFreeHeader} */
+	private final List<Integer> headerPages = new ArrayList<>();
+
+	/** None of the header pages before this one has an empty slot, except the ones whose
+	 * empty slots are not committed yet */
+	private int firstFreeHeader = 0;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,9 +106,25 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] {key}, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields, whose keys are
+	 * {@link CompositeField}s ordered lexicographically on these fields.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in order
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if(keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyFields = keys.clone();
 		this.td = td;
 	}
 
@@ -117,9 +197,9 @@ public class BTreeFile implements DbFile {
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
+                    return new BTreeInternalPage(id, pageBuf, keyFields);
                 } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
+                    return new BTreeLeafPage(id, pageBuf, keyFields);
                 } else { // id.pgcateg() == BTreePageId.HEADER
                     return new BTreeHeaderPage(id, pageBuf);
                 }
@@ -156,16 +236,127 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Returns the number of pages in this BTreeFile.
 	 */
-	public int numPages() {
+	public synchronized int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize()) - spares();
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the number of spare pages at the end of the file. When the file is opened,
+	 * these are the pages at its end which still carry the {@link #SPARE_MARK}: an extension
+	 * writes it into each page it adds, and {@link #newPage} wipes it before a page is used,
+	 * so spare pages left by a shutdown or a crash are handed out again.
+	 */
+	private synchronized int spares() {
+		if(sparePages < 0) {
+			sparePages = 0;
+			long pages = (f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize();
+			try (RandomAccessFile rf = new RandomAccessFile(f, "r")) {
+				while(sparePages < pages) {
+					rf.seek(BTreeRootPtrPage.getPageSize() + (pages - sparePages - 1) * BufferPool.getPageSize());
+					if(rf.readInt() != SPARE_MARK) {
+						break;
+					}
+					sparePages++;
+				}
+			} catch (IOException e) {
+				// count the pages which could not be read as pages of the tree
+			}
+		}
+		return sparePages;
+	}
+
+	/**
+	 * Returns the index of the field that this B+ tree is keyed on, the first one if
+	 * it is keyed on several fields
 	 */
 	public int keyField() {
-		return keyField;
+		return keyFields[0];
+	}
+
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in order
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of the specified tuple in this B+ tree, a {@link CompositeField}
+	 * if it is keyed on several fields
+	 */
+	public Field getKey(Tuple t) {
+		return CompositeField.key(t, keyFields);
+	}
+
+	/**
+	 * Set the number of leaves the iterators of this file read ahead of the leaf they
+	 * are on, at most a quarter of the buffer pool; 0 turns read-ahead off.
+	 * @see #prefetchLeaves(TransactionId, BTreeLeafPage, Field)
+	 */
+	public void setPrefetchLeaves(int leaves) {
+		this.prefetchLeaves = leaves;
+	}
+
+	/**
+	 * Returns the number of leaves the iterators of this file read ahead
+	 */
+	public int getPrefetchLeaves() {
+		return prefetchLeaves;
+	}
+
+	/**
+	 * Start reading the leaves to the right of a leaf into the buffer pool in the
+	 * background (see {@link BufferPool#prefetchPage}). Their ids are taken from the
+	 * parent of the leaf, so the leaves are read in parallel instead of one after the
+	 * other by following the right sibling pointers; only the right sibling is read
+	 * ahead if the leaf is the last child of its parent. The slot of the leaf in the
+	 * parent is searched for by the first key of the leaf, so only the slots from there
+	 * on are read. The parent is read without a lock, like in {@link #descend}, and
+	 * nothing is read ahead if it is being modified. Iterators call this again when they
+	 * reach the last leaf read ahead.
+	 * 
+	 * @param tid - the transaction id
+	 * @param leaf - the leaf a scan is on
+	 * @param bound - the largest key the scan reads, or null; leaves which only hold
+	 * greater keys are not read ahead
+	 * @return the number of leaves read ahead
+	 */
+	int prefetchLeaves(TransactionId tid, BTreeLeafPage leaf, Field bound) {
+		int count = Math.min(prefetchLeaves, BufferPool.getNumPages() / 4);
+		if(count <= 0) {
+			return 0;
+		}
+		List<BTreePageId> ahead = null;
+		try {
+			BTreePageId parentId = leaf.getParentId();
+			Iterator<Tuple> tuples = leaf.iterator();
+			if(parentId.pgcateg() == BTreePageId.INTERNAL && tuples.hasNext()) {
+				Field key = getKey(tuples.next());
+				BTreeInternalPage parent = (BTreeInternalPage) Database.getBufferPool().getPageUnlocked(tid, parentId);
+				long version = parent.latch.readVersion();
+				if(isModifiedByOther(tid, parent)) {
+					return 0;
+				}
+				ahead = parent.childrenAfter(leaf.getId(), key, bound, count);
+				if(!parent.latch.validate(version)) {
+					return 0;
+				}
+			}
+		} catch (DbException | RuntimeException e) {
+			// a page was modified halfway through reading it
+			return 0;
+		}
+		if(ahead == null) {
+			ahead = new ArrayList<>();
+			if(leaf.getRightSiblingId() != null) {
+				ahead.add(leaf.getRightSiblingId());
+			}
+		}
+		for(BTreePageId pid : ahead) {
+			Database.getBufferPool().prefetchPage(pid);
+		}
+		return ahead.size();
 	}
 
 	/**
@@ -192,20 +383,8 @@ public class BTreeFile implements DbFile {
 			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
 		} else {
 			BTreeInternalPage bpg = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-			Iterator<BTreeEntry> it = bpg.iterator();
-			BTreePageId bpid = null;
-			BTreeEntry bet = null;
-			while(it.hasNext()) { // m left child pointers
-				bet = it.next();
-				if(f == null || f.compare(Op.LESS_THAN_OR_EQ, bet.getKey())) {
-					bpid = bet.getLeftChild();
-					break;
-				}
-			}
-			if(bpid == null) { // the m+1 th right child pointer
-				if(bet == null) return null;
-				bpid = bet.getRightChild();
-			}
+			BTreePageId bpid = bpg.findChild(f);
+			if(bpid == null) return null;
 			return findLeafPage(tid, dirtypages, bpid, perm, f);
 		}
 	}
@@ -213,18 +392,305 @@ public class BTreeFile implements DbFile {
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, Map, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, locked with
+	 * READ_ONLY permission, or null if the tree is empty
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
+					throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, f, null);
+	}
+
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f.
+	 * @see #findLeafPage(TransactionId, Map, Permissions, Field, Set)
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		return findLeafPage(tid, dirtypages, perm, f, null);
+	}
+
+	/**
+	 * Find and lock the leaf page corresponding to the left-most page possibly containing
+	 * the key field f, without locking the internal pages on the way.
+	 * 
+	 * The internal pages are read optimistically, without any latch, and validated against
+	 * their version stamps (see {@link #descend}). The leaf is locked once the descent is
+	 * over, so the path to it is validated again afterwards: if a structure modification
+	 * changed it in the meantime, the lock on the stale leaf is dropped (unless it was held
+	 * before) and the search starts over.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @param locked - receives the id of the leaf page if tid held no lock on it before, or null
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree is empty
+	 * 
+	 */
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm,
+                                       Field f, Set<PageId> locked)
+					throws DbException, TransactionAbortedException {
+		while(true) {
+			List<OptimisticLatch> latches = new ArrayList<>();
+			List<Long> versions = new ArrayList<>();
+			BTreePageId leafId = descend(tid, dirtypages, f, latches, versions);
+			if(leafId == null) {
+				return null;
+			}
+			if(leafId.pgcateg() != BTreePageId.LEAF) {
+				// another transaction is modifying this page, wait for it and retry
+				waitForPage(tid, dirtypages, leafId);
+				continue;
+			}
+
+			boolean held = Database.getBufferPool().holdsLock(tid, leafId);
+			BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, leafId, perm);
+			if(validate(latches, versions)) {
+				if(!held && locked != null) {
+					locked.add(leafId);
+				}
+				return leaf;
+			}
+			if(!held) {
+				// we have not looked at the stale leaf, so its lock can be dropped safely
+				dirtypages.remove(leafId);
+				Database.getBufferPool().unsafeReleasePage(tid, leafId);
+			}
+		}
+	}
+
+	/**
+	 * Wait until no other transaction holds a write lock on a page, by locking it with
+	 * READ_ONLY permission. The lock is dropped again unless tid held it before, so that
+	 * a page another transaction has since restructured does not stay locked.
+	 */
+	private void waitForPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		boolean held = bp.holdsLock(tid, pid);
+		getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		if(!held) {
+			bp.unsafeReleasePage(tid, pid);
+		}
+	}
+
+	/**
+	 * Search the tree for the leaf page corresponding to the left-most page possibly
+	 * containing the key field f, without any lock. The version stamp of every page is
+	 * taken before the page is read and validated before anything read from it is used;
+	 * the stamps are collected in latches and versions so that the whole path can be
+	 * validated again once the leaf is locked. If a page is latched by a structure
+	 * modification, the search waits for the latch to be released and starts over.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @param latches - receives the latches of the pages on the path
+	 * @param versions - receives the version stamps of the pages on the path
+	 * @return the id of the leaf page, or of a page another transaction holds a write lock on,
+	 * or null if the tree is empty
+	 * @throws TransactionAbortedException if a latch is not released within LATCH_TIMEOUT
+	 * 
+	 */
+	private BTreePageId descend(TransactionId tid, Map<PageId, Page> dirtypages, Field f,
+			List<OptimisticLatch> latches, List<Long> versions) throws DbException, TransactionAbortedException {
+		initFile();
+		while(true) {
+			latches.clear();
+			versions.clear();
+			OptimisticLatch busy = null;
+			try {
+				Page page = getPageUnlocked(tid, dirtypages, BTreeRootPtrPage.getId(tableid));
+				while(true) {
+					OptimisticLatch latch = latchOf(page);
+					long version = latch.readVersion();
+					if(version == 0) {
+						busy = latch;
+						break;
+					}
+					if(isModifiedByOther(tid, page)) {
+						return (BTreePageId) page.getId();
+					}
+					BTreePageId next = page instanceof BTreeRootPtrPage ?
+							((BTreeRootPtrPage) page).getRootId() : ((BTreeInternalPage) page).findChild(f);
+					if(!latch.validate(version)) {
+						break;
+					}
+					latches.add(latch);
+					versions.add(version);
+					if(next == null || next.pgcateg() != BTreePageId.INTERNAL) {
+						return next;
+					}
+					page = getPageUnlocked(tid, dirtypages, next);
+				}
+			} catch (RuntimeException e) {
+				// a page was modified halfway through reading it
+			}
+			if(busy != null && !busy.await(LATCH_TIMEOUT)) {
+				throw new TransactionAbortedException();
+			}
+		}
+	}
+
+	/**
+	 * @return true if none of the latches has been taken since its version stamp was read
+	 */
+	private static boolean validate(List<OptimisticLatch> latches, List<Long> versions) {
+		for(int i = 0; i < latches.size(); i++) {
+			if(!latches.get(i).validate(versions.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if another transaction holds a write lock on the page or has dirtied it,
+	 * in which case its contents may be uncommitted. Snapshot transactions only see
+	 * committed versions, so this is always false for them.
+	 */
+	boolean isModifiedByOther(TransactionId tid, Page page) {
+		BufferPool bp = Database.getBufferPool();
+		if(bp.isSnapshot(tid)) {
+			return false;
+		}
+		TransactionId writer = bp.exclusiveLockHolder(page.getId());
+		if(writer != null && !writer.equals(tid)) {
+			return true;
+		}
+		TransactionId dirtier = page.isDirty();
+		return dirtier != null && !dirtier.equals(tid);
+	}
+
+	/**
+	 * Fetch a page without locking it, looking in the local cache ("dirtypages") first.
+	 * Only used for pages protected by latches or by the structure latch.
+	 */
+	Page getPageUnlocked(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException {
+		if(dirtypages.containsKey(pid)) {
+			return dirtypages.get(pid);
+		}
+		return Database.getBufferPool().getPageUnlocked(tid, pid);
+	}
+
+	/**
+	 * Acquire the structure latch, giving up after LATCH_TIMEOUT.
+	 * 
+	 * @param exclusive - true to acquire the latch for a reorganization of the whole tree
+	 * @throws TransactionAbortedException if the latch could not be acquired in time
+	 */
+	private void latchStructure(boolean exclusive) throws TransactionAbortedException {
+		Lock latch = exclusive ? structureLatch.writeLock() : structureLatch.readLock();
+		try {
+			if(!latch.tryLock(LATCH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				throw new TransactionAbortedException();
+			}
+		} catch (InterruptedException e) {
+			throw new TransactionAbortedException();
+		}
+	}
+
+	private void unlatchStructure(boolean exclusive) {
+		if(exclusive) {
+			structureLatch.writeLock().unlock();
+		} else {
+			structureLatch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Start a structure modification of transaction tid. Until
+	 * {@link #endStructureModification} is called, every internal page and root pointer
+	 * page it fetches with read-write permission is latched, so optimistic readers see it
+	 * change. Structure modifications run concurrently, ordered by the locks on the pages
+	 * they change, unless one of them is exclusive.
+	 * 
+	 * @param tid - the transaction id
+	 * @param exclusive - true for a reorganization of the whole tree, which waits for the
+	 * other structure modifications to end and keeps new ones from starting
+	 * @throws TransactionAbortedException if the structure latch could not be acquired in time
+	 */
+	void beginStructureModification(TransactionId tid, boolean exclusive) throws TransactionAbortedException {
+		beginStructureModification(tid, tid, exclusive);
+	}
+
+	/**
+	 * Start a structure modification of transaction tid, which is run on behalf of
+	 * transaction owner. If tid is not owner, fetching a page owner holds a conflicting
+	 * lock on aborts the modification instead of waiting for a lock owner never releases
+	 * while the modification runs.
+	 */
+	private void beginStructureModification(TransactionId tid, TransactionId owner, boolean exclusive)
+			throws TransactionAbortedException {
+		latchStructure(exclusive);
+		modificationCount.incrementAndGet();
+		modifications.put(tid, owner);
+	}
+
+	/**
+	 * @return the number of structure modifications started so far. Pages are only added
+	 * to or taken out of the tree, and the header pages only change, in a structure
+	 * modification, so a page layout read while none runs is valid until this changes
+	 */
+	long getModificationCount() {
+		return modificationCount.get();
+	}
+
+	/**
+	 * Finish a structure modification: release the latches of the pages it modified and
+	 * the structure latch.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the modification fetched with read-write permission
+	 * @param failed - true if the modification was interrupted by an exception. Its pages
+	 * are then marked dirty, so that the abort that follows discards them and no descent
+	 * trusts them in the meantime
+	 */
+	void endStructureModification(TransactionId tid, Map<PageId, Page> dirtypages, boolean failed) {
+		modifications.remove(tid);
+		for(Page p : dirtypages.values()) {
+			if(failed) {
+				p.markDirty(true, tid);
+			}
+			OptimisticLatch latch = latchOf(p);
+			if(latch != null) {
+				latch.unlatch();
+			}
+		}
+		unlatchStructure(structureLatch.isWriteLockedByCurrentThread());
+	}
+
+	/**
+	 * Finish a structure modification whose pages are not handed back to the buffer pool
+	 * by an insert or a delete: mark the pages it modified dirty, so that the commit of the
+	 * transaction writes them, and release their latches and the structure latch.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages the modification fetched with read-write permission
+	 */
+	void commitStructureModification(TransactionId tid, Map<PageId, Page> dirtypages) {
+		Database.getBufferPool().cacheDirtyPages(tid, new ArrayList<>(dirtypages.values()));
+		endStructureModification(tid, dirtypages, false);
+	}
+
+	/**
+	 * @return the version latch of an internal or root pointer page, or null for other pages
+	 */
+	private static OptimisticLatch latchOf(Page p) {
+		if(p instanceof BTreeInternalPage) {
+			return ((BTreeInternalPage) p).latch;
+		}
+		if(p instanceof BTreeRootPtrPage) {
+			return ((BTreeRootPtrPage) p).latch;
+		}
+		return null;
 	}
 
 	/**
@@ -259,6 +725,11 @@ public class BTreeFile implements DbFile {
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
 
+		// the right sibling is locked before the header pages, which every split takes, so
+		// that splits of neighbouring leaves lock the leaves from left to right
+		BTreePageId oldRightPageId=page.getRightSiblingId();
+		BTreeLeafPage oldRightPage = oldRightPageId == null ? null : (BTreeLeafPage) getPage(tid,dirtypages,oldRightPageId,Permissions.READ_ONLY);
+
 		//1. create a leafPage
 		BTreeLeafPage newRightPage = (BTreeLeafPage) getEmptyPage(tid,dirtypages,BTreePageId.LEAF);
 
@@ -272,8 +743,6 @@ public class BTreeFile implements DbFile {
 		}
 
 		//3. change the current page right brother pointer to change the right brother left pointer point to the new right page
-		BTreePageId oldRightPageId=page.getRightSiblingId();
-		BTreeLeafPage oldRightPage = oldRightPageId == null ? null : (BTreeLeafPage) getPage(tid,dirtypages,oldRightPageId,Permissions.READ_ONLY);
 		if(oldRightPage != null){
 			oldRightPage.setLeftSiblingId(newRightPage.getId());
 			newRightPage.setRightSiblingId(oldRightPageId);
@@ -288,12 +757,16 @@ public class BTreeFile implements DbFile {
 
 		//5. change the page which point the current page
 		BTreeInternalPage parent = getParentWithEmptySlots(tid,dirtypages,page.getParentId(),field);
-		Field mid = newRightPage.iterator().next().getField(keyField);
+		Field mid = BTreeInternalPage.separator(getKey(page.reverseIterator().next()),
+				getKey(newRightPage.iterator().next()));
 		BTreeEntry entry = new BTreeEntry(mid, page.getId(), newRightPage.getId());
 		parent.insertEntry(entry);
-		dirtypages.put(parent.getId(),page);
+		dirtypages.put(parent.getId(),parent);
 
-		updateParentPointers(tid,dirtypages,parent);
+		// the other children of the parent already point at it: locking them would wait
+		// for the splits of those leaves, which wait for the header pages this one holds
+		page.setParentId(parent.getId());
+		newRightPage.setParentId(parent.getId());
 
 		if(field.compare(Op.GREATER_THAN_OR_EQ,mid)){
 			return newRightPage;
@@ -340,16 +813,17 @@ public class BTreeFile implements DbFile {
 		BTreeInternalPage newRightPage = (BTreeInternalPage) getEmptyPage(tid,dirtypages,BTreePageId.INTERNAL);
 		Iterator<BTreeEntry> it = page.reverseIterator();
 
-		//2.
-		int tupleNum = page.getNumEntries();
-		for(int i=0; i<tupleNum/2; i++){
-			BTreeEntry entry = it.next();
+		//2. move half of the entries, by size, as keys may have variable length
+		int half = page.getUsedSpace() / 2;
+		BTreeEntry entry = it.next();
+		while(newRightPage.getUsedSpace() + page.getEntrySize(entry.getKey()) <= half){
 			page.deleteKeyAndRightChild(entry);
 			newRightPage.insertEntry(entry);
+			entry = it.next();
 		}
 
 		//3.
-		BTreeEntry mid = it.next();
+		BTreeEntry mid = entry;
 		page.deleteKeyAndRightChild(mid);
 		mid.setLeftChild(page.getId());
 		mid.setRightChild(newRightPage.getId());
@@ -456,7 +930,7 @@ public class BTreeFile implements DbFile {
 	 * @throws DbException
 	 * @throws TransactionAbortedException
 	 */
-	private void updateParentPointers(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page)
+	void updateParentPointers(TransactionId tid, Map<PageId, Page> dirtypages, BTreeInternalPage page)
 			throws DbException, TransactionAbortedException{
 		Iterator<BTreeEntry> it = page.iterator();
 		BTreePageId pid = page.getId();
@@ -495,14 +969,36 @@ public class BTreeFile implements DbFile {
 			return dirtypages.get(pid);
 		}
 		else {
+			TransactionId owner = modifications.get(tid);
+			if(owner != null && !owner.equals(tid) && hasConflictingLock(owner, pid, perm)) {
+				// the transaction the modification runs for would never release it
+				throw new TransactionAbortedException();
+			}
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
+				OptimisticLatch latch = latchOf(p);
+				if(latch != null && owner != null) {
+					// invalidate optimistic readers until the structure modification ends
+					latch.latch();
+				}
 			}
 			return p;
 		}
 	}
 
+	/**
+	 * @return true if a lock of transaction tid on a page keeps another transaction from
+	 * locking it with permission perm
+	 */
+	private static boolean hasConflictingLock(TransactionId tid, PageId pid, Permissions perm) {
+		BufferPool bp = Database.getBufferPool();
+		if(perm == Permissions.READ_WRITE) {
+			return bp.holdsLock(tid, pid);
+		}
+		return tid.equals(bp.exclusiveLockHolder(pid));
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -516,28 +1012,209 @@ public class BTreeFile implements DbFile {
 	public List<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
+		Field key = getKey(t);
+		boolean separately = true;
+
+		while(true) {
+			// find and lock the left-most leaf page corresponding to the key field; if it
+			// has room, no internal page needs to be locked
+			Set<PageId> locked = new HashSet<>();
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key, locked);
+			if(leafPage != null && leafPage.getNumEmptySlots() > 0) {
+				leafPage.insertTuple(t);
+				return new ArrayList<>(dirtypages.values());
+			}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+			// otherwise the tree structure changes. If this transaction has not used the
+			// leaf page yet, split it in a transaction of its own and look again
+			if(separately && leafPage != null && locked.contains(leafPage.getId())) {
+				dirtypages.remove(leafPage.getId());
+				Database.getBufferPool().unsafeReleasePage(tid, leafPage.getId());
+				separately = splitLeafPage(tid, key);
+				continue;
+			}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			// create the root or split the leaf page as part of this transaction
+			beginStructureModification(tid, false);
+			boolean done = false;
+			try {
+				if(leafPage == null) {
+					leafPage = createRootPage(tid, dirtypages);
+				}
+				if(leafPage.getNumEmptySlots() == 0) {
+					leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+				}
+
+				// insert the tuple into the leaf page
+				leafPage.insertTuple(t);
+				done = true;
+				return new ArrayList<>(dirtypages.values());
+			} finally {
+				endStructureModification(tid, dirtypages, !done);
+			}
+		}
+	}
+
+	/**
+	 * Split the leaf page a key belongs to if it is full, in a transaction of its own
+	 * which commits before this method returns, so that the internal pages the split
+	 * changes are not locked for the rest of the inserting transaction. A split only
+	 * moves tuples between pages, so it does not need to be undone if the inserting
+	 * transaction aborts.
+	 * 
+	 * @param owner - the inserting transaction, which holds no lock on the leaf page
+	 * @param key - the key of the tuple to insert
+	 * @return false if the split was abandoned, because owner holds a lock on one of the
+	 * pages it changes or a lock could not be acquired; the insert then splits the leaf
+	 * page as part of its own transaction
+	 */
+	private boolean splitLeafPage(TransactionId owner, Field key)
+			throws DbException, IOException, TransactionAbortedException {
+		Transaction split = new Transaction();
+		split.start();
+		TransactionId tid = split.getId();
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		boolean done = false;
+		try {
+			beginStructureModification(tid, owner, false);
+			try {
+				BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key, null);
+				if(leafPage != null && leafPage.getNumEmptySlots() == 0) {
+					splitLeafPage(tid, dirtypages, leafPage, key);
+				}
+				done = true;
+			} catch (TransactionAbortedException e) {
+				// abandoned, see below
+			} finally {
+				if(done) {
+					commitStructureModification(tid, dirtypages);
+				} else {
+					endStructureModification(tid, dirtypages, true);
+				}
+			}
+		} finally {
+			if(done) {
+				split.commit();
+			} else {
+				split.abort();
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * Point the root pointer of an empty tree at its first leaf page, as part of a
+	 * structure modification.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the new root page, locked with read-write permission
+	 */
+	private BTreeLeafPage createRootPage(TransactionId tid, Map<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		BTreePageId rootId = rootPtr.getRootId();
+		if(rootId == null) { // point the root pointer at the empty leaf page created with the file
+			rootId = new BTreePageId(tableid, 1, BTreePageId.LEAF);
 			rootPtr.setRootId(rootId);
 		}
+		return findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, null);
+	}
+
+	/** Default fraction of a page filled by {@link #bulkLoad} */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+	/** Default number of leaf pages worth of tuples sorted in memory by {@link #bulkLoad} */
+	public static final int DEFAULT_SORT_PAGES = 256;
+
+	/**
+	 * Load an empty B+ tree with the tuples of source, as part of the specified
+	 * transaction. Equivalent to
+	 * {@link #bulkLoad(TransactionId, OpIterator, double, int) bulkLoad(tid, source, fillFactor, DEFAULT_SORT_PAGES)}.
+	 */
+	public void bulkLoad(TransactionId tid, OpIterator source, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		bulkLoad(tid, source, fillFactor, DEFAULT_SORT_PAGES);
+	}
+
+	/**
+	 * Load an empty B+ tree with the tuples of source, in any order, as part of
+	 * the specified transaction. Rather than inserting the tuples one by one, the
+	 * tuples are sorted and the pages of the tree are built bottom-up by a
+	 * {@link BTreeBulkLoader}: each page is written once, directly to the end of
+	 * the file, filled up to fillFactor of its capacity. The tree then only has to
+	 * be pointed at its new root.
+	 * <p>
+	 * The root pointer page is locked with read-write permission and marked dirty
+	 * for the whole load, so other transactions wait for this one to finish before
+	 * they use the tree. The new pages are forced to disk before the root pointer
+	 * page is changed, and only the changes to the root pointer and header pages
+	 * are logged: if the transaction aborts, the tree is empty again and the new
+	 * pages are left in the file, unused.
+	 * 
+	 * @param tid - the transaction id
+	 * @param source - the tuples to load, which must match the TupleDesc of the tree
+	 * @param fillFactor - the fraction of the capacity of a page to fill, between 0.5 and 1
+	 * @param sortPages - the number of leaf pages worth of tuples to sort in memory at once
+	 * @throws DbException if the tree is not empty, or a tuple does not match its TupleDesc
+	 */
+	public void bulkLoad(TransactionId tid, OpIterator source, double fillFactor, int sortPages)
+			throws DbException, IOException, TransactionAbortedException {
+		if(fillFactor < 0.5 || fillFactor > 1) {
+			throw new IllegalArgumentException("fill factor " + fillFactor + " is not between 0.5 and 1");
+		}
+		initFile();
+
+		// lock the root pointer page and check that the tree is empty
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId oldRootId;
+		beginStructureModification(tid, false);
+		try {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			oldRootId = rootPtr.getRootId();
+			if(oldRootId == null) {
+				oldRootId = new BTreePageId(tableid, 1, BTreePageId.LEAF);
+			}
+			if(oldRootId.pgcateg() != BTreePageId.LEAF
+					|| ((BTreeLeafPage) getPage(tid, dirtypages, oldRootId, Permissions.READ_ONLY)).getNumTuples() > 0) {
+				throw new DbException("bulk load into a tree that is not empty");
+			}
+		} finally {
+			// dirty pages cannot be evicted, and descents of other transactions wait for them
+			commitStructureModification(tid, dirtypages);
 		}
 
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+		// build the tree after the last page of the file
+		releaseSparePages();
+		int firstPage = numPages() + 1;
+		long oldLength = f.length();
+		BTreeBulkLoader loader = new BTreeBulkLoader(this, fillFactor, sortPages);
+		BTreePageId newRootId;
+		try {
+			loader.sort(source);
+			newRootId = loader.write(firstPage);
+		} catch(DbException | IOException | TransactionAbortedException | RuntimeException e) {
+			try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+				rf.setLength(oldLength);
+			}
+			throw e;
+		} finally {
+			loader.close();
+		}
+		if(newRootId == null) {
+			return; // nothing to load
+		}
 
-        return new ArrayList<>(dirtypages.values());
+		// point the root pointer at the new root, and free the old one
+		dirtypages = new HashMap<>();
+		beginStructureModification(tid, false);
+		try {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setRootId(newRootId);
+			setEmptyPage(tid, dirtypages, oldRootId.getPageNumber());
+		} finally {
+			commitStructureModification(tid, dirtypages);
+		}
 	}
 	
 	/**
@@ -618,26 +1295,79 @@ public class BTreeFile implements DbFile {
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
+			// steal some tuples from it, once the parent has room for a longer key
 			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
+			else if(!parent.canUpdateKeys()) {
+				splitParent(tid, dirtypages, page, parent, leftEntry);
+			}
 			else {
-				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
+				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
+				handleShorterParentKey(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {	
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
+			// steal some tuples from it, once the parent has room for a longer key
 			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
+			else if(!parent.canUpdateKeys()) {
+				splitParent(tid, dirtypages, page, parent, rightEntry);
+			}
 			else {
-				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
+				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
+				handleShorterParentKey(tid, dirtypages, parent);
 			}
 		}
 	}
+
+	/**
+	 * Split the parent of a page which is less than half full, as it has no room for the
+	 * longer key redistributing the page and its sibling may give their entry, then
+	 * handle the page again under its new parent.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the page which is less than half full
+	 * @param parent - the parent of the page
+	 * @param entry - the entry in the parent pointing to the page and its sibling
+	 * @see #splitInternalPage(TransactionId, Map, BTreeInternalPage, Field)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void splitParent(TransactionId tid, Map<PageId, Page> dirtypages, BTreePage page,
+			BTreeInternalPage parent, BTreeEntry entry)
+			throws DbException, IOException, TransactionAbortedException {
+		splitInternalPage(tid, dirtypages, parent, entry.getKey());
+		handleMinOccupancyPage(tid, dirtypages, page);
+	}
+
+	/**
+	 * Handle the case when the parent of two pages which redistributed their
+	 * tuples/entries becomes less than half full, as the entry pointing to both was
+	 * given a shorter variable-length key.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parent - the parent whose entry was updated
+	 * @see #handleMinOccupancyPage(TransactionId, Map, BTreePage)
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void handleShorterParentKey(TransactionId tid, Map<PageId, Page> dirtypages,
+			BTreeInternalPage parent) throws DbException, IOException, TransactionAbortedException {
+		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
+		if(parent.getParentId().pgcateg() != BTreePageId.ROOT_PTR && parent.getNumEmptySlots() > maxEmptySlots) {
+			handleMinOccupancyPage(tid, dirtypages, parent);
+		}
+	}
 	
 	/**
 	 * Steal tuples from a sibling and copy them to the given page so that both pages are at least
@@ -674,8 +1404,10 @@ public class BTreeFile implements DbFile {
 			curTuplesNum++;
 		}
 
-		Tuple mid = it.next();
-		entry.setKey(mid.getField(keyField));
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(BTreeInternalPage.separator(getKey(left.reverseIterator().next()),
+				getKey(right.iterator().next())));
 		parent.updateEntry(entry);
 
 	}
@@ -707,27 +1439,36 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 		
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
-			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the left sibling is at minimum occupancy, or both pages fit in one,
+			// merge with it. Otherwise steal some entries from it, once the parent has
+			// room for a longer key
+			if(leftSibling.canMergeWith(page, leftEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
+			else if(!parent.canUpdateKeys()) {
+				splitParent(tid, dirtypages, page, parent, leftEntry);
+			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				handleShorterParentKey(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
-			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// if the right sibling is at minimum occupancy, or both pages fit in one,
+			// merge with it. Otherwise steal some entries from it, once the parent has
+			// room for a longer key
+			if(rightSibling.canMergeWith(page, rightEntry.getKey())) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
+			else if(!parent.canUpdateKeys()) {
+				splitParent(tid, dirtypages, page, parent, rightEntry);
+			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				handleShorterParentKey(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -758,23 +1499,19 @@ public class BTreeFile implements DbFile {
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
 
-		//1.get the tuple number need to steal
+		//1.get the size to steal, as keys may have variable length
 		Iterator<BTreeEntry> it = leftSibling.reverseIterator();
-		int curEntriesNum = page.getNumEntries();
-		int siblindEntriesNum = leftSibling.getNumEntries();
-		int targetEntriesNum = (curEntriesNum+siblindEntriesNum)>>1;
+		int half = (page.getUsedSpace() + leftSibling.getUsedSpace()) / 2;
 
 		//2.steal the parent entry
 		BTreeEntry entry = it.next();
 		BTreeEntry mid = new BTreeEntry(parentEntry.getKey(),entry.getRightChild(),page.iterator().next().getLeftChild());
 		page.insertEntry(mid);
-		curEntriesNum++;
 
 		//3.steal the left sibling entry to the current page
-		while(curEntriesNum < targetEntriesNum){
+		while(page.getUsedSpace() + page.getEntrySize(entry.getKey()) <= half){
 			leftSibling.deleteKeyAndRightChild(entry);
 			page.insertEntry(entry);
-			curEntriesNum++;
 			entry = it.next();
 		}
 
@@ -817,20 +1554,16 @@ public class BTreeFile implements DbFile {
 		// pointers of all children in the entries that were moved.
 
 		Iterator<BTreeEntry> it = rightSibling.iterator();
-		int curEntriesNum = page.getNumEntries();
-		int siblingEntriesNum = rightSibling.getNumEntries();
-		int targetEntriesNum = (curEntriesNum + siblingEntriesNum) / 2;
+		int half = (page.getUsedSpace() + rightSibling.getUsedSpace()) / 2;
 
 		BTreeEntry entry = it.next();
 		BTreeEntry mid = new BTreeEntry(parentEntry.getKey(), page.reverseIterator().next().getRightChild(), entry.getLeftChild());
 		page.insertEntry(mid);
-		curEntriesNum++;
 
-		while(curEntriesNum < targetEntriesNum){
+		while(page.getUsedSpace() + page.getEntrySize(entry.getKey()) <= half){
 			rightSibling.deleteKeyAndLeftChild(entry);
 			page.insertEntry(entry);
 			entry = it.next();
-			curEntriesNum++;
 		}
 
 
@@ -990,7 +1723,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -1034,7 +1767,14 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
-			handleMinOccupancyPage(tid, dirtypages, page);
+			beginStructureModification(tid, false);
+			boolean done = false;
+			try {
+				handleMinOccupancyPage(tid, dirtypages, page);
+				done = true;
+			} finally {
+				endStructureModification(tid, dirtypages, !done);
+			}
 		}
 
         return new ArrayList<>(dirtypages.values());
@@ -1052,26 +1792,39 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
+		initFile();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 * 
+	 * @throws DbException if the file cannot be written
+	 */
+	synchronized void initFile() throws DbException {
+		if(f.length() == 0) {
+			// create the root pointer page and the root page
+			try (BufferedOutputStream bw = new BufferedOutputStream(
+					new FileOutputStream(f, true))) {
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
 				bw.write(emptyRootPtrData);
 				bw.write(emptyLeafData);
-				bw.close();
+			} catch (IOException e) {
+				throw new DbException("could not initialize " + f + ": " + e.getMessage());
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
-	 * Creates a new page if none of the existing pages are empty.
+	 * Creates a new page if none of the existing pages are empty. The search of the header
+	 * pages starts from the first one which may have an empty slot, and new pages are taken
+	 * from the spare pages at the end of the file, which is extended by
+	 * {@link #EXTEND_PAGES} pages at a time. The spare pages are marked on disk, so the ones
+	 * left when the database shuts down or crashes are found again when the file is opened.
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
@@ -1089,10 +1842,18 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			// skip the header pages known to have no empty slot
 			int headerPageCount = 0;
+			synchronized(headerPages) {
+				if(!headerPages.isEmpty()) {
+					headerPageCount = Math.min(firstFreeHeader, headerPages.size() - 1);
+					headerId = new BTreePageId(tableid, headerPages.get(headerPageCount), BTreePageId.HEADER);
+				}
+			}
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
 			// try to find a header page with an empty slot
 			while(headerPage != null && headerPage.getEmptySlot() == -1) {
+				noteHeaderPage(dirtypages, headerPage, headerPageCount, true);
 				headerId = headerPage.getNextPageId();
 				if(headerId != null) {
 					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
@@ -1105,6 +1866,7 @@ public class BTreeFile implements DbFile {
 
 			// if headerPage is not null, it must have an empty slot
 			if(headerPage != null) {
+				noteHeaderPage(dirtypages, headerPage, headerPageCount, false);
 				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 				int emptySlot = headerPage.getEmptySlot();
 				headerPage.markSlotUsed(emptySlot, true);
@@ -1116,18 +1878,63 @@ public class BTreeFile implements DbFile {
 		// or there are no free slots
 		if(headerId == null) {		
 			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				if(spares() == 0) {
+					// extend the file by several empty pages at once, marked as spare
+					byte[] data = new byte[EXTEND_PAGES * BufferPool.getPageSize()];
+					for(int i = 0; i < EXTEND_PAGES; i++) {
+						Arrays.fill(data, i * BufferPool.getPageSize(), i * BufferPool.getPageSize() + 4, (byte) SPARE_MARK);
+					}
+					try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+						rf.seek(rf.length());
+						rf.write(data);
+					}
+					sparePages = EXTEND_PAGES;
+				}
+				sparePages--;
 				emptyPageNo = numPages();
 			}
 		}
 
 		return emptyPageNo; 
 	}
+
+	/**
+	 * Record what a search of the header pages found out about a header page, unless the
+	 * page is modified by an uncommitted transaction, which could still abort.
+	 * 
+	 * @param dirtypages - the list of dirty pages of the current operation
+	 * @param headerPage - the header page
+	 * @param index - the position of the header page in the chain
+	 * @param full - true if the header page has no empty slot
+	 */
+	private void noteHeaderPage(Map<PageId, Page> dirtypages, BTreeHeaderPage headerPage, int index, boolean full) {
+		if(headerPage.isDirty() != null || dirtypages.containsKey(headerPage.getId())) {
+			return;
+		}
+		synchronized(headerPages) {
+			if(index == headerPages.size()) {
+				headerPages.add(headerPage.getId().getPageNumber());
+			}
+			if(full && index == firstFreeHeader) {
+				firstFreeHeader++;
+			}
+		}
+	}
+
+	/**
+	 * Give the spare pages at the end of the file back, by truncating it after the last page
+	 * which has been handed out.
+	 * 
+	 * @throws IOException if the file cannot be truncated
+	 */
+	private synchronized void releaseSparePages() throws IOException {
+		if(spares() > 0) {
+			try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+				rf.setLength(rf.length() - (long) sparePages * BufferPool.getPageSize());
+			}
+			sparePages = 0;
+		}
+	}
 	
 	/**
 	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
@@ -1149,17 +1956,38 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
-		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
-		
+		return newPage(tid, dirtypages, new BTreePageId(tableid, emptyPageNo, pgcateg));
+	}
+
+	/**
+	 * Wipe the specified page on disk and in the cache and return a clean copy locked with
+	 * read-write permission. The page must not be part of the tree, and must already be
+	 * marked as used in the header pages.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param newPageId - the id of the new page
+	 * @return the new empty page
+	 * @see #getEmptyPage(TransactionId, Map, int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	Page newPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId newPageId)
+			throws DbException, IOException, TransactionAbortedException {
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
+		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (newPageId.getPageNumber() - 1) * BufferPool.getPageSize());
 		rf.write(BTreePage.createEmptyPageData());
 		rf.close();
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		Page old = dirtypages.remove(newPageId);
+		if(old != null && latchOf(old) != null) {
+			latchOf(old).unlatch();
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1206,6 +2034,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId headerId = rootPtr.getHeaderId();
 		BTreePageId prevId = null;
 		int headerPageCount = 0;
+		int headerIndex = emptyPageNo / BTreeHeaderPage.getNumSlots();
 
 		// if there are no header pages, create the first header page and update
 		// the header pointer in the BTreeRootPtrPage
@@ -1218,10 +2047,20 @@ public class BTreeFile implements DbFile {
 			rootPtr.setHeaderId(headerId);
 		}
 
-		// iterate through all the existing header pages to find the one containing the slot
+		// skip to the last known header page up to the one containing the slot
+		// corresponding to emptyPageNo
+		synchronized(headerPages) {
+			if(!headerPages.isEmpty()) {
+				headerPageCount = Math.min(headerIndex, headerPages.size() - 1);
+				headerId = new BTreePageId(tableid, headerPages.get(headerPageCount), BTreePageId.HEADER);
+			}
+		}
+
+		// iterate through the remaining header pages to find the one containing the slot
 		// corresponding to emptyPageNo
-		while(headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		while(headerId != null && headerPageCount < headerIndex) {
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			noteHeaderPage(dirtypages, headerPage, headerPageCount, false);
 			prevId = headerId;
 			headerId = headerPage.getNextPageId();
 			headerPageCount++;
@@ -1229,18 +2068,23 @@ public class BTreeFile implements DbFile {
 
 		// at this point headerId should either be null or set with 
 		// the headerPage containing the slot corresponding to emptyPageNo.
-		// Add header pages until we have one with a slot corresponding to emptyPageNo
-		while((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+		// If it is null, the header page at headerPageCount does not exist yet:
+		// add header pages until we have one with a slot corresponding to emptyPageNo
+		while(headerId == null) {
 			BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 			
 			BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
-			headerId = headerPage.getId();
 			headerPage.init();
 			headerPage.setPrevPageId(prevId);
-			prevPage.setNextPageId(headerId);
+			prevPage.setNextPageId(headerPage.getId());
 			
-			headerPageCount++;
-			prevId = headerId;
+			if(headerPageCount < headerIndex) {
+				headerPageCount++;
+				prevId = headerPage.getId();
+			}
+			else {
+				headerId = headerPage.getId();
+			}
 		}
 
 		// now headerId should be set with the headerPage containing the slot corresponding to 
@@ -1248,13 +2092,90 @@ public class BTreeFile implements DbFile {
 		BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
 		int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
 		headerPage.markSlotUsed(emptySlot, false);
+		synchronized(headerPages) {
+			firstFreeHeader = Math.min(firstFreeHeader, headerIndex);
+		}
+	}
+
+	/**
+	 * Mark a page in this BTreeFile as used if a header page marks it as empty, so that it
+	 * can be made a page of the tree (see {@link #newPage}) or cut off the end of the file
+	 * (see {@link #truncate}). Pages which no header page covers are left alone.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pageNo - the page number of the page
+	 * @see #setEmptyPage(TransactionId, Map, int)
+	 * 
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	void takeEmptyPage(TransactionId tid, Map<PageId, Page> dirtypages, int pageNo)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		int headerIndex = pageNo / BTreeHeaderPage.getNumSlots();
+		for(int i = 0; headerId != null && i < headerIndex; i++) {
+			headerId = ((BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY)).getNextPageId();
+		}
+		if(headerId != null) {
+			int slot = pageNo - headerIndex * BTreeHeaderPage.getNumSlots();
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			if(!headerPage.isSlotUsed(slot)) {
+				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+				headerPage.markSlotUsed(slot, true);
+			}
+		}
+	}
+
+	/**
+	 * Forget which header pages earlier searches went through, after a header page was moved
+	 * to another page of the file.
+	 */
+	void forgetHeaderPages() {
+		synchronized(headerPages) {
+			headerPages.clear();
+			firstFreeHeader = 0;
+		}
+	}
+
+	/**
+	 * Truncate the file after the specified page, giving back the pages after it and the
+	 * spare pages, and drop the pages after it from the buffer pool. None of these pages may
+	 * be part of the tree or marked as empty by a header page, and no snapshot transaction
+	 * may still read them: the caller holds the structure latch exclusively
+	 * (see {@link #beginStructureModification}).
+	 * 
+	 * @param lastPage - the page number of the last page to keep
+	 * @return the number of pages given back
+	 * @throws IOException if the file cannot be truncated
+	 */
+	synchronized int truncate(int lastPage) throws IOException {
+		int oldPages = numPages() + spares();
+		if(lastPage >= oldPages) {
+			return 0;
+		}
+		try (RandomAccessFile rf = new RandomAccessFile(f, "rw")) {
+			rf.setLength(BTreeRootPtrPage.getPageSize() + (long) lastPage * BufferPool.getPageSize());
+		}
+		sparePages = 0;
+		for(int pageNo = lastPage + 1; pageNo <= oldPages; pageNo++) {
+			for(int pgcateg : new int[]{ BTreePageId.INTERNAL, BTreePageId.LEAF, BTreePageId.HEADER }) {
+				Database.getBufferPool().discardPage(new BTreePageId(tableid, pageNo, pgcateg));
+			}
+		}
+		return oldPages - lastPage;
 	}
 
 	/**
 	 * get the specified tuples from the file based on its IndexPredicate value on
 	 * behalf of the specified transaction. This method will acquire a read lock on
 	 * the affected pages of the file, and may block until the lock can be
-	 * acquired.
+	 * acquired. If this B+ tree is keyed on several fields, the value of the
+	 * predicate may be a {@link CompositeField} with fewer components than the keys:
+	 * the tuples whose keys start with all but its last component, and compare with
+	 * its last component by the operation of the predicate, are returned.
 	 * 
 	 * @param tid - the transaction id
 	 * @param ipred - the index predicate value to filter on
@@ -1286,6 +2207,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
 
+	/** number of leaves read ahead of curp */
+	int ahead = 0;
+
 	final TransactionId tid;
 	final BTreeFile f;
 
@@ -1300,19 +2224,19 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page
+	 * Open this iterator by getting an iterator on the first leaf page, and start
+	 * reading the next leaves ahead
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, null);
+		it = curp == null ? null : curp.iterator();
+		ahead = curp == null ? 0 : f.prefetchLeaves(tid, curp, null);
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
-	 * from the next page by following the right sibling pointer.
+	 * from the next page by following the right sibling pointer. Once the last leaf
+	 * read ahead has been reached, the next ones are read ahead.
 	 * 
 	 * @return the next tuple, or null if none exists
 	 */
@@ -1329,6 +2253,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if (--ahead <= 0)
+					ahead = f.prefetchLeaves(tid, curp, null);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1371,8 +2297,25 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	final BTreeFile f;
 	final IndexPredicate ipred;
 
+	/** the leading components of a composite predicate value, which the keys must be
+	 * equal to, or null */
+	final CompositeField leading;
+
+	/** the largest key the predicate may match, or null if there is none */
+	final Field bound;
+
+	/** number of leaves read ahead of curp */
+	int ahead = 0;
+
 	/**
-	 * Constructor for this iterator
+	 * Constructor for this iterator. A predicate on a {@link CompositeField} with k
+	 * components matches the keys whose first k - 1 components are equal to the ones
+	 * of the predicate and whose k-th component compares with the last one of the
+	 * predicate by its operation, so that only the leaves of this range are read.
+	 * <p>
+	 * The leaves to the right of the current one are read ahead, up to the bound of
+	 * the range, from the start for an open range and from the second leaf for a range
+	 * on equal keys, which usually fits in one leaf.
 	 * @param f - the BTreeFile containing the tuples
 	 * @param tid - the transaction id
 	 * @param ipred - the predicate to filter on
@@ -1381,6 +2324,10 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.leading = CompositeField.leading(ipred.getField());
+		Op op = ipred.getOp();
+		this.bound = op == Op.EQUALS || op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ
+				? ipred.getField() : leading;
 	}
 
 	/**
@@ -1388,17 +2335,34 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			curp = f.findLeafPage(tid, ipred.getField());
+		}
+		else {
+			// null (the first leaf) unless the keys share leading components
+			curp = f.findLeafPage(tid, leading);
+		}
+		if(curp == null) {
+			it = null;
+		}
+		else if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
+			// skip the smaller keys on the first page
+			it = curp.iterator(Op.GREATER_THAN_OR_EQ, ipred.getField());
+		}
+		else if(ipred.getOp() == Op.GREATER_THAN) {
+			it = curp.iterator(Op.GREATER_THAN, ipred.getField());
+		}
+		else if(leading != null) {
+			it = curp.iterator(Op.GREATER_THAN_OR_EQ, leading);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			it = curp.iterator();
+		}
+		ahead = 0;
+		if(curp != null && ipred.getOp() != Op.EQUALS && leading == null) {
+			ahead = f.prefetchLeaves(tid, curp, bound);
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1414,7 +2378,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = f.getKey(t);
+				if (leading != null && key.compare(Op.GREATER_THAN, leading)) {
+					// past the keys starting with the leading components
+					return null;
+				}
+				else if (key.compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1423,7 +2392,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
@@ -1438,6 +2407,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				if(--ahead <= 0) {
+					ahead = f.prefetchLeaves(tid, curp, bound);
+				}
 				it = curp.iterator();
 			}
 		}
@@ -113,7 +113,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private final int keyField;
+		private final int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -121,7 +121,16 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] {keyField});
+		}
+
+		/** 
+		 * Construct a TupleComparator sorting tuples lexicographically on several fields
+		 * 
+		 * @param keyFields - the indexes of the fields the tuples are keyed on, in order
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields.clone();
 		}
 
 		/**
@@ -130,11 +139,13 @@ public class BTreeFileEncoder {
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
+			Field k1 = CompositeField.key(t1, keyFields);
+			Field k2 = CompositeField.key(t2, keyFields);
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
+			if(k1.compare(Op.LESS_THAN, k2)) {
 				cmp = -1;
 			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
+			else if(k1.compare(Op.GREATER_THAN, k2)) {
 				cmp = 1;
 			}
 			return cmp;
@@ -503,6 +514,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] {keyField});
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage of a
+	 * B+ tree keyed on several fields
+	 * 
+	 * @param tuples - the set of tuples
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields in each tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on, in order
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -551,7 +580,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		tuples.sort(new TupleComparator(keyField));
+		tuples.sort(new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -621,7 +650,31 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, new Type[] {keyType}, childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage of
+	 * a B+ tree keyed on several fields, whose keys are {@link CompositeField}s
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keyTypes - the types of the key fields, in order
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
+			Type[] keyTypes, int childPageCategory)
+					throws IOException {
+		if(keyTypes.length == 1 && BTreeInternalPage.isVariableLength(keyTypes[0])) {
+			return convertToVariableLengthInternalPage(entries, npagebytes, keyTypes[0], childPageCategory);
+		}
+		int keyLen = 0;
+		for(Type keyType : keyTypes) {
+			keyLen += keyType.getLen();
+		}
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -670,7 +723,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -694,6 +747,41 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * with variable-length keys. As many entries are written as would fit with keys
+	 * of maximum length.
+	 * 
+	 * @see #convertToInternalPage
+	 */
+	private static byte[] convertToVariableLengthInternalPage(List<BTreeEntry> entries, int npagebytes,
+			Type keyType, int childPageCategory)
+					throws IOException {
+		// pointerbytes: parent pointer, child page category, number of entries, first child pointer
+		int pointerbytes = 2 * BTreeInternalPage.INDEX_SIZE + 1 + 2;
+		int nentries = (npagebytes - pointerbytes) / (1 + Type.STRING_LEN + BTreeInternalPage.INDEX_SIZE);
+		int entrycount = Math.min(entries.size(), nentries);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+		dos.writeShort(entrycount);
+
+		entries.sort(new EntryComparator());
+		dos.writeInt(entries.get(0).getLeftChild().getPageNumber());
+		for(int e = 0; e < entrycount; e++) {
+			String key = ((StringField) entries.get(e).getKey()).getValue();
+			dos.writeByte(key.length());
+			dos.writeBytes(key);
+			dos.writeInt(entries.get(e).getRightChild().getPageNumber());
+		}
+
+		// pad the rest of the page with zeroes
+		dos.write(new byte[npagebytes - dos.size()]);
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -27,9 +27,15 @@ public class BTreeHeaderPage implements Page {
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
 	final BTreePageId pid;
-	final byte[] header;
 	final int numSlots;
 
+	/** the slots of the header, 64 to a word: bit j of word i is slot i*64 + j.
+	 * The bits after the last slot are set, so they are never found empty */
+	private final long[] words;
+
+	/** no slot of the words before this one is empty */
+	private int firstFreeWord = 0;
+
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
@@ -64,10 +70,12 @@ public class BTreeHeaderPage implements Page {
 			e.printStackTrace();
 		}
 
-		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		// allocate and read the header slots of this page, as little-endian words
+		words = new long[(numSlots + 63) / 64];
+		for (int i=0; i<getHeaderSize(); i++)
+			words[i / 8] |= (dis.readByte() & 0xFFL) << (i % 8 * 8);
+		if (numSlots % 64 != 0)
+			words[words.length - 1] |= -1L << (numSlots % 64);
 
 		dis.close();
 
@@ -78,7 +86,8 @@ public class BTreeHeaderPage implements Page {
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
-        Arrays.fill(header, (byte) 0xFF);
+        Arrays.fill(words, -1L);
+        firstFreeWord = words.length;
 	}
 
 	/**
@@ -160,9 +169,9 @@ public class BTreeHeaderPage implements Page {
 		}
 
 		// create the header of the page
-        for (byte b : header) {
+        for (int i = 0; i < getHeaderSize(); i++) {
             try {
-                dos.writeByte(b);
+                dos.writeByte((int) (words[i / 8] >>> (i % 8 * 8)));
             } catch (IOException e) {
                 // this really shouldn't happen
                 e.printStackTrace();
@@ -277,38 +286,33 @@ public class BTreeHeaderPage implements Page {
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
 	public boolean isSlotUsed(int i) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return (words[i / 64] & (1L << i)) != 0;
 	}
 
 	/**
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
 		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
 		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+			words[i / 64] |= 1L << i;
+		else {
+			words[i / 64] &= ~(1L << i);
+			firstFreeWord = Math.min(firstFreeWord, i / 64);
+		}
 	}
 
 	/**
-	 * get the index of the first empty slot
+	 * get the index of the first empty slot. The slots are scanned a word of 64 at a time,
+	 * starting from the first word which may have an empty slot
 	 * @return the index of the first empty slot or -1 if none exists
 	 */
 	public int getEmptySlot() {
-		for (int i=0; i<header.length; i++) {
-			if((int) header[i] != 0xFF) {
-				for(int j = 0; j < 8; j++) {
-					if(!isSlotUsed(i*8 + j)) {
-						return i*8 + j;
-					}
-				}
-			}
+		while (firstFreeWord < words.length) {
+			long free = ~words[firstFreeWord];
+			if (free != 0)
+				return firstFreeWord * 64 + Long.numberOfTrailingZeros(free);
+			firstFreeWord++;
 		}
 		return -1;
 	}
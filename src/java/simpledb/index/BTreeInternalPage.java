@@ -13,6 +13,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -23,10 +24,15 @@ import simpledb.storage.RecordId;
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	/** bytes of a page with variable-length keys used by the parent pointer, the
+	 * child page category, the number of entries and the first child pointer */
+	private static final int VARIABLE_EXTRA_BYTES = 2 * INDEX_SIZE + 1 + 2;
+
 	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
 	private final int numSlots;
+	private final boolean variableLength;
 	
 	private int childCategory; // either leaf or internal
 
@@ -43,7 +49,7 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || (getMaxEntries() - getNumEmptySlots() >= getMaxEntries() / 2);
 	}
 	
 	/**
@@ -62,6 +68,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages of a B+ tree keyed on a string field store their keys with variable
+	 * length instead, see {@link #isVariableLength(Type)}: after the parent pointer
+	 * and the child page category come the number of entries (2 bytes) and the first
+	 * child pointer, followed by each entry in key order: the length of its key (1
+	 * byte), the characters of the key, and its right child pointer. Such a page holds
+	 * as many entries as fit in its bytes, so short keys give it a larger fanout.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -71,8 +83,26 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree keyed on several fields, whose keys are
+	 * {@link simpledb.storage.CompositeField}s stored with the fixed length of all their
+	 * components.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.variableLength = keyFields.length == 1 && isVariableLength(td.getFieldType(keyField));
+		// a page with variable-length keys has a slot for as many entries with
+		// empty keys as fit in it
+		this.numSlots = variableLength ?
+				(BufferPool.getPageSize() - VARIABLE_EXTRA_BYTES) / (INDEX_SIZE + 1) + 1 : getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -86,14 +116,22 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = dis.readByte();
 
-		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
+		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if(variableLength) {
+			readVariableLengthEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
+		// read the header slots of this page
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
-		keys = new Field[numSlots];
 		try{
-			// allocate and read the keys of this page
+			// read the keys of this page
 			// start from 1 because the first key slot is not used
 			// since a node with m keys has m+1 pointers
 			keys[0] = null;
@@ -103,9 +141,8 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
-			// allocate and read the child pointers of this page
+			// read the child pointers of this page
 			for (int i=0; i<children.length; i++)
 				children[i] = readNextChild(dis,i);
 		}catch(NoSuchElementException e){
@@ -116,11 +153,50 @@ public class BTreeInternalPage extends BTreePage {
 		setBeforeImage();
 	}
 
+	/**
+	 * @return true if the internal pages of a B+ tree keyed on a field of the specified
+	 * type store their keys with variable length
+	 */
+	public static boolean isVariableLength(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * Returns the shortest key which separates two keys, that is greater than low and
+	 * less than or equal to high: a prefix of high for string keys (suffix truncation),
+	 * high itself for other keys. Shorter separators let pages with variable-length keys
+	 * hold more entries.
+	 * 
+	 * @param low - the last key on the left of the separator
+	 * @param high - the first key on the right of the separator, greater than or equal to low
+	 */
+	public static Field separator(Field low, Field high) {
+		if(!(high instanceof StringField) || low.compare(Op.GREATER_THAN_OR_EQ, high)) {
+			return high;
+		}
+		String value = ((StringField) high).getValue();
+		for(int len = 1; len < value.length(); len++) {
+			Field prefix = new StringField(value.substring(0, len), Type.STRING_LEN);
+			if(prefix.compare(Op.GREATER_THAN, low)) {
+				return prefix;
+			}
+		}
+		return high;
+	}
+
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * For a page with variable-length keys, this is the number of entries with keys of
+	 * maximum length it can hold, and {@link #getNumEmptySlots()} counts the entries of
+	 * maximum length which still fit. That number is odd, so that a page split or
+	 * redistributed by size leaves both halves at least half full.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if(variableLength) {
+			int max = getCapacity() / getMaxEntrySize();
+			return max % 2 == 0 ? max - 1 : max;
+		}
+		int keySize = getKeySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -133,13 +209,113 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
-		int hb = (slotsPerPage / 8);
-		if (hb * 8 < slotsPerPage) hb++;
+		int hb = (numSlots / 8);
+		if (hb * 8 < numSlots) hb++;
 
 		return hb;
 	}
 
+	/**
+	 * @return the number of bytes an entry with the specified key takes on this page:
+	 * the key and its right child pointer
+	 */
+	public int getEntrySize(Field key) {
+		if(variableLength) {
+			return 1 + ((StringField) key).getValue().length() + INDEX_SIZE;
+		}
+		return getKeySize() + INDEX_SIZE;
+	}
+
+	private int getMaxEntrySize() {
+		return 1 + Type.STRING_LEN + INDEX_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes taken by the entries of this page
+	 */
+	public int getUsedSpace() {
+		int used = 0;
+		for(int i=1; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				used += getEntrySize(keys[i]);
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * @return true if the key of any entry of this page can be replaced by any other
+	 * key, which is always the case unless keys have variable length
+	 */
+	public boolean canUpdateKeys() {
+		return canUpdateKeys(1);
+	}
+
+	/**
+	 * @return true if the keys of the specified number of entries of this page can be
+	 * replaced by any other keys
+	 */
+	public boolean canUpdateKeys(int count) {
+		return !variableLength || getCapacity() - getUsedSpace() >= count * Type.STRING_LEN;
+	}
+
+	/**
+	 * @return true if this page should be merged with the specified sibling, which is
+	 * less than half full, rather than give it some of its entries. Pages with
+	 * variable-length keys are merged whenever their entries and the key of the parent
+	 * entry pointing to both fit in one page, as redistributing them would leave a page
+	 * less than half full.
+	 */
+	public boolean canMergeWith(BTreeInternalPage sibling, Field parentKey) {
+		if(variableLength) {
+			return getUsedSpace() + sibling.getUsedSpace() + getEntrySize(parentKey)
+					<= getMaxEntries() * getMaxEntrySize();
+		}
+		return getNumEmptySlots() >= getMaxEntries() - getMaxEntries() / 2;
+	}
+
+	// the number of bytes available to the entries of a page with variable-length keys
+	private int getCapacity() {
+		return BufferPool.getPageSize() - VARIABLE_EXTRA_BYTES;
+	}
+
+	/**
+	 * Read the entries of a page with variable-length keys, into consecutive slots.
+	 */
+	private void readVariableLengthEntries(DataInputStream dis) throws IOException {
+		int numEntries = dis.readUnsignedShort();
+		int firstChild = dis.readInt();
+		if(firstChild == 0) { // no child: an empty page
+			return;
+		}
+		children[0] = firstChild;
+		markSlotUsed(0, true);
+		for(int i=1; i<=numEntries; i++) {
+			byte[] chars = new byte[dis.readUnsignedByte()];
+			dis.readFully(chars);
+			keys[i] = new StringField(new String(chars), Type.STRING_LEN);
+			children[i] = dis.readInt();
+			markSlotUsed(i, true);
+		}
+	}
+
+	/**
+	 * Write the entries of a page with variable-length keys in key order, skipping the
+	 * empty slots.
+	 */
+	private void writeVariableLengthEntries(DataOutputStream dos) throws IOException {
+		dos.writeShort(getNumEntries());
+		dos.writeInt(isSlotUsed(0) ? children[0] : 0);
+		for(int i=1; i<numSlots; i++) {
+			if(isSlotUsed(i)) {
+				String value = ((StringField) keys[i]).getValue();
+				dos.writeByte(value.length());
+				dos.writeBytes(value);
+				dos.writeInt(children[i]);
+			}
+		}
+	}
+
 	/** Return a view of this page before it was modified
         -- used by recovery */
 	public BTreeInternalPage getBeforeImage(){
@@ -149,7 +325,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -172,7 +348,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +361,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -256,6 +432,17 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if(variableLength) {
+			try {
+				writeVariableLengthEntries(dos);
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the header of the page
         for (byte b : header) {
             try {
@@ -273,7 +460,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -320,7 +507,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				getKeySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -433,6 +620,9 @@ public class BTreeInternalPage extends BTreePage {
 				break;
 			}	
 		}
+		if(variableLength && getUsedSpace() - getEntrySize(keys[rid.getTupleNumber()]) + getEntrySize(e.getKey()) > getCapacity()) {
+			throw new DbException("attempt to update entry with key " + e.getKey() + " which does not fit on the page");
+		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
 		keys[rid.getTupleNumber()] = e.getKey();
 	}
@@ -445,7 +635,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -460,8 +650,11 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if(variableLength && getUsedSpace() + getEntrySize(e.getKey()) > getCapacity())
+			throw new DbException("called insertEntry on page with no room for key " + e.getKey());
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -566,13 +759,26 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
+		if(variableLength) {
+			int cnt = 0;
+			for(int i=1; i<numSlots; i++)
+				if(isSlotUsed(i))
+					cnt++;
+			return cnt;
+		}
 		return numSlots - getNumEmptySlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. For a page with variable-length
+	 * keys, this is the number of entries with keys of maximum length which can still
+	 * be added, as part of {@link #getMaxEntries()}.
 	 */
 	public int getNumEmptySlots() {
+		if(variableLength) {
+			int free = getMaxEntries() * getMaxEntrySize() - getUsedSpace();
+			return Math.max(0, free / getMaxEntrySize());
+		}
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -582,6 +788,14 @@ public class BTreeInternalPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * Returns the number of slots of this page, including the slot of the first child
+	 * pointer.
+	 */
+	int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -605,6 +819,102 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Find the child page which the search for the key field f continues in: the left child
+	 * of the first entry whose key is greater than or equal to f, or the right child of the
+	 * last entry if there is none. The sorted key slots are binary searched, stepping over
+	 * empty slots, and no entries are created on the way.
+	 *
+	 * @param f - the field to search for, or null for the left-most child
+	 * @return the id of the child page, or null if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) {
+		int slot = f == null ? nextUsedSlot(1, numSlots) : findFirstKey(f);
+		// the left child of an entry is the child of the previous used slot, and the
+		// right child of the last entry is the child of the last used slot
+		int child = slot - 1;
+		while(child >= 0 && !isSlotUsed(child)) {
+			child--;
+		}
+		if(child < 0 || (slot == numSlots && child == 0)) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), children[child], childCategory);
+	}
+
+	/**
+	 * Returns the ids of up to max children to the right of a child of this page, in key
+	 * order, stopping before the first one whose separating key is greater than bound.
+	 * The child is looked for from the slot {@link #findChild} returns for one of its
+	 * keys, and no entries are created on the way.
+	 *
+	 * @param child - the id of a child of this page
+	 * @param key - a key on the child
+	 * @param bound - the largest separating key of the children to return, or null
+	 * @param max - the maximum number of children to return
+	 * @return the ids of the children, or null if child is not on this page or is its
+	 * last child
+	 */
+	List<BTreePageId> childrenAfter(BTreePageId child, Field key, Field bound, int max) {
+		// the child findChild(key) returns, which is child unless equal keys span children
+		int slot = findFirstKey(key) - 1;
+		while(slot >= 0 && !isSlotUsed(slot)) {
+			slot--;
+		}
+		if(slot < 0) {
+			return null;
+		}
+		while(slot < numSlots && children[slot] != child.getPageNumber()) {
+			slot = nextUsedSlot(slot + 1, numSlots);
+		}
+		int next = slot < numSlots ? nextUsedSlot(slot + 1, numSlots) : numSlots;
+		if(next == numSlots) {
+			return null;
+		}
+		List<BTreePageId> ids = new ArrayList<>();
+		for(; next < numSlots && ids.size() < max; next = nextUsedSlot(next + 1, numSlots)) {
+			if(bound != null && keys[next].compare(Op.GREATER_THAN, bound)) {
+				break;
+			}
+			ids.add(new BTreePageId(pid.getTableId(), children[next], childCategory));
+		}
+		return ids;
+	}
+
+	/**
+	 * @return the first slot holding a key greater than or equal to f, or numSlots if
+	 * there is none
+	 */
+	private int findFirstKey(Field f) {
+		// no used slot lies in [hi, found), and found is numSlots or a matching slot
+		int lo = 1, hi = numSlots, found = numSlots;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int slot = nextUsedSlot(mid, hi);
+			if(slot == hi) {
+				hi = mid;
+			}
+			else if(keys[slot].compare(Op.GREATER_THAN_OR_EQ, f)) {
+				found = slot;
+				hi = mid;
+			}
+			else {
+				lo = slot + 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the first used slot in [from, to), or to if all of them are empty
+	 */
+	private int nextUsedSlot(int from, int to) {
+		while(from < to && !isSlotUsed(from)) {
+			from++;
+		}
+		return from;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -745,7 +1055,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -765,8 +1075,14 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key != null) {
+					// the left child is in the previous used slot, which may not be the one
+					// just before after entries were deleted
+					int prev = entry - 1;
+					while(prev > 0 && !p.isSlotUsed(prev)) {
+						prev--;
+					}
+					BTreePageId childId = p.getChildId(prev);
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -34,8 +34,9 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = fieldid == keyField ? getKey(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -66,7 +67,20 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree keyed on several fields, whose tuples are
+	 * sorted lexicographically on these fields.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in order
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -140,7 +154,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -326,16 +340,9 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("called addTuple on page with no empty slots.");
 
 		// find the last key less than or equal to the key being inserted
-		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
-		}
+		int lessOrEqKey = findFirstSlot(Predicate.Op.GREATER_THAN, getKey(t)) - 1;
+		while (lessOrEqKey >= 0 && !isSlotUsed(lessOrEqKey))
+			lessOrEqKey--;
 
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
@@ -486,6 +493,46 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page, starting from the first one whose key
+	 * is greater than f, or greater than or equal to f (calling remove on this iterator
+	 * throws an UnsupportedOperationException)
+	 * @param op - either GREATER_THAN or GREATER_THAN_OR_EQ
+	 * @param f - the field to compare the keys with
+	 */
+	public Iterator<Tuple> iterator(Predicate.Op op, Field f) {
+		return new BTreeLeafPageIterator(this, findFirstSlot(op, f));
+	}
+
+	/**
+	 * Binary search the sorted slots of this page, stepping over empty slots.
+	 * @param op - either GREATER_THAN or GREATER_THAN_OR_EQ
+	 * @param f - the field to compare the keys with
+	 * @return the first slot holding a tuple whose key compares with f by op, or numSlots
+	 * if there is none
+	 */
+	private int findFirstSlot(Predicate.Op op, Field f) {
+		// no used slot lies in [hi, found), and found is numSlots or a matching slot
+		int lo = 0, hi = numSlots, found = numSlots;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int slot = mid;
+			while (slot < hi && !isSlotUsed(slot))
+				slot++;
+			if (slot == hi) {
+				hi = mid;
+			}
+			else if (getKey(tuples[slot]).compare(op, f)) {
+				found = slot;
+				hi = mid;
+			}
+			else {
+				lo = slot + 1;
+			}
+		}
+		return found;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -532,6 +579,11 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		this.p = p;
 	}
 
+	public BTreeLeafPageIterator(BTreeLeafPage p, int firstTuple) {
+		this.p = p;
+		this.curTuple = firstTuple;
+	}
+
 	public boolean hasNext() {
 		if (nextToReturn != null)
 			return true;
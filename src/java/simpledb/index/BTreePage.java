@@ -5,10 +5,16 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.CompositeField;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.io.DataInputStream;
+import java.text.ParseException;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -26,11 +32,15 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock= (byte) 0;
 
+	/** version stamp used by optimistic descents, see BTreeFile */
+	final OptimisticLatch latch = new OptimisticLatch();
+
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
 	 * The format of a BTreeInternalPage is a set of header bytes indicating
@@ -52,14 +62,66 @@ public abstract class BTreePage implements Page {
 	 * @see BufferPool#getPageSize()
 	 * 
 	 * @param id - the id of this page
-	 * @param key - the field which the index is keyed on
+	 * @param keys - the fields which the index is keyed on, in order
 	 */
-	public BTreePage(BTreePageId id, int key) {
+	public BTreePage(BTreePageId id, int[] keys) {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @return the key of the specified tuple, a {@link CompositeField} if the index is
+	 * keyed on several fields
+	 */
+	protected Field getKey(Tuple t) {
+		return CompositeField.key(t, keyFields);
+	}
+
+	/**
+	 * @return true if the specified field can be a key of this page
+	 */
+	protected boolean isKey(Field f) {
+		if(keyFields.length == 1) {
+			return f.getType().equals(td.getFieldType(keyField));
+		}
+		if(!(f instanceof CompositeField) || ((CompositeField) f).numFields() != keyFields.length) {
+			return false;
+		}
+		for(int i=0; i<keyFields.length; i++) {
+			if(!((CompositeField) f).getField(i).getType().equals(td.getFieldType(keyFields[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of bytes of a key stored with fixed length
+	 */
+	protected int getKeySize() {
+		int size = 0;
+		for(int key : keyFields) {
+			size += td.getFieldType(key).getLen();
+		}
+		return size;
+	}
+
+	/**
+	 * Parse a key stored with fixed length.
+	 */
+	protected Field parseKey(DataInputStream dis) throws ParseException {
+		if(keyFields.length == 1) {
+			return td.getFieldType(keyField).parse(dis);
+		}
+		Field[] fields = new Field[keyFields.length];
+		for(int i=0; i<keyFields.length; i++) {
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		}
+		return new CompositeField(fields);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
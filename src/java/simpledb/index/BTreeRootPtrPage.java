@@ -17,8 +17,8 @@ public class BTreeRootPtrPage implements Page {
 	// size of this page
 	public final static int PAGE_SIZE = 9;
 
-	private boolean dirty = false;
-	private TransactionId dirtier = null;
+	private volatile boolean dirty = false;
+	private volatile TransactionId dirtier = null;
 
 	private final BTreePageId pid;
 
@@ -28,6 +28,9 @@ public class BTreeRootPtrPage implements Page {
 
 	private byte[] oldData;
 
+	/** version stamp used by optimistic descents, see BTreeFile */
+	final OptimisticLatch latch = new OptimisticLatch();
+
 	/**
 	 * Constructor.
 	 * Construct the BTreeRootPtrPage from a set of bytes of data read from
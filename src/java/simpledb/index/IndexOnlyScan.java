@@ -0,0 +1,173 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexOnlyScan is an operator which reads the tuples of a HeapFile matching
+ * a predicate from the entries of a {@link SecondaryIndex} alone, without
+ * reading the heap. It returns the fields of the table the entries hold,
+ * the indexed and included ones, in the order of the table; each tuple has
+ * the RecordId of the tuple of the heap it comes from. Tuples are returned
+ * in the order of the indexed fields.
+ *
+ * @see SecondaryIndex#covers
+ */
+public class IndexOnlyScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final String alias;
+	private final TupleDesc myTd;
+	/** the field of an entry holding each field of the returned tuples */
+	private final int[] entryFields;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates a scan of the entries of an index, as a part of the specified
+	 * transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to search.
+	 * @param tableAlias
+	 *            the alias of the table (needed by the parser); the returned
+	 *            tupleDesc has fields with name tableAlias.fieldName
+	 * @param ipred
+	 *            The index predicate to match. If null, the scan returns all
+	 *            tuples in the order of the indexed fields
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.alias = tableAlias;
+		this.ipred = ipred;
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		List<String> names = new ArrayList<>();
+		List<Type> types = new ArrayList<>();
+		List<Integer> fields = new ArrayList<>();
+		for (int i = 0; i < td.numFields(); i++) {
+			if (index.entryField(i) >= 0) {
+				names.add(tableAlias + "." + td.getFieldName(i));
+				types.add(td.getFieldType(i));
+				fields.add(index.entryField(i));
+			}
+		}
+		this.myTd = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+		this.entryFields = fields.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * @return the table name of the table the operator scans, as in the catalog
+	 */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/**
+	 * @return the index the operator searches
+	 */
+	public SecondaryIndex getIndex() {
+		return this.index;
+	}
+
+	/**
+	 * @return the index predicate the scan matches, or null if it returns
+	 *       all tuples
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+		final DbFileIterator entries = ipred == null ? index.getFile().iterator(tid)
+				: index.getFile().indexIterator(tid, ipred);
+		it = new AbstractDbFileIterator() {
+			public void open() throws DbException, TransactionAbortedException {
+				entries.open();
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				entries.rewind();
+			}
+
+			@Override
+			public void close() {
+				super.close();
+				entries.close();
+			}
+
+			@Override
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				if (!entries.hasNext())
+					return null;
+				Tuple e = entries.next();
+				Tuple t = new Tuple(myTd);
+				for (int i = 0; i < entryFields.length; i++) {
+					t.setField(i, e.getField(entryFields[i]));
+				}
+				t.setRecordId(index.recordId(e));
+				return t;
+			}
+		};
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the fields of the table the index holds, with
+	 * field names prefixed with the tableAlias string from the constructor.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.next();
+	}
+
+	public void close() {
+		if (it != null)
+			it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
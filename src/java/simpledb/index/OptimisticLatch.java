@@ -0,0 +1,73 @@
+package simpledb.index;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * OptimisticLatch is a version stamp attached to the B+ tree pages that are read
+ * during a descent (internal pages and the root pointer page).
+ * <p>
+ * A structure modification latches every such page it is about to change for the
+ * rest of the modification. Readers never block: they take a version stamp
+ * before reading the page and check afterwards that the page was not latched in
+ * the meantime, in the style of optimistic lock coupling / seqlocks. A reader that
+ * finds the page latched waits for the latch to be released and reads it again.
+ */
+class OptimisticLatch {
+
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * @return a version stamp to validate later, or 0 if the page is being modified
+	 */
+	long readVersion() {
+		return lock.tryOptimisticRead();
+	}
+
+	/**
+	 * @param version - a stamp returned by {@link #readVersion()}
+	 * @return true if the page was not latched for writing since the stamp was taken,
+	 * so everything read from it in between is consistent
+	 */
+	boolean validate(long version) {
+		return version != 0 && lock.validate(version);
+	}
+
+	/**
+	 * Wait until the page is not latched anymore.
+	 * 
+	 * @param timeout - the maximum time to wait, in ms
+	 * @return false if the page is still latched after timeout, or the wait was interrupted
+	 */
+	boolean await(long timeout) {
+		try {
+			long stamp = lock.tryReadLock(timeout, TimeUnit.MILLISECONDS);
+			if(stamp == 0) {
+				return false;
+			}
+			lock.unlockRead(stamp);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Latch the page for a structure modification. Only called by the transaction
+	 * holding the write lock of the page, so no other modification holds the latch
+	 * and this only waits for the readers in {@link #await} to leave.
+	 */
+	void latch() {
+		if(!lock.isWriteLocked()) {
+			lock.writeLock();
+		}
+	}
+
+	/**
+	 * Release the latch, which invalidates every version stamp taken before.
+	 */
+	void unlatch() {
+		lock.tryUnlockWrite();
+	}
+}
@@ -0,0 +1,370 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * SecondaryIndex is a non-clustered B+ tree index over one or more fields of
+ * a HeapFile. The index is a BTreeFile whose leaves hold an entry for every
+ * tuple of the table: the values of the indexed fields, followed by the page
+ * number and the slot of the tuple in the HeapFile. Entries are kept in key
+ * order, lexicographic over the indexed fields, so the tuples matching an
+ * IndexPredicate are found by a search of the tree followed by one heap page
+ * read per matching tuple. The IndexPredicate of an index over several fields
+ * may give the values of the first ones only (see {@link BTreeFile#indexIterator}).
+ * The page number and the slot end the key of the tree, so that every entry
+ * has a key of its own: the entry of a tuple is found by one descent of the
+ * tree, however many other tuples have the same values.
+ * <p>
+ * An index may also include the values of other fields in its entries, after
+ * the indexed ones, without keying on them. Queries reading only the indexed
+ * and included fields of a table are answered from the index alone, without
+ * reading the heap (see {@link IndexOnlyScan}).
+ * <p>
+ * The index is registered in the Catalog next to its table, and the
+ * BufferPool keeps it up to date as tuples are inserted into and deleted
+ * from the table. Its pages are locked and logged like the pages of any
+ * other file, so an index never gets ahead of or behind its table.
+ *
+ * @see SecondaryIndexScan
+ */
+public class SecondaryIndex {
+
+	private final String name;
+	private final int tableid;
+	private final int[] fields;
+	private final int[] includes;
+	private final BTreeFile tree;
+
+	/** field of an entry holding the page number of the tuple */
+	private final int pageField;
+
+	/** field of an entry holding the slot of the tuple */
+	private final int slotField;
+
+	/**
+	 * Open the index stored in the specified file; the file is created empty
+	 * when it is first written.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the HeapFile the index is over, which must be in the Catalog
+	 * @param field - the field of the table the index is keyed on
+	 * @param f - the file storing the B+ tree of the index
+	 */
+	public SecondaryIndex(String name, int tableid, int field, File f) {
+		this(name, tableid, new int[]{ field }, f);
+	}
+
+	/**
+	 * Open the index over several fields stored in the specified file.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the HeapFile the index is over, which must be in the Catalog
+	 * @param fields - the fields of the table the index is keyed on, in order
+	 * @param f - the file storing the B+ tree of the index
+	 */
+	public SecondaryIndex(String name, int tableid, int[] fields, File f) {
+		this(name, tableid, fields, new int[0], f);
+	}
+
+	/**
+	 * Open the index over several fields, including the values of other fields
+	 * in its entries, stored in the specified file.
+	 *
+	 * @param name - the name of the index
+	 * @param tableid - the HeapFile the index is over, which must be in the Catalog
+	 * @param fields - the fields of the table the index is keyed on, in order
+	 * @param includes - the other fields of the table whose values the entries hold
+	 * @param f - the file storing the B+ tree of the index
+	 */
+	public SecondaryIndex(String name, int tableid, int[] fields, int[] includes, File f) {
+		this.name = name;
+		this.tableid = tableid;
+		this.fields = fields.clone();
+		this.includes = includes.clone();
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		this.pageField = fields.length + includes.length;
+		this.slotField = pageField + 1;
+		Type[] keyTypes = new Type[fields.length];
+		int[] keys = new int[fields.length + 2];
+		for (int i = 0; i < fields.length; i++) {
+			keyTypes[i] = td.getFieldType(fields[i]);
+			keys[i] = i;
+		}
+		keys[fields.length] = pageField;
+		keys[fields.length + 1] = slotField;
+		Type[] includeTypes = new Type[includes.length];
+		for (int i = 0; i < includes.length; i++) {
+			includeTypes[i] = td.getFieldType(includes[i]);
+		}
+		this.tree = new BTreeFile(f, keys, entryDesc(keyTypes, includeTypes));
+	}
+
+	/**
+	 * @return the TupleDesc of the entries of an index keyed on fields of
+	 * the specified types
+	 */
+	public static TupleDesc entryDesc(Type... keyTypes) {
+		return entryDesc(keyTypes, new Type[0]);
+	}
+
+	/**
+	 * @return the TupleDesc of the entries of an index keyed on fields of
+	 * the specified types, and including fields of the other specified types
+	 */
+	public static TupleDesc entryDesc(Type[] keyTypes, Type[] includeTypes) {
+		int n = keyTypes.length + includeTypes.length;
+		Type[] types = new Type[n + 2];
+		String[] names = new String[n + 2];
+		for (int i = 0; i < keyTypes.length; i++) {
+			types[i] = keyTypes[i];
+			names[i] = keyTypes.length == 1 ? "key" : "key" + i;
+		}
+		for (int i = 0; i < includeTypes.length; i++) {
+			types[keyTypes.length + i] = includeTypes[i];
+			names[keyTypes.length + i] = "include" + i;
+		}
+		types[n] = Type.INT_TYPE;
+		names[n] = "page";
+		types[n + 1] = Type.INT_TYPE;
+		names[n + 1] = "slot";
+		return new TupleDesc(types, names);
+	}
+
+	/**
+	 * Create an index over a table and add an entry for every tuple it holds,
+	 * as part of the specified transaction. The entries are bulk loaded into
+	 * the tree (see {@link BTreeFile#bulkLoad}), after the index is registered
+	 * in the Catalog: another transaction inserting into the table in the
+	 * meantime waits for the tree, or makes the creation fail if it got
+	 * there first.
+	 *
+	 * @param tid - the transaction building the index
+	 * @param name - the name of the index
+	 * @param tableid - the HeapFile to index
+	 * @param field - the field of the table to key the index on
+	 * @param f - the file to store the index in; it is overwritten
+	 * @return the new index
+	 */
+	public static SecondaryIndex create(TransactionId tid, String name, int tableid, int field, File f)
+			throws DbException, IOException, TransactionAbortedException {
+		return create(tid, name, tableid, new int[]{ field }, f);
+	}
+
+	/**
+	 * Create an index over several fields of a table, see
+	 * {@link #create(TransactionId, String, int, int, File)}.
+	 *
+	 * @param fields - the fields of the table to key the index on, in order
+	 */
+	public static SecondaryIndex create(TransactionId tid, String name, int tableid, int[] fields, File f)
+			throws DbException, IOException, TransactionAbortedException {
+		return create(tid, name, tableid, fields, new int[0], f);
+	}
+
+	/**
+	 * Create an index over several fields of a table, including the values of
+	 * other fields in its entries, see
+	 * {@link #create(TransactionId, String, int, int, File)}.
+	 *
+	 * @param fields - the fields of the table to key the index on, in order
+	 * @param includes - the other fields of the table whose values the entries hold
+	 */
+	public static SecondaryIndex create(TransactionId tid, String name, int tableid, int[] fields, int[] includes,
+			File f) throws DbException, IOException, TransactionAbortedException {
+		if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile)) {
+			throw new DbException("only a HeapFile can have secondary indexes");
+		}
+		if (f.exists() && !f.delete()) {
+			throw new DbException("could not overwrite " + f);
+		}
+		SecondaryIndex index = new SecondaryIndex(name, tableid, fields, includes, f);
+		Database.getCatalog().addIndex(index);
+		index.tree.bulkLoad(tid, new Entries(index, new SeqScan(tid, tableid)), BTreeFile.DEFAULT_FILL_FACTOR);
+		return index;
+	}
+
+	/**
+	 * The entries of an index for the tuples of a scan of its table.
+	 */
+	private static class Entries extends Operator {
+
+		private static final long serialVersionUID = 1L;
+
+		private final SecondaryIndex index;
+		private OpIterator child;
+
+		Entries(SecondaryIndex index, OpIterator child) {
+			this.index = index;
+			this.child = child;
+		}
+
+		public TupleDesc getTupleDesc() {
+			return index.tree.getTupleDesc();
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			child.open();
+			super.open();
+		}
+
+		public void close() {
+			child.close();
+			super.close();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			child.rewind();
+		}
+
+		protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+			return child.hasNext() ? index.entry(child.next()) : null;
+		}
+
+		@Override
+		public OpIterator[] getChildren() {
+			return new OpIterator[]{ child };
+		}
+
+		@Override
+		public void setChildren(OpIterator[] children) {
+			child = children[0];
+		}
+	}
+
+	/** @return the name of the index */
+	public String getName() {
+		return name;
+	}
+
+	/** @return the id of the table the index is over */
+	public int getTableId() {
+		return tableid;
+	}
+
+	/** @return the field of the table the index is keyed on, the first one if there are several */
+	public int getField() {
+		return fields[0];
+	}
+
+	/** @return the fields of the table the index is keyed on, in order */
+	public int[] getFields() {
+		return fields.clone();
+	}
+
+	/** @return the fields of the table whose values the entries include, besides the indexed ones */
+	public int[] getIncludes() {
+		return includes.clone();
+	}
+
+	/**
+	 * @return the field of an entry holding the value of the specified field of
+	 * the table, or -1 if the entries do not hold it
+	 */
+	public int entryField(int field) {
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i] == field) {
+				return i;
+			}
+		}
+		for (int i = 0; i < includes.length; i++) {
+			if (includes[i] == field) {
+				return fields.length + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if the entries of the index hold the values of all the
+	 * specified fields of the table
+	 */
+	public boolean covers(Collection<Integer> tableFields) {
+		for (int field : tableFields) {
+			if (entryField(field) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** @return the BTreeFile holding the entries of the index */
+	public BTreeFile getFile() {
+		return tree;
+	}
+
+	/** @return the entry of the index for a tuple of the table, which must have a RecordId */
+	Tuple entry(Tuple t) {
+		RecordId rid = t.getRecordId();
+		Tuple e = new Tuple(tree.getTupleDesc());
+		for (int i = 0; i < fields.length; i++) {
+			e.setField(i, t.getField(fields[i]));
+		}
+		for (int i = 0; i < includes.length; i++) {
+			e.setField(fields.length + i, t.getField(includes[i]));
+		}
+		e.setField(pageField, new IntField(rid.getPageId().getPageNumber()));
+		e.setField(slotField, new IntField(rid.getTupleNumber()));
+		return e;
+	}
+
+	/** @return the id of the tuple of the table an entry points to */
+	RecordId recordId(Tuple entry) {
+		return new RecordId(new HeapPageId(tableid,
+				((IntField) entry.getField(pageField)).getValue()),
+				((IntField) entry.getField(slotField)).getValue());
+	}
+
+	/**
+	 * Add the entry of a tuple just inserted into the table. Called by the
+	 * BufferPool.
+	 *
+	 * @return the pages of the index that were modified
+	 */
+	public List<Page> insertEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return tree.insertTuple(tid, entry(t));
+	}
+
+	/**
+	 * Remove the entry of a tuple about to be deleted from the table. Called
+	 * by the BufferPool.
+	 *
+	 * @return the pages of the index that were modified
+	 * @throws DbException if the tuple has no entry in the index
+	 */
+	public List<Page> deleteEntry(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Tuple e = findEntry(tid, t);
+		if (e == null) {
+			throw new DbException("tuple " + t.getRecordId() + " is not in index " + name);
+		}
+		return tree.deleteTuple(tid, e);
+	}
+
+	// the entry of the index pointing to the tuple, as stored in the tree
+	private Tuple findEntry(TransactionId tid, Tuple t)
+			throws DbException, TransactionAbortedException {
+		DbFileIterator it = tree.indexIterator(tid, new IndexPredicate(Op.EQUALS, tree.getKey(entry(t))));
+		it.open();
+		try {
+			return it.hasNext() ? it.next() : null;
+		} finally {
+			it.close();
+		}
+	}
+}
@@ -261,6 +261,9 @@ public class JoinOptimizer {
 
         // some code goes here
         // Replace the following
+        if (this.joins.isEmpty()) { // a single table: nothing to order
+            return new ArrayList<>();
+        }
         PlanCache planCache = new PlanCache();
         for(int i = 1; i <= this.joins.size(); i++) {
             Set<Set<LogicalJoinNode>> subSets = enumerateSubsets(this.joins, i); // set of all i-size subset
@@ -4,6 +4,11 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -309,6 +314,8 @@ public class LogicalPlan {
 
         }
 
+        Set<LogicalFilterNode> indexFilters = chooseIndexScans(t, statsMap, explain);
+
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -324,10 +331,7 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c));
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            f = filterConstant(lf, ftyp);
 
             Predicate p = null;
             try {
@@ -335,11 +339,16 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // a filter answered by an index scan needs no Filter on top
+            if (!indexFilters.contains(lf)) {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the scan may not return every field of the table, see chooseIndexScans
+            double sel = s.estimateSelectivity(Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -478,6 +487,171 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /** Convert the constant of a filter into a Field of the type of the filtered field. */
+    private static Field filterConstant(LogicalFilterNode lf, Type ftyp) {
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c));
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
+    /** Choose the access path of every table with an index: the filters on
+     *   indexed fields with the lowest {@link TableStats#estimateIndexScanCost}
+     *   replace the scan of the table by a {@link BTreeScan} of the table if it
+     *   is stored in a {@link BTreeFile}, or by a {@link SecondaryIndexScan} of
+     *   its index if not, when the index scan is estimated to cost less than
+     *   scanning the whole table. An index keyed on several fields answers
+     *   equality filters on its first fields together with one more filter on
+     *   the next field, through an index predicate on a {@link CompositeField}.
+     *   If a secondary index holds every field of its table the query reads,
+     *   it is read by an {@link IndexOnlyScan} instead, which does not read
+     *   the heap, with or without a predicate.
+     *  @return the filters answered by the index scans chosen
+     */
+    private Set<LogicalFilterNode> chooseIndexScans(TransactionId t, Map<String,TableStats> statsMap, boolean explain) {
+        Set<LogicalFilterNode> indexFilters = new HashSet<>();
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDatabaseFile(table.t);
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            if (s == null)
+                continue;
+            TupleDesc td = file.getTupleDesc();
+
+            // the filters on the fields of the table, by field
+            Map<Integer, List<LogicalFilterNode>> fieldFilters = new HashMap<>();
+            for (LogicalFilterNode lf : filters) {
+                if (!lf.tableAlias.equals(table.alias))
+                    continue;
+                try {
+                    fieldFilters.computeIfAbsent(td.fieldNameToIndex(lf.fieldPureName), k -> new ArrayList<>()).add(lf);
+                } catch (NoSuchElementException e) {
+                    // reported when the filters are planned
+                }
+            }
+
+            List<SecondaryIndex> indexes = new ArrayList<>();
+            List<int[]> keys = new ArrayList<>();
+            if (file instanceof BTreeFile) {
+                keys.add(((BTreeFile) file).keyFields());
+            } else {
+                indexes.addAll(Database.getCatalog().getIndexes(table.t));
+                for (SecondaryIndex index : indexes)
+                    keys.add(index.getFields());
+            }
+
+            Set<Integer> referenced = referencedFields(table.alias, td);
+            double bestCost = s.estimateScanCost();
+            int bestKey = -1;
+            boolean bestCovering = false;
+            List<LogicalFilterNode> best = null;
+            IndexPredicate bestPredicate = null;
+            for (int k = 0; k < keys.size(); k++) {
+                int[] key = keys.get(k);
+                SecondaryIndex index = file instanceof BTreeFile ? null : indexes.get(k);
+                boolean covering = index != null && referenced != null && index.covers(referenced);
+                if (covering) {
+                    double cost = s.estimateIndexOnlyScanCost(index.getName(), key, null, null);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        bestKey = k;
+                        bestCovering = true;
+                        best = new ArrayList<>();
+                        bestPredicate = null;
+                    }
+                }
+                // equality filters on the first fields of the key, then any
+                // filter on the next one
+                List<LogicalFilterNode> prefix = new ArrayList<>();
+                Field[] constants = new Field[key.length];
+                for (int i = 0; i < key.length; i++) {
+                    LogicalFilterNode equality = null;
+                    for (LogicalFilterNode lf : fieldFilters.getOrDefault(key[i], Collections.emptyList())) {
+                        constants[i] = filterConstant(lf, td.getFieldType(key[i]));
+                        Field constant = i == 0 ? constants[0] : new CompositeField(Arrays.copyOf(constants, i + 1));
+                        double cost = covering ? s.estimateIndexOnlyScanCost(index.getName(), key, lf.p, constant)
+                                : s.estimateIndexScanCost(key, lf.p, constant);
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            bestKey = k;
+                            bestCovering = covering;
+                            best = new ArrayList<>(prefix);
+                            best.add(lf);
+                            bestPredicate = new IndexPredicate(lf.p, constant);
+                        }
+                        if (lf.p == Predicate.Op.EQUALS && equality == null)
+                            equality = lf;
+                    }
+                    if (equality == null)
+                        break;
+                    prefix.add(equality);
+                    constants[i] = filterConstant(equality, td.getFieldType(key[i]));
+                }
+            }
+            if (best != null) {
+                if (file instanceof BTreeFile) {
+                    subplanMap.put(table.alias, new BTreeScan(t, table.t, table.alias, bestPredicate));
+                } else if (bestCovering) {
+                    subplanMap.put(table.alias, new IndexOnlyScan(t, indexes.get(bestKey), table.alias, bestPredicate));
+                } else {
+                    subplanMap.put(table.alias, new SecondaryIndexScan(t, indexes.get(bestKey), table.alias, bestPredicate));
+                }
+                indexFilters.addAll(best);
+                if (explain) {
+                    StringJoiner fields = new StringJoiner(", ");
+                    for (LogicalFilterNode lf : best)
+                        fields.add(lf.fieldQuantifiedName);
+                    System.out.println("Using " + (bestCovering ? "index-only scan of " + indexes.get(bestKey).getName() : "index")
+                            + (best.isEmpty() ? "" : " on " + fields) + " to scan " + table.alias
+                            + " (cost " + bestCost + " instead of " + s.estimateScanCost() + ")");
+                }
+            }
+        }
+        return indexFilters;
+    }
+
+    /** The fields of the table with the specified alias the query reads, in
+     *   filters, joins, the select list, the aggregate and the ORDER BY.
+     *  @return the indexes of the fields in the table, or null if the query
+     *   reads all of them or an unknown one
+     */
+    private Set<Integer> referencedFields(String alias, TupleDesc td) {
+        List<String> names = new ArrayList<>();
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(alias))
+                names.add(lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                names.add(lj.f1PureName);
+            if (alias.equals(lj.t2Alias))
+                names.add(lj.f2PureName);
+        }
+        List<String> quantifiedNames = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList)
+            quantifiedNames.add(si.fname);
+        quantifiedNames.add(aggField);
+        quantifiedNames.add(groupByField);
+        quantifiedNames.add(oByField);
+        for (String name : quantifiedNames) {
+            if (name == null)
+                continue;
+            String[] parts = name.split("[.]");
+            if (parts[1].equals("*") && (parts[0].equals("null") || parts[0].equals(alias)))
+                return null;
+            if (parts[0].equals(alias))
+                names.add(parts[1]);
+        }
+        Set<Integer> fields = new HashSet<>();
+        for (String name : names) {
+            try {
+                fields.add(td.fieldNameToIndex(name));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return fields;
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
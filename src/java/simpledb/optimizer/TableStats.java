@@ -4,10 +4,20 @@ import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -53,13 +63,20 @@ public class TableStats {
 
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
-            int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            computeStatistics(tableIt.next());
         }
         System.out.println("Done.");
     }
 
+    /**
+     * Compute the statistics of one table again, for instance after an index
+     * was added to it.
+     */
+    public static void computeStatistics(int tableid) {
+        TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+        setTableStats(Database.getCatalog().getTableName(tableid), s);
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -81,6 +98,22 @@ public class TableStats {
 
     private int[] maxValues;
 
+    // the shape of a B+ tree the table can be searched through
+    private static class IndexShape {
+        /** whether the tree holds the tuples, or entries pointing to them */
+        boolean clustered;
+        /** the number of pages read from the root to a leaf */
+        int height = 0;
+        /** the number of leaf pages */
+        int leafPages = 0;
+    }
+
+    /** the B+ trees over the table, by the fields they are keyed on */
+    private final Map<List<Integer>, IndexShape> indexes = new LinkedHashMap<>();
+
+    /** the secondary indexes of the table, by name */
+    private final Map<String, IndexShape> secondaryIndexes = new HashMap<>();
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
      * column of a table
@@ -100,8 +133,19 @@ public class TableStats {
         // necessarily have to (for example) do everything
         // in a single scan of the table.
         // some code goes here
-        HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        this.totalPages = table.numPages();
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        if (table instanceof BTreeFile) {
+            BTreeFile tree = (BTreeFile) table;
+            this.totalPages = tree.numPages();
+            indexes.put(fieldList(tree.keyFields()), measureTree(tree, true));
+        } else {
+            this.totalPages = ((HeapFile) table).numPages();
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableid)) {
+                IndexShape shape = measureTree(index.getFile(), false);
+                indexes.putIfAbsent(fieldList(index.getFields()), shape);
+                secondaryIndexes.put(index.getName(), shape);
+            }
+        }
         this.totalTuples = 0;
         this.td = table.getTupleDesc();
         this.histograms = new Histogram[td.numFields()];
@@ -176,6 +220,141 @@ public class TableStats {
         return this.totalPages*this.ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of answering the predicate <tt>field op constant</tt>
+     * through a B+ tree keyed on the field: a descent from the root to the
+     * first matching leaf, then a read of every leaf holding matching
+     * entries, following the sibling pointers. If the tree is the table
+     * itself, the leaves hold the tuples; if it is a secondary index, every
+     * matching tuple also costs a read of its heap page. Like
+     * {@link #estimateScanCost()}, no page is assumed to be cached.
+     *
+     * @param field
+     *            The field over which the predicate ranges
+     * @param op
+     *            The logical operation in the predicate
+     * @param constant
+     *            The value against which the field is compared
+     * @return The estimated cost of the index scan, or
+     *         Double.POSITIVE_INFINITY if the table has no index the predicate
+     *         can use
+     */
+    public double estimateIndexScanCost(int field, Predicate.Op op, Field constant) {
+        return estimateIndexScanCost(new int[]{field}, op, constant);
+    }
+
+    /**
+     * Estimates the cost of answering an index predicate through a B+ tree
+     * keyed on the specified fields, or on fields starting with them, like
+     * {@link #estimateIndexScanCost(int, Predicate.Op, Field)}. The constant
+     * may be a {@link CompositeField} giving the values of the first fields
+     * of the key, see {@link #estimateSelectivity(int[], Predicate.Op, Field)}.
+     *
+     * @param fields
+     *            The fields the tree is keyed on, in order
+     * @param op
+     *            The logical operation in the predicate
+     * @param constant
+     *            The value against which the key is compared
+     * @return The estimated cost of the index scan, or
+     *         Double.POSITIVE_INFINITY if the table has no index the predicate
+     *         can use
+     */
+    public double estimateIndexScanCost(int[] fields, Predicate.Op op, Field constant) {
+        List<Integer> key = fieldList(fields);
+        IndexShape shape = indexes.get(key);
+        if (shape == null) {
+            // an index keyed on more fields, starting with these
+            for (Map.Entry<List<Integer>, IndexShape> index : indexes.entrySet()) {
+                if (index.getKey().size() > key.size()
+                        && index.getKey().subList(0, key.size()).equals(key)) {
+                    shape = index.getValue();
+                    break;
+                }
+            }
+        }
+        if (shape == null || op == Predicate.Op.NOT_EQUALS || op == Predicate.Op.LIKE) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return treeScanCost(shape, estimateSelectivity(fields, op, constant), !shape.clustered);
+    }
+
+    /**
+     * Estimates the cost of answering an index predicate from the entries of
+     * a secondary index alone, without reading the tuples they point to: the
+     * cost of {@link #estimateIndexScanCost(int[], Predicate.Op, Field)}
+     * without the heap page reads.
+     *
+     * @param index
+     *            The name of the secondary index
+     * @param fields
+     *            The fields the index is keyed on, in order
+     * @param op
+     *            The logical operation in the predicate, or null to read all
+     *            the entries
+     * @param constant
+     *            The value against which the key is compared
+     * @return The estimated cost of the index-only scan, or
+     *         Double.POSITIVE_INFINITY if the table has no such index or the
+     *         predicate cannot use it
+     */
+    public double estimateIndexOnlyScanCost(String index, int[] fields, Predicate.Op op, Field constant) {
+        IndexShape shape = secondaryIndexes.get(index);
+        if (shape == null || op == Predicate.Op.NOT_EQUALS || op == Predicate.Op.LIKE) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return treeScanCost(shape, op == null ? 1.0 : estimateSelectivity(fields, op, constant), false);
+    }
+
+    private double treeScanCost(IndexShape shape, double selectivity, boolean readTuples) {
+        double matchingLeaves = Math.ceil(selectivity * shape.leafPages);
+        // the descent reads the first matching leaf
+        double pages = shape.height + Math.max(matchingLeaves - 1, 0);
+        if (readTuples) {
+            pages += Math.ceil(selectivity * totalTuples);
+        }
+        return pages * this.ioCostPerPage;
+    }
+
+    private static List<Integer> fieldList(int[] fields) {
+        List<Integer> list = new ArrayList<>();
+        for (int field : fields) {
+            list.add(field);
+        }
+        return list;
+    }
+
+    // read the shape of the tree from disk: its height down the leftmost
+    // path, and its leaves along the sibling pointers. Pages are read
+    // without the buffer pool, as statistics take no locks.
+    private static IndexShape measureTree(BTreeFile tree, boolean clustered) {
+        IndexShape shape = new IndexShape();
+        shape.clustered = clustered;
+        if (tree.numPages() == 0) {
+            return shape;
+        }
+        try {
+            BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) tree.readPage(BTreeRootPtrPage.getId(tree.getId()));
+            BTreePageId pid = rootPtr.getRootId();
+            while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+                shape.height++;
+                pid = ((BTreeInternalPage) tree.readPage(pid)).iterator().next().getLeftChild();
+            }
+            while (pid != null) {
+                if (shape.leafPages == 0) {
+                    shape.height++;
+                }
+                shape.leafPages++;
+                pid = ((BTreeLeafPage) tree.readPage(pid)).getRightSiblingId();
+            }
+        } catch (RuntimeException e) {
+            // a tree being modified; assume every page is a leaf
+            shape.height = 1;
+            shape.leafPages = tree.numPages();
+        }
+        return shape;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -228,6 +407,35 @@ public class TableStats {
         }
     }
 
+    /**
+     * Estimate the selectivity of an index predicate <tt>key op constant</tt>
+     * over a B+ tree keyed on the specified fields. If the constant is a
+     * {@link CompositeField} with k components, the predicate holds for the
+     * tuples whose first k - 1 key fields are equal to the first components
+     * and whose k-th key field compares with the last component by op; the
+     * fields are assumed to be independent.
+     *
+     * @param fields
+     *            The fields the key is made of, in order
+     * @param op
+     *            The logical operation in the predicate
+     * @param constant
+     *            The value against which the key is compared
+     * @return The estimated selectivity of the predicate
+     */
+    public double estimateSelectivity(int[] fields, Predicate.Op op, Field constant) {
+        if (!(constant instanceof CompositeField)) {
+            return estimateSelectivity(fields[0], op, constant);
+        }
+        CompositeField c = (CompositeField) constant;
+        int last = c.numFields() - 1;
+        double selectivity = estimateSelectivity(fields[last], op, c.getField(last));
+        for (int i = 0; i < last; i++) {
+            selectivity *= estimateSelectivity(fields[i], Predicate.Op.EQUALS, c.getField(i));
+        }
+        return selectivity;
+    }
+
     /**
      * return the total number of tuples in this table
      * */
@@ -0,0 +1,146 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, the key of a B+ tree
+ * keyed on several fields. Composite fields compare lexicographically, one component
+ * after the other. Only the components both fields have are compared, so a composite
+ * field with fewer components than a key is a prefix of the key, and compares equal to
+ * all the keys starting with it; any other Field compares like a composite field with
+ * that single component.
+ */
+public class CompositeField implements Field {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The components of this field, at least one.
+     */
+    public CompositeField(Field... fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one component");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * Returns the key of a tuple in a B+ tree keyed on the specified fields: the field
+     * itself if there is only one, a composite field otherwise.
+     *
+     * @param t the tuple
+     * @param keyFields the indexes of the fields the key is made of
+     */
+    public static Field key(Tuple t, int[] keyFields) {
+        if (keyFields.length == 1)
+            return t.getField(keyFields[0]);
+        Field[] fields = new Field[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            fields[i] = t.getField(keyFields[i]);
+        return new CompositeField(fields);
+    }
+
+    /**
+     * Returns the value of a composite field without its last component, which all the
+     * keys matched by an index predicate on the composite field share, or null if the
+     * field is not a composite field with several components.
+     */
+    public static CompositeField leading(Field f) {
+        if (!(f instanceof CompositeField) || ((CompositeField) f).numFields() < 2)
+            return null;
+        return ((CompositeField) f).prefix(((CompositeField) f).numFields() - 1);
+    }
+
+    /**
+     * @return the number of components of this field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @return the i-th component of this field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    /**
+     * @return the composite field made of the first len components of this field
+     */
+    public CompositeField prefix(int len) {
+        return new CompositeField(Arrays.copyOf(fields, len));
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        if (!(field instanceof CompositeField)) return false;
+        return Arrays.equals(((CompositeField) field).fields, fields);
+    }
+
+    /**
+     * Writes the components one after the other.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Compare the specified field to the value of this Field, on the components both
+     * have. Return semantics are as specified by Field.compare
+     *
+     * @throws IllegalArgumentException if a component of val has another type than
+     *     the component of this field
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[] {val};
+        int cmp = 0;
+        for (int i = 0; i < Math.min(fields.length, other.length) && cmp == 0; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                cmp = -1;
+            else if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                cmp = 1;
+        }
+
+        switch (op) {
+            case EQUALS: return cmp == 0;
+            case LIKE: return cmp == 0;
+            case NOT_EQUALS: return cmp != 0;
+            case GREATER_THAN: return cmp > 0;
+            case GREATER_THAN_OR_EQ: return cmp >= 0;
+            case LESS_THAN: return cmp < 0;
+            case LESS_THAN_OR_EQ: return cmp <= 0;
+            default: return false;
+        }
+    }
+
+    /**
+     * Return the Type of the first component of this field.
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
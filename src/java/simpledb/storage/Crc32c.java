@@ -0,0 +1,71 @@
+package simpledb.storage;
+
+import java.util.zip.Checksum;
+
+/**
+ * Crc32c computes the CRC-32C (Castagnoli) checksum of log records.  It
+ * uses java.util.zip.CRC32C where the JDK has it (9 and later), which is
+ * usually backed by a CPU instruction, and a table-driven implementation
+ * on Java 8.  Both compute the same value, so a log written by one can be
+ * read by the other.
+ */
+final class Crc32c {
+
+    /** the reflected Castagnoli polynomial */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[] TABLE = new int[256];
+
+    private static final Class<? extends Checksum> JDK_CRC32C;
+
+    private static final ThreadLocal<Checksum> JDK_CHECKSUM;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+            }
+            TABLE[i] = c;
+        }
+        Class<? extends Checksum> jdk;
+        try {
+            jdk = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class);
+        } catch (ClassNotFoundException e) {
+            jdk = null;
+        }
+        JDK_CRC32C = jdk;
+        JDK_CHECKSUM = jdk == null ? null : ThreadLocal.withInitial(Crc32c::newJdkChecksum);
+    }
+
+    private Crc32c() {
+    }
+
+    private static Checksum newJdkChecksum() {
+        try {
+            return JDK_CRC32C.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** @return the CRC-32C of len bytes of b, starting at off */
+    static int checksum(byte[] b, int off, int len) {
+        if (JDK_CHECKSUM != null) {
+            Checksum c = JDK_CHECKSUM.get();
+            c.reset();
+            c.update(b, off, len);
+            return (int) c.getValue();
+        }
+        return tableChecksum(b, off, len);
+    }
+
+    // the Java 8 implementation; package-private so both can be compared
+    static int tableChecksum(byte[] b, int off, int len) {
+        int c = 0xFFFFFFFF;
+        for (int i = off; i < off + len; i++) {
+            c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+        }
+        return ~c;
+    }
+}
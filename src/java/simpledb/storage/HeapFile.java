@@ -103,7 +103,7 @@ public class HeapFile implements DbFile {
         int pgNo = pid.getPageNumber();
         byte[] pgData = page.getPageData();
         RandomAccessFile rf = new RandomAccessFile(this.file, "rws");
-        rf.skipBytes(pgNo * BufferPool.getPageSize());
+        rf.seek((long) pgNo * BufferPool.getPageSize());
         rf.write(pgData);
         rf.close();
     }
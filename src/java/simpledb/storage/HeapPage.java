@@ -315,6 +315,14 @@ public class HeapPage implements Page {
         return emptyNum;
     }
 
+    /**
+     * Returns the tuple stored in the specified slot, or null if the slot is empty.
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= getNumTuples() || !isSlotUsed(i)) return null;
+        return this.tuples[i];
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
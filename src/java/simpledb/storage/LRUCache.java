@@ -4,6 +4,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * LRUCache maps page ids to cached pages and keeps them in least recently
+ * used order, so that the buffer pool can pick eviction candidates.
+ * Every access reorders the list, so all accessors are synchronized.
+ */
 public class LRUCache {
 
     public static class ListNode<K, V> {
@@ -34,7 +39,7 @@ public class LRUCache {
         this.tail.next = null;
     }
 
-    public void put(PageId pid, Page pg) {
+    public synchronized void put(PageId pid, Page pg) {
         ListNode<PageId, Page> t = cache.get(pid);
         if(t != null) { // move t to the head
             t.val = pg; // val may have been changed
@@ -57,7 +62,7 @@ public class LRUCache {
         }
     }
 
-    public Page get(PageId pid) {
+    public synchronized Page get(PageId pid) {
         ListNode<PageId, Page> t = cache.get(pid);
         if(t != null) {
             t.next.prev = t.prev;
@@ -72,7 +77,7 @@ public class LRUCache {
         else return null;
     }
 
-    public void remove(PageId pid) {
+    public synchronized void remove(PageId pid) {
         ListNode<PageId, Page> t = cache.get(pid);
         if(t != null) {
             t.next.prev = t.prev;
@@ -81,17 +86,20 @@ public class LRUCache {
         }
     }
 
-    public PageId eviction() {
+    public synchronized PageId eviction() {
         ListNode<PageId, Page> t = tail.prev;
 //        get(t.key); // this page may be dirty, move to the head
         return t.key;
     }
 
+    /**
+     * @return a live view of the cached page ids; iteration is weakly consistent
+     */
     public Set<PageId> keySet() {
         return cache.keySet();
     }
 
-    public int getSize() {
+    public synchronized int getSize() {
         return cache.size();
     }
 }
@@ -0,0 +1,265 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogBuffer holds the tail of the log that has not been written to the log
+ * file yet: a ring of direct ByteBuffers that log records are appended to.
+ * Every byte of the log is addressed by its LSN, its offset in the log, so
+ * a record is written out at the position given by its LSN.
+ * <p>
+ * Appending only copies bytes. The filled buffers are written out in large
+ * sequential chunks by whoever flushes the log: they are first claimed as a
+ * {@link Batch}, then written without holding any lock, and finally released
+ * so the ring can reuse them. Records may span buffers.
+ * <p>
+ * LogBuffer is not thread-safe: {@link LogFile} calls it with its lock held,
+ * except for {@link Batch#writeTo}, and claims one batch at a time.
+ */
+public class LogBuffer {
+
+    /** Default size of each buffer of the ring, in bytes */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** Default number of buffers in the ring */
+    public static final int DEFAULT_BUFFERS = 8;
+
+    private static final int FREE = 0;    // holds nothing
+    private static final int FILLED = 1;  // holds appended bytes that were not claimed; the tail may be empty
+    private static final int CLAIMED = 2; // handed out in a batch that is being written
+    private static final int WRITTEN = 3; // written, but an older buffer has not been released yet
+
+    /**
+     * Where a batch is written: log storage that takes bytes at their LSN.
+     */
+    public interface Sink {
+        /** Write the bytes of src at the specified LSN, without forcing them */
+        void write(ByteBuffer src, long lsn) throws IOException;
+    }
+
+    /**
+     * The buffers claimed by one flush. They must be written with
+     * {@link #writeTo} and then handed back with {@link LogBuffer#release}.
+     */
+    public static class Batch {
+        private final int generation;
+        private final int[] buffers;
+        private final ByteBuffer[] contents;
+        private final long[] lsns;
+
+        private Batch(int generation, int[] buffers, ByteBuffer[] contents, long[] lsns) {
+            this.generation = generation;
+            this.buffers = buffers;
+            this.contents = contents;
+            this.lsns = lsns;
+        }
+
+        /** @return true if the batch holds no bytes */
+        public boolean isEmpty() {
+            return buffers.length == 0;
+        }
+
+        /**
+         * Write the claimed bytes to the log, each buffer at its LSN. Does
+         * not force them to disk.
+         */
+        public void writeTo(Sink sink) throws IOException {
+            for (int i = 0; i < contents.length; i++) {
+                sink.write(contents[i], lsns[i]);
+            }
+        }
+
+        /**
+         * Write the claimed bytes to a single file, each buffer at the
+         * position given by its LSN. Does not force them to disk.
+         */
+        public void writeTo(FileChannel channel) throws IOException {
+            writeTo((b, position) -> {
+                while (b.hasRemaining()) {
+                    position += channel.write(b, position);
+                }
+            });
+        }
+    }
+
+    private final ByteBuffer[] ring;
+    private final int[] state;
+    private final long[] startLsn;
+    private int head; // oldest buffer that is not FREE, or tail if all others are
+    private int tail; // buffer appended to
+    private long endLsn; // LSN of the next byte appended
+    private int generation; // incremented by reset, so batches claimed before are ignored on release
+
+    /**
+     * Create a LogBuffer with the default number and size of buffers.
+     */
+    public LogBuffer() {
+        this(DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param buffers the number of buffers in the ring, at least 2
+     * @param bufferSize the size of each buffer, in bytes
+     */
+    public LogBuffer(int buffers, int bufferSize) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("a log buffer needs at least two buffers");
+        }
+        ring = new ByteBuffer[buffers];
+        state = new int[buffers];
+        startLsn = new long[buffers];
+        for (int i = 0; i < buffers; i++) {
+            ring[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+        reset(0);
+    }
+
+    /**
+     * Drop everything in the ring, including claimed batches, and continue
+     * appending at the specified LSN.
+     */
+    public void reset(long lsn) {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i].clear();
+            state[i] = FREE;
+        }
+        head = tail = 0;
+        state[0] = FILLED;
+        startLsn[0] = lsn;
+        endLsn = lsn;
+        generation++;
+    }
+
+    /** @return the LSN the next appended byte will get */
+    public long getEndLsn() {
+        return endLsn;
+    }
+
+    /** @return the largest number of bytes the ring can hold */
+    public int capacity() {
+        return ring.length * ring[0].capacity();
+    }
+
+    /** @return true if some buffers are claimed and were not released yet */
+    public boolean hasClaimed() {
+        for (int s : state) {
+            if (s == CLAIMED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if len bytes can be appended without first releasing buffers
+     */
+    public boolean hasRoom(int len) {
+        long room = state[tail] == FILLED ? ring[tail].remaining() : 0;
+        for (int i = next(tail); i != head && state[i] == FREE; i = next(i)) {
+            room += ring[i].capacity();
+        }
+        return room >= len;
+    }
+
+    /**
+     * Append bytes to the log. The caller must have checked {@link #hasRoom}.
+     *
+     * @return the LSN of the first appended byte
+     */
+    public long append(byte[] data, int off, int len) {
+        if (!hasRoom(len)) {
+            throw new IllegalStateException("no room for " + len + " bytes in the log buffer");
+        }
+        long lsn = endLsn;
+        while (len > 0) {
+            if (state[tail] != FILLED || !ring[tail].hasRemaining()) {
+                int n = next(tail);
+                state[n] = FILLED;
+                startLsn[n] = endLsn;
+                ring[n].clear();
+                tail = n;
+            }
+            int n = Math.min(len, ring[tail].remaining());
+            ring[tail].put(data, off, n);
+            off += n;
+            len -= n;
+            endLsn += n;
+        }
+        return lsn;
+    }
+
+    /**
+     * Skip len bytes that the caller wrote to the log file itself because
+     * they did not fit in the ring. The ring must not hold any bytes that were
+     * not written yet.
+     */
+    public void skip(int len) {
+        reset(endLsn + len);
+    }
+
+    /**
+     * Claim every buffer holding appended bytes that were not claimed yet,
+     * including the partially filled tail. Appends continue in the next buffer.
+     */
+    public Batch claim() {
+        int count = 0;
+        for (int i = head; ; i = next(i)) {
+            if (state[i] == FILLED && ring[i].position() > 0) {
+                count++;
+            }
+            if (i == tail) {
+                break;
+            }
+        }
+        int[] buffers = new int[count];
+        ByteBuffer[] contents = new ByteBuffer[count];
+        long[] lsns = new long[count];
+        int k = 0;
+        for (int i = head; ; i = next(i)) {
+            if (state[i] == FILLED && ring[i].position() > 0) {
+                state[i] = CLAIMED;
+                buffers[k] = i;
+                // flip() returns a Buffer up to Java 8, so the cast keeps this
+                // compiling there, and later javac versions find it redundant
+                @SuppressWarnings("cast")
+                ByteBuffer content = (ByteBuffer) ring[i].duplicate().flip();
+                contents[k] = content;
+                lsns[k] = startLsn[i];
+                k++;
+            }
+            if (i == tail) {
+                break;
+            }
+        }
+        return new Batch(generation, buffers, contents, lsns);
+    }
+
+    /**
+     * Hand back the buffers of a batch once it was written, so they can be reused.
+     */
+    public void release(Batch batch) {
+        if (batch.generation != generation) {
+            return; // the ring was reset while the batch was written
+        }
+        for (int i : batch.buffers) {
+            state[i] = WRITTEN;
+        }
+        while (state[head] == WRITTEN) {
+            ring[head].clear();
+            if (head == tail) {
+                // everything was written: start over in the same buffer
+                state[head] = FILLED;
+                startLsn[head] = endLsn;
+                break;
+            }
+            state[head] = FREE;
+            head = next(head);
+        }
+    }
+
+    private int next(int i) {
+        return (i + 1) % ring.length;
+    }
+}
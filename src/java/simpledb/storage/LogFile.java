@@ -6,8 +6,12 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -18,24 +22,65 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+Many of the methods here hold the log lock (to prevent concurrent log
+writes from happening); many of the methods in BufferPool hold the
+buffer pool lock (for similar reasons.)  Problem is that BufferPool writes
+log records (on page flushed) and the log file discards BufferPool
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+must take the buffer pool lock before the log lock:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
+    BufferPool bp = Database.getBufferPool();
+    bp.lockPool();
+    lock.lock();
+    try {
 
        ..
 
-       }
+    } finally {
+        lock.unlock();
+        bp.unlockPool();
     }
 </pre>
+
+Both are ReentrantLocks rather than monitors, so that a virtual thread
+blocked on them, or holding them while it forces the log, does not pin
+its carrier thread.
+
+<u> Group commit: </u>
+<p>
+
+Committing transactions do not force the log themselves.  They append
+their COMMIT record, ask for the log to be durable up to the end of it,
+and wait.  A single log writer thread forces the log once for every
+transaction waiting at that moment; committers that arrive during the
+force are served by the next one.  The writer can be told to wait up to
+a maximum delay before forcing, to let more committers join a batch
+(see setMaxCommitDelay).  The writer is started on demand and exits when
+nobody has needed it for a while.
+
+<u> Log buffer: </u>
+<p>
+
+Log records are not written to the file field by field.  Each record is
+serialized by the calling thread and copied to a LogBuffer, a ring of
+direct buffers, at the LSN of the record: its offset in the log.  The buffered tail of the log is written out in large
+sequential chunks, by the log writer before it forces the log, or by
+the appending thread when the ring is full.  Whatever reads the log
+back (rollback, truncation, recovery) first writes out the buffer.
+
+<u> Segments: </u>
+<p>
+
+The log is not a single file.  Its bytes are stored in segment files of
+a fixed size (see LogSegments), named after the log file followed by the
+segment number, and the log file itself is a small control file.  LSNs
+never change: truncating the log deletes the segments that only hold
+records no checkpoint needs anymore, or moves them to an archive
+directory (see setArchiveDirectory), instead of copying the rest of the
+log to a new file.
 */
 
 /**
@@ -43,40 +88,92 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The first long integer of the control file represents the offset of
+the last written checkpoint, or -1 if there are no checkpoints.  The
+second one is the offset of the first record of the log: records before
+it were truncated.  The third one is the size of the segments.
 
-<li> All additional data in the log consists of log records.  Log
+<li> The log itself consists of log records, starting at offset 8.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record is framed by an integer length, the number of bytes
+that follow the frame, and the integer CRC-32C of those bytes.  A record
+whose length or checksum does not match, such as a record torn by a
+crash, ends the log.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record then begins with an integer type, a long integer
+transaction id and a long integer prevLSN: the offset of the previous
+record of the same transaction, or -1 for the first one (and for
+CHECKPOINT records).  Rollback follows this chain backwards, so it reads
+only the records of the transaction it rolls back.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> Each log record ends with a long integer offset representing
+the position in the log where the record began.
+
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of the byte ranges of a page that a flush
+changed, with their contents before and after it.  They are
+serialized PageDelta objects; see PageDelta.write() for the format.
+If compression is on (see setCompressUpdates), the PageDelta may be
+deflated instead: the type is ORed with COMPRESSED, and the record holds
+the integer length of the PageDelta, the integer length of the deflated
+bytes, and the deflated bytes.
+Rollback and recovery undo them by writing the before bytes to the
+page on disk, and redo them by writing the after bytes.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed by
+the dirty page table.  The format of the record is an integer count of
+the number of transactions, as well as a long integer transaction id and
+a long integer first record offset and a long integer last record offset
+for each active transaction, then an
+integer count of dirty pages, and a page id (see PageDelta.writePageId)
+and a long integer recLSN for each of them.
+
+<li> CLR (compensation) records are written when an UPDATE record is
+undone, by rollback or by recovery.  They consist of a long integer
+undoNext offset, the offset of the next UPDATE record of the
+transaction that remains to be undone (or -1 if there is none), and a
+serialized PageDelta that undoes the update.  CLRs are redone but
+never undone, so an interrupted rollback resumes where it stopped.
 
 </ul>
+
+<p> Recovery follows ARIES.  The analysis pass reads the log from the
+last checkpoint, rebuilding the transaction table (the transactions
+that were live at the crash, and their first records) and the dirty
+page table (the pages updated since the checkpoint, and the first
+record that updated them: their recLSN).  The redo pass repeats
+history from the oldest recLSN, redoing UPDATE records and CLRs alike;
+the pages are divided among a pool of threads, each of which redoes the
+records of its pages in log order into images of them, and writes each
+page once at the end (see setRedoThreads).
+The undo pass rolls back the transactions still live, walking their
+prevLSN chains backwards from their last records, newest update first, logging a CLR for each update it undoes, and ends them with an
+ABORT record.
+
+<p> Checkpoints are fuzzy: they do not write out any page, and do not
+lock the BufferPool.  UPDATE records are only written when the
+BufferPool writes a page out, right before the page itself, so the
+dirty page table only holds the pages between those two steps: a
+page enters it with its first UPDATE record (its recLSN) and leaves
+it when the BufferPool reports it written (see pagesWritten).
+Analysis reads the log from the last checkpoint, and redo from the
+oldest recLSN of the checkpoint or after it.  A checkpoint is taken in
+the background whenever a given volume of log was written since the
+last one (see setCheckpointInterval).
+Pages do not carry their LSN on disk; instead the updates are byte
+ranges that can be written any number of times (see PageDelta), so
+redo needs no pageLSN test to be idempotent.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,17 +181,82 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** set in the type of an UPDATE record whose PageDelta is deflated */
+    static final int COMPRESSED = 0x100;
+
+    /** the length and checksum that precede every record */
+    static final int FRAME_SIZE = 8;
+
+    /** Records longer than this are taken for garbage */
+    static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /** UPDATE records with shorter PageDeltas are never compressed */
+    static final int MIN_COMPRESSED_SIZE = 128;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    long currentOffset = -1;//protected by lock
 //    int pageSize;
-    int totalRecords = 0; // for PatchTest //protected by this
+    int totalRecords = 0; // for PatchTest //protected by lock
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** live transactions and their last record, the prevLSN of their next one */
+    final Map<Long,Long> tidToLastLogRecord = new HashMap<>();
+
+    /** live transactions that have logged an UPDATE record; the others have nothing to roll back */
+    final Set<Long> tidsWithUpdates = new HashSet<>();
+
+    /** protects segments and the fields above and below */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** held while the log is forced, so segments are not closed under the log writer */
+    private final ReentrantLock forceLock = new ReentrantLock();
+
+    /** signalled when a transaction waits for the log to become durable */
+    private final Condition flushRequested = lock.newCondition();
+
+    /** signalled after every force */
+    private final Condition flushDone = lock.newCondition();
+
+    /** the tail of the log that was not written to the segments yet; protected by lock */
+    private final LogBuffer buffer = new LogBuffer();
+
+    /** signalled when buffers written by the log writer are handed back */
+    private final Condition bufferFreed = lock.newCondition();
+
+    /** How long the log writer lives without work before it exits, in ms */
+    static final long WRITER_IDLE_MILLIS = 1000;
+
+    long durableOffset = 0; // the log is on disk up to here
+    long requestedOffset = 0; // some transaction waits for the log to be on disk up to here
+    int epoch = 0; // incremented whenever offsets are invalidated by recovery
+    long forceCount = 0; // number of times the log was forced
+    long maxCommitDelayNanos = 0;
+    Thread writer = null;
+    IOException writerFailure = null;
+
+    /** pages whose UPDATE records may not be written out yet, and the first such record (their recLSN) */
+    final Map<PageId,Long> dirtyPages = new HashMap<>();
+
+    /** Default volume of log written between two checkpoints, in bytes */
+    static final long DEFAULT_CHECKPOINT_INTERVAL = 64L * 1024 * 1024;
+
+    long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL; // 0 if checkpoints are not scheduled
+    long lastCheckpoint = 0; // offset of the last checkpoint record
+    boolean checkpointing = false; // a scheduled checkpoint is running
+    long checkpointCount = 0; // number of checkpoints taken
+
+    int redoThreads = Runtime.getRuntime().availableProcessors(); // threads of the redo pass
+    volatile boolean compressUpdates = false; // deflate the PageDeltas of UPDATE records
+
+    /** Default size of a segment of the log, in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = 16L * 1024 * 1024;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -107,8 +269,19 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        Back the log file with the specified control file, storing the
+        log in segments of the specified size next to it.
+
+        @param f The log file's name
+        @param segmentSize The size of a segment, in bytes
+    */
+    public LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, segmentSize);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,16 +302,110 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            segments.clear();
+            segments.writeControl(NO_CHECKPOINT_ID, LONG_SIZE);
+            currentOffset = LONG_SIZE;
+            lastCheckpoint = currentOffset;
+            buffer.reset(currentOffset);
+        }
+    }
+
+    // a log record serialized by the calling thread, without the start
+    // offset that ends it; see newRecord and appendRecord
+    private static class Record extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+        final long tid;
+
+        Record(long tid, int size) {
+            super(size);
+            this.tid = tid;
+        }
+
+        // the serialized bytes, without copying them
+        byte[] bytes() {
+            return buf;
+        }
+
+        // end the record with its start offset, and fill in the length and
+        // checksum that frame it
+        void seal(long start) throws IOException {
+            out.writeLong(start);
+            int length = count - FRAME_SIZE;
+            int crc = Crc32c.checksum(buf, FRAME_SIZE, length);
+            ByteBuffer.wrap(buf, 0, FRAME_SIZE).putInt(length).putInt(crc);
+        }
+    }
+
+    // start a record of a transaction (or -1 for none) with room for its
+    // frame, its type, the tid and the prevLSN of the transaction. lock
+    // must be held until the record is appended.
+    private Record newRecord(int type, long tid, int size) throws IOException {
+        Record r = new Record(tid, size);
+        r.out.writeInt(0); // length and checksum, see Record.seal
+        r.out.writeInt(0);
+        r.out.writeInt(type);
+        r.out.writeLong(tid);
+        r.out.writeLong(tidToLastLogRecord.getOrDefault(tid, -1L));
+        return r;
+    }
+
+    // end a record with its start offset and copy it to the log buffer,
+    // returning that offset. lock must be held; it is released while
+    // waiting for the log writer to hand back buffers.
+    private long appendRecord(Record r) throws IOException {
+        int len = r.size() + LONG_SIZE;
+        if (len > buffer.capacity()) {
+            // larger than the whole ring: write it out directly
+            flushBuffer();
+            r.seal(currentOffset);
+            segments.write(ByteBuffer.wrap(r.bytes(), 0, len), currentOffset);
+            buffer.skip(len);
+        } else {
+            while (!buffer.hasRoom(len)) {
+                if (buffer.hasClaimed()) {
+                    bufferFreed.awaitUninterruptibly();
+                } else {
+                    flushBuffer();
+                }
+            }
+            r.seal(currentOffset);
+            buffer.append(r.bytes(), 0, len);
+        }
+        long start = currentOffset;
+        currentOffset = buffer.getEndLsn();
+        if (r.tid != -1) {
+            tidToLastLogRecord.put(r.tid, start);
+        }
+        if (checkpointInterval > 0 && !checkpointing
+                && currentOffset - lastCheckpoint >= checkpointInterval) {
+            checkpointing = true;
+            Thread checkpointer = new Thread(this::scheduledCheckpoint, "checkpointer");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+        return start;
+    }
+
+    // write the log buffer to the segments, without forcing it. lock must be
+    // held; it is released while the log writer writes out its batch.
+    private void flushBuffer() throws IOException {
+        while (buffer.hasClaimed()) {
+            bufferFreed.awaitUninterruptibly();
+        }
+        LogBuffer.Batch batch = buffer.claim();
+        if (!batch.isEmpty()) {
+            batch.writeTo(segments);
         }
+        buffer.release(batch);
     }
 
-    public synchronized int getTotalRecords() {
-        return totalRecords;
+    public int getTotalRecords() {
+        lock.lock();
+        try {
+            return totalRecords;
+        } finally {
+            lock.unlock();
+        }
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -149,301 +416,346 @@ public class LogFile {
         // must have buffer pool lock before proceeding, since this
         // calls rollback
 
-        synchronized (Database.getBufferPool()) {
-
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
-            }
+        BufferPool bp = Database.getBufferPool();
+        bp.lockPool();
+        lock.lock();
+        try {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
+
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
+
+            appendRecord(newRecord(ABORT_RECORD, tid.getId(), 32));
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            tidsWithUpdates.remove(tid.getId());
+        } finally {
+            lock.unlock();
+            bp.unlockPool();
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and wait until the log writer has forced it to disk.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        lock.lock();
+        try {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            appendRecord(newRecord(COMMIT_RECORD, tid.getId(), 32));
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLogRecord.remove(tid.getId());
+            tidsWithUpdates.remove(tid.getId());
+            awaitDurable(currentOffset);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The after
+        image is stamped with the LSN of the record.
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
-        /* update record conists of
-
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        logWrite(tid, before.getPageData(), after);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
-
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** Write an UPDATE record to disk for the specified tid and page.
+        Only the bytes that differ between the two images are logged.
+        @param tid The transaction performing the write
+        @param before The data of the page as of the previous UPDATE
+        record for it, or as of the last commit if there is none
+        @param after The page being written
+    */
+    public  void logWrite(TransactionId tid, byte[] before,
+                                       Page after)
+        throws IOException  {
+        PageDelta delta = PageDelta.diff(after.getId(), before, after.getPageData());
+        ByteArrayOutputStream body = new ByteArrayOutputStream(2 * delta.getChangedBytes() + 64);
+        delta.write(new DataOutputStream(body));
+        byte[] deflated = compressUpdates ? deflate(body.toByteArray()) : null;
+        lock.lock();
+        try {
+            Debug.log("WRITE, offset = " + currentOffset);
+            preAppend();
+            /* update record conists of
+
+               length and checksum
+               record type
+               transaction id
+               prevLSN
+               changed byte ranges (see PageDelta.write), possibly deflated
+               start offset
+            */
+            Record r;
+            if (deflated != null) {
+                r = newRecord(UPDATE_RECORD | COMPRESSED, tid.getId(), deflated.length + 64);
+                r.out.writeInt(body.size());
+                r.out.writeInt(deflated.length);
+                r.out.write(deflated);
+            } else {
+                r = newRecord(UPDATE_RECORD, tid.getId(), body.size() + 64);
+                body.writeTo(r.out);
+            }
+            tidsWithUpdates.add(tid.getId());
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+            dirtyPages.putIfAbsent(after.getId(), appendRecord(r));
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+            Debug.log("WRITE OFFSET = " + currentOffset);
+        } finally {
+            lock.unlock();
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
+    // deflate the serialized PageDelta of an UPDATE record; null if it is
+    // too short to bother or does not shrink
+    private static byte[] deflate(byte[] data) {
+        if (data.length < MIN_COMPRESSED_SIZE) {
+            return null;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] out = new byte[data.length];
+            int n = deflater.deflate(out);
+            if (!deflater.finished() || n >= data.length) {
+                return null;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+            return Arrays.copyOf(out, n);
+        } finally {
+            deflater.end();
         }
-        return newPage;
+    }
 
+    /** Set whether UPDATE records are compressed.  The changed byte
+        ranges of a page are deflated when that makes the record shorter,
+        which pays off for updates that change large parts of a page.
+        Recovery reads compressed and plain records alike.
+        @param compress True to deflate UPDATE records
+    */
+    public void setCompressUpdates(boolean compress) {
+        compressUpdates = compress;
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
-        Debug.log("BEGIN");
-        if(tidToFirstLogRecord.get(tid.getId()) != null){
-            System.err.print("logXactionBegin: already began this tid\n");
-            throw new IOException("double logXactionBegin()");
+        lock.lock();
+        try {
+            Debug.log("BEGIN");
+            if(tidToFirstLogRecord.get(tid.getId()) != null){
+                System.err.print("logXactionBegin: already began this tid\n");
+                throw new IOException("double logXactionBegin()");
+            }
+            preAppend();
+            tidToFirstLogRecord.put(tid.getId(), appendRecord(newRecord(BEGIN_RECORD, tid.getId(), 32)));
+
+            Debug.log("BEGIN OFFSET = " + currentOffset);
+        } finally {
+            lock.unlock();
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+    }
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+    /** Tell the log that the BufferPool wrote out pages it logged with
+        logWrite, so recovery does not need to redo their UPDATE records.
+        @param pids The pages written out
+    */
+    public void pagesWritten(Collection<PageId> pids) {
+        lock.lock();
+        try {
+            for (PageId pid : pids) {
+                dirtyPages.remove(pid);
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: it records the live transactions and the dirty page
+        table without writing out any page, so transactions keep running
+        while it is taken.  The log is truncated afterwards.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        lock.lock();
+        try {
+            preAppend();
+            // make room, so the tables do not change while the record is appended
+            flushBuffer();
+            long startCpOffset;
+            Record r = newRecord(CHECKPOINT_RECORD, -1, 256); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            r.out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                r.out.writeLong(e.getKey());
+                r.out.writeLong(e.getValue());
+                r.out.writeLong(tidToLastLogRecord.get(e.getKey()));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            r.out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                PageDelta.writePageId(r.out, e.getKey());
+                r.out.writeLong(e.getValue());
             }
+            startCpOffset = appendRecord(r);
+
+            //once the CP is on disk, make sure the CP location in the
+            // control file is updated
+            int cpEpoch = epoch;
+            awaitDurable(currentOffset);
+            if (epoch != cpEpoch) {
+                return; // the log was replaced meanwhile, by recovery
+            }
+            segments.writeControl(startCpOffset, segments.readStart());
+            lastCheckpoint = startCpOffset;
+            checkpointCount++;
+        } finally {
+            lock.unlock();
         }
 
         logTruncate();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    /** Set how much log is written between two checkpoints taken in the
+        background.  0 turns scheduled checkpoints off.
+        @param bytes The volume of log, in bytes
+    */
+    public void setCheckpointInterval(long bytes) {
+        lock.lock();
+        try {
+            checkpointInterval = bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Return the number of checkpoints taken */
+    public long getCheckpointCount() {
+        lock.lock();
+        try {
+            return checkpointCount;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        long minLogRecord = cpLoc;
+    // body of the checkpointer thread, started by appendRecord once enough
+    // log was written since the last checkpoint
+    private void scheduledCheckpoint() {
+        try {
+            logCheckpoint();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.lock();
+            try {
+                checkpointing = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  The log is needed from the oldest of the last
+        checkpoint, the first records of the transactions live at the
+        checkpoint and the recLSNs of its dirty pages; the segments that
+        end before it are deleted, or archived.  No record is copied.
+    */
+    public void logTruncate() throws IOException {
+        lock.lock();
+        try {
+            preAppend();
+            long cpLoc = segments.readCheckpoint();
+            if (cpLoc == NO_CHECKPOINT_ID) {
+                return;
+            }
 
-            if (cpType != CHECKPOINT_RECORD) {
+            // the control file only points at checkpoints that are on disk
+            LogRecord cp = LogRecord.read(segments.reader(cpLoc));
+            if (cp == null || cp.type != CHECKPOINT_RECORD) {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+            long minLogRecord = cpLoc;
+            for (long firstLogRecord : cp.firstLsns) {
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
 
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+            // redo starts at the oldest recLSN
+            for (long recLsn : cp.recLsns) {
+                if (recLsn < minLogRecord) {
+                    minLogRecord = recLsn;
                 }
+            }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+            Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
 
-            } catch (EOFException e) {
-                break;
-            }
+            // after a crash, the control file must not point into a dropped segment
+            segments.writeControl(cpLoc, minLogRecord);
+            segments.forceControl();
+            segments.truncateBefore(minLogRecord);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+    /** Move the segments dropped by logTruncate to the specified
+        directory, where they can be kept for point-in-time recovery,
+        instead of deleting them.
+        @param dir The archive directory, or null to delete segments again
+    */
+    public void setArchiveDirectory(File dir) {
+        segments.setArchive(dir);
+    }
 
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    /** Set how many threads redo the log during recovery.  Records of
+        different pages are redone concurrently; 1 redoes the whole log in
+        the recovering thread.
+        @param threads The number of redo threads
+    */
+    public void setRedoThreads(int threads) {
+        lock.lock();
+        try {
+            redoThreads = threads;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** Return the LSN the next log record will be appended at */
+    public long getEndLsn() {
+        lock.lock();
+        try {
+            return currentOffset;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -456,60 +768,106 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                Long firstLogRecord=tidToFirstLogRecord.get(tid.getId());
-                raf.seek(firstLogRecord);
-                Set<PageId> set=new HashSet<>();
-
-                while(true){
-                    try {
-                        int type=raf.readInt();
-                        long txid=raf.readLong();
-
-                        switch (type){
-                            case UPDATE_RECORD :
-                                Page beforePage = readPageData(raf);
-                                Page afterPage = readPageData(raf);
-                                PageId pageId = beforePage.getId();
-                                if(txid == tid.getId() && !set.contains(pageId)){
-                                    set.add(pageId);
-                                    Database.getBufferPool().discardPage(pageId);
-                                    Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beforePage);
-                                }
-                                break;
-                            case CHECKPOINT_RECORD :
-                                int txCnt=raf.readInt();
-                                while(txCnt -- > 0){
-                                    raf.readLong();
-                                    raf.readLong();
+        BufferPool bp = Database.getBufferPool();
+        bp.lockPool();
+        lock.lock();
+        try {
+            preAppend();
+            if(!tidsWithUpdates.contains(tid.getId())) {
+                // nothing was written to disk on behalf of tid: don't scan the log with the pool locked
+                return;
+            }
+            flushBuffer();
+            undoUpdates(pendingUpdates(Collections.singleton(tidToLastLogRecord.get(tid.getId()))));
+        } finally {
+            lock.unlock();
+            bp.unlockPool();
+        }
+    }
 
-                                }
-                                break;
-                            default:break;
-                        }
-                        raf.readLong();
-                    }catch (EOFException e){
-                        e.printStackTrace();
-                        break;
-                    }
-                }
+    // collect the UPDATE records that rolling back transactions has to
+    // undo, given their last records: walk their prevLSN chains backwards,
+    // newest record first, skipping from each CLR to the next update it
+    // did not compensate. returns the updates in log order.
+    private List<LogRecord> pendingUpdates(Collection<Long> lastLogRecords) throws IOException {
+        PriorityQueue<Long> next = new PriorityQueue<>(Collections.reverseOrder());
+        next.addAll(lastLogRecords);
+        List<LogRecord> pending = new ArrayList<>();
+        LogSegments.Reader in = segments.reader(LONG_SIZE);
+        while (!next.isEmpty()) {
+            long lsn = next.poll();
+            in.seek(lsn);
+            LogRecord r = LogRecord.read(in);
+            if (r == null) {
+                throw new IOException("log record " + lsn + " of a live transaction is missing");
+            }
+            long prev = r.prev;
+            if (r.type == UPDATE_RECORD) {
+                pending.add(r);
+            } else if (r.type == CLR_RECORD) {
+                prev = r.undoNext;
+            }
+            if (prev != -1) {
+                next.add(prev);
             }
         }
+        Collections.reverse(pending);
+        return pending;
+    }
+
+    // undo UPDATE records, given in log order: log a CLR for each, newest
+    // first, force the log, then apply the before bytes to images of the
+    // pages, and write each page once. lock
+    // and the buffer pool lock must be held.
+    private void undoUpdates(List<LogRecord> updates) throws IOException {
+        if (updates.isEmpty()) {
+            return;
+        }
+        long[] undoNext = new long[updates.size()];
+        Map<Long, Long> previous = new HashMap<>();
+        for (int i = 0; i < updates.size(); i++) {
+            LogRecord u = updates.get(i);
+            undoNext[i] = previous.getOrDefault(u.tid, -1L);
+            previous.put(u.tid, u.lsn);
+        }
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            LogRecord u = updates.get(i);
+            preAppend();
+            Record r = newRecord(CLR_RECORD, u.tid, 2 * u.delta.getChangedBytes() + 128);
+            r.out.writeLong(undoNext[i]);
+            u.delta.inverse().write(r.out);
+            appendRecord(r);
+        }
+        forceNow(); // write ahead: the CLRs are on disk before the pages
+        BufferPool bp = Database.getBufferPool();
+        PageDelta.Images images = new PageDelta.Images();
+        for (int i = updates.size() - 1; i >= 0; i--) {
+            PageDelta delta = updates.get(i).delta;
+            bp.discardPage(delta.getPageId());
+            delta.undo(images);
+        }
+        images.write(); // each page once
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        lock.lock();
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            forceLock.lock();
+            try {
+                segments.close();
+            } finally {
+                forceLock.unlock();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -518,153 +876,328 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                raf=new RandomAccessFile(logFile,"rw");
-                Set<Long> committedId=new HashSet<>();
-
-                Map<Long,List<Page>> beforePages=new HashMap<>();
-                Map<Long,List<Page>> afterPages=new HashMap<>();
-
-                Long checkPoint=raf.readLong();
-
-                if(checkPoint!=-1){
-     //               raf.seek(checkPoint);
-                }
-                while(true){
-                    try {
-                        int type=raf.readInt();
-                        long txid= raf.readLong();
-
-                        switch (type){
-                            case UPDATE_RECORD:
-                                Page beforePage=readPageData(raf);
-                                Page afterPage=readPageData(raf);
-                                List<Page> l1=beforePages.getOrDefault(txid,new ArrayList<>());
-                                l1.add(beforePage);
-                                beforePages.put(txid,l1);
-                                List<Page> l2=afterPages.getOrDefault(txid,new ArrayList<>());
-                                l2.add(afterPage);
-                                afterPages.put(txid,l2);
-                                break;
-                            case COMMIT_RECORD:
-                                committedId.add(txid);
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int numTxs=raf.readInt();
-                                while (numTxs -- > 0){
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                                break;
-                            default:break;
+        BufferPool bp = Database.getBufferPool();
+        bp.lockPool();
+        lock.lock();
+        try {
+            recoveryUndecided = false;
+            flushBuffer();
+            forceLock.lock();
+            try {
+                segments.close();
+                segments=new LogSegments(logFile,segments.getSegmentSize());
+            } finally {
+                forceLock.unlock();
+            }
+            long checkPoint=segments.readCheckpoint();
+            if(checkPoint==NO_CHECKPOINT_ID){
+                segments.writeControl(NO_CHECKPOINT_ID,LONG_SIZE);
+            }
+            long start=checkPoint==NO_CHECKPOINT_ID?LONG_SIZE:checkPoint;
+
+            // analysis: rebuild the transaction table (tid -> first record,
+            // tid -> last record) and the dirty page table (page -> recLSN)
+            // as of the crash
+            Map<Long,Long> liveTids=new HashMap<>();
+            Map<Long,Long> lastLsns=new HashMap<>();
+            Map<PageId,Long> recLsns=new HashMap<>();
+            long end=start;
+            LogSegments.Reader in=segments.reader(start);
+            LogRecord r;
+            while((r=LogRecord.read(in))!=null){
+                end=r.end;
+                switch (r.type){
+                    case CHECKPOINT_RECORD:
+                        for(int i=0;i<r.liveTids.length;i++){
+                            liveTids.putIfAbsent(r.liveTids[i],r.firstLsns[i]);
+                            lastLsns.merge(r.liveTids[i],r.lastLsns[i],Math::max);
+                        }
+                        for(int i=0;i<r.dirtyPages.length;i++){
+                            recLsns.putIfAbsent(r.dirtyPages[i],r.recLsns[i]);
                         }
-                        raf.readLong();
-                    }catch (EOFException e){
-                        e.printStackTrace();
                         break;
-                    }
+                    case BEGIN_RECORD:
+                        liveTids.put(r.tid,r.lsn);
+                        lastLsns.put(r.tid,r.lsn);
+                        break;
+                    case UPDATE_RECORD:
+                    case CLR_RECORD:
+                        liveTids.putIfAbsent(r.tid,r.lsn);
+                        lastLsns.put(r.tid,r.lsn);
+                        recLsns.putIfAbsent(r.delta.getPageId(),r.lsn);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        liveTids.remove(r.tid);
+                        lastLsns.remove(r.tid);
+                        break;
+                    default:break;
                 }
-
-                for(long txid:beforePages.keySet()){
-                    if(!committedId.contains(txid)){
-                        List<Page> pages=beforePages.get(txid);
-                        for(Page page:pages){
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            }
+            // a record torn by the crash is not part of the log
+            segments.truncateAfter(end);
+
+            // redo: repeat history from the oldest recLSN, one page per worker
+            if(!recLsns.isEmpty()){
+                Set<PageId> discarded=new HashSet<>();
+                ParallelRedo redo=new ParallelRedo(redoThreads);
+                try{
+                    in=segments.reader(Collections.min(recLsns.values()));
+                    while((r=LogRecord.read(in))!=null){
+                        if(r.type==UPDATE_RECORD||r.type==CLR_RECORD){
+                            Long recLsn=recLsns.get(r.delta.getPageId());
+                            if(recLsn!=null&&r.lsn>=recLsn){
+                                if(discarded.add(r.delta.getPageId())){
+                                    bp.discardPage(r.delta.getPageId());
+                                }
+                                redo.submit(r.delta);
+                            }
                         }
                     }
+                }finally{
+                    redo.finish();
                 }
-                for (long txid: committedId){
-                    if(afterPages.containsKey(txid)){
-                        List<Page> pages=afterPages.get(txid);
-                        for(Page page:pages){
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
-                    }
+            }
+
+            // new records go after the recovered ones
+            currentOffset = end;
+            buffer.reset(currentOffset);
+
+            // undo: roll back the transactions that were live at the crash
+            if(!liveTids.isEmpty()){
+                tidToLastLogRecord.putAll(lastLsns);
+                undoUpdates(pendingUpdates(lastLsns.values()));
+                for(long tid:liveTids.keySet()){
+                    preAppend();
+                    appendRecord(newRecord(ABORT_RECORD,tid,32));
+                    tidToLastLogRecord.remove(tid);
                 }
+                forceNow();
             }
-         }
+            // every page is on disk as of the end of the log
+            dirtyPages.clear();
+            lastCheckpoint=start;
+            logReplaced();
+        } finally {
+            lock.unlock();
+            bp.unlockPool();
+        }
     }
 
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+        lock.lock();
+        try {
+            flushBuffer();
+            printFile();
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        raf.seek(0);
+    private void printFile() throws IOException {
+        System.out.println("0: checkpoint record at offset " + segments.readCheckpoint());
+        long first = Math.max(segments.readStart(), LONG_SIZE);
+        System.out.println("8: first record at offset " + first);
+
+        LogSegments.Reader in = segments.reader(first);
+        LogRecord r;
+        while ((r = LogRecord.read(in)) != null) {
+            System.out.println(r.lsn + ": RECORD TYPE " + r.type + (r.compressed ? " (COMPRESSED)" : ""));
+            System.out.println(r.lsn + ": TID " + r.tid);
+            System.out.println(r.lsn + ": PREV LSN " + r.prev);
+
+            switch (r.type) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT)");
+                System.out.println(r.lsn + ": NUMBER OF OUTSTANDING RECORDS: " + r.liveTids.length);
+                for (int i = 0; i < r.liveTids.length; i++) {
+                    System.out.println(r.lsn + ": TID: " + r.liveTids[i]);
+                    System.out.println(r.lsn + ": FIRST LOG RECORD: " + r.firstLsns[i]);
+                    System.out.println(r.lsn + ": LAST LOG RECORD: " + r.lastLsns[i]);
+                }
+                System.out.println(r.lsn + ": NUMBER OF DIRTY PAGES: " + r.dirtyPages.length);
+                for (int i = 0; i < r.dirtyPages.length; i++) {
+                    PageId pid = r.dirtyPages[i];
+                    System.out.println(r.lsn + ": PAGE: " + pid.getTableId() + ":" + pid.getPageNumber());
+                    System.out.println(r.lsn + ": RECLSN: " + r.recLsns[i]);
+                }
+                break;
+            case CLR_RECORD:
+                System.out.println(" (CLR)");
+                System.out.println(r.lsn + ": UNDO NEXT: " + r.undoNext);
+                printDelta(r);
+                break;
+            case UPDATE_RECORD:
+                System.out.println(" (UPDATE)");
+                printDelta(r);
+                break;
+            }
+            System.out.println(r.lsn + " TO " + r.end + ": RECORD OF " + (r.end - r.lsn) + " BYTES");
+        }
+    }
 
-        while (true) {
-            try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    // the page change of an UPDATE record, or of the CLR compensating one
+    private static void printDelta(LogRecord r) {
+        System.out.println(r.lsn + ": table id " + r.delta.getPageId().getTableId());
+        System.out.println(r.lsn + ": page number " + r.delta.getPageId().getPageNumber());
+        System.out.println(r.lsn + ": " + r.delta.getRangeCount()
+                + " changed ranges, " + r.delta.getChangedBytes() + " bytes");
+    }
 
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
+    /** Force everything logged so far to disk.  Called from the middle of
+        a log operation, the log is forced right away; otherwise the caller
+        joins the next group force of the log writer.
+    */
+    public void force() throws IOException {
+        lock.lock();
+        try {
+            if (lock.getHoldCount() > 1) {
+                forceNow();
+            } else {
+                awaitDurable(currentOffset);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+    /** Set how long the log writer may wait for more committers before it
+        forces the log.  0, the default, forces as soon as anybody waits;
+        transactions that arrive during a force still share the next one.
+        @param micros The maximum delay, in microseconds
+    */
+    public void setMaxCommitDelay(long micros) {
+        lock.lock();
+        try {
+            maxCommitDelayNanos = TimeUnit.MICROSECONDS.toNanos(micros);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+    /** Return the number of times the log was forced to disk */
+    public long getForceCount() {
+        lock.lock();
+        try {
+            return forceCount;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+    // the log was replaced and everything in it is on disk: older
+    // offsets mean nothing anymore. lock must be held.
+    private void logReplaced() {
+        epoch++;
+        durableOffset = currentOffset;
+        requestedOffset = currentOffset;
+        flushDone.signalAll();
+    }
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+    // force the log from the calling thread. lock must be held.
+    private void forceNow() throws IOException {
+        flushBuffer();
+        forceLock.lock();
+        try {
+            segments.force();
+        } finally {
+            forceLock.unlock();
+        }
+        forceCount++;
+        durableOffset = currentOffset;
+        flushDone.signalAll();
+    }
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+    // wait until the log writer has forced the log up to offset. lock must
+    // be held; it is released while waiting.
+    private void awaitDurable(long offset) throws IOException {
+        int waitEpoch = epoch;
+        if (offset > requestedOffset) {
+            requestedOffset = offset;
+        }
+        writerFailure = null; // whoever waited for the failed force waits for the next one
+        if (writer == null) {
+            writer = new Thread(this::writeLoop, "log writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        flushRequested.signal();
+        // recovery forces everything before it, invalidating older offsets
+        while (epoch == waitEpoch && durableOffset < offset) {
+            if (writerFailure != null) {
+                throw new IOException("could not force the log", writerFailure);
+            }
+            flushDone.awaitUninterruptibly();
+        }
+    }
 
-                    break;
+    // body of the log writer thread: force the log whenever someone waits for it
+    private void writeLoop() {
+        lock.lock();
+        try {
+            while (true) {
+                long idleUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WRITER_IDLE_MILLIS);
+                while (requestedOffset <= durableOffset) {
+                    long idle = idleUntil - System.nanoTime();
+                    if (idle <= 0) {
+                        writer = null;
+                        return;
+                    }
+                    flushRequested.awaitNanos(idle);
+                }
+                long delayUntil = System.nanoTime() + maxCommitDelayNanos;
+                long delay;
+                while ((delay = delayUntil - System.nanoTime()) > 0) {
+                    flushRequested.awaitNanos(delay);
                 }
 
-            } catch (EOFException e) {
-                //e.printStackTrace();
-                break;
+                // everything appended so far goes out with this force
+                while (buffer.hasClaimed()) {
+                    bufferFreed.awaitUninterruptibly();
+                }
+                int forceEpoch = epoch;
+                long target = currentOffset;
+                LogBuffer.Batch batch = buffer.claim();
+                LogSegments f = segments;
+                forceLock.lock();
+                lock.unlock();
+                IOException failure = null;
+                try {
+                    batch.writeTo(f);
+                    f.force();
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    forceLock.unlock();
+                    lock.lock();
+                }
+                buffer.release(batch);
+                bufferFreed.signalAll();
+                forceCount++;
+                writerFailure = failure;
+                if (failure != null) {
+                    requestedOffset = durableOffset; // the waiters give up
+                } else if (forceEpoch == epoch && target > durableOffset) {
+                    durableOffset = target;
+                }
+                flushDone.signalAll();
             }
+        } catch (InterruptedException e) {
+            writer = null;
+        } finally {
+            lock.unlock();
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
-    }
-
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
     }
 
 }
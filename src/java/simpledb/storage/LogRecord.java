@@ -0,0 +1,144 @@
+package simpledb.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * LogRecord is a log record read back from the log by rollback,
+ * truncation or recovery.  See {@link LogFile} for the format of the log.
+ */
+class LogRecord {
+
+    /** the record type, one of the LogFile *_RECORD constants */
+    final int type;
+
+    /** the transaction that wrote the record, or -1 for checkpoints */
+    final long tid;
+
+    /** the LSN of the record: the offset in the log where it starts */
+    final long lsn;
+
+    /** true if the body of the record was deflated in the log */
+    boolean compressed = false;
+
+    /** the LSN of the previous record of the transaction, or -1 */
+    long prev = -1;
+
+    /** the LSN of the record that follows this one */
+    long end;
+
+    /** the changed byte ranges of an UPDATE record, or the compensation of a CLR */
+    PageDelta delta;
+
+    /** for a CLR: the LSN of the next UPDATE of the transaction to undo, or -1 */
+    long undoNext = -1;
+
+    /** for a CHECKPOINT record: the live transactions and their first and last records */
+    long[] liveTids;
+    long[] firstLsns;
+    long[] lastLsns;
+
+    /** for a CHECKPOINT record: the dirty page table, pages and their recLSN */
+    PageId[] dirtyPages;
+    long[] recLsns;
+
+    private LogRecord(int type, long tid, long lsn) {
+        this.type = type;
+        this.tid = tid;
+        this.lsn = lsn;
+    }
+
+    /**
+     * Read the record that starts at the current position of the reader.
+     *
+     * @return the record, or null if the log ends before the record does,
+     * or the record does not match its checksum
+     */
+    static LogRecord read(LogSegments.Reader in) throws IOException {
+        long lsn = in.position();
+        byte[] payload;
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length < LogFile.INT_SIZE + 3 * LogFile.LONG_SIZE || length > LogFile.MAX_RECORD_SIZE) {
+                return null; // garbage where the frame should be
+            }
+            payload = new byte[length];
+            in.readFully(payload);
+            if (Crc32c.checksum(payload, 0, length) != crc) {
+                return null; // torn or garbled tail of the log
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+        int type = data.readInt();
+        LogRecord r = new LogRecord(type & ~LogFile.COMPRESSED, data.readLong(), lsn);
+        r.prev = data.readLong();
+        DataInputStream body = data;
+        if ((type & LogFile.COMPRESSED) != 0) {
+            r.compressed = true;
+            body = new DataInputStream(new ByteArrayInputStream(inflate(data)));
+        }
+        switch (r.type) {
+        case LogFile.UPDATE_RECORD:
+            r.delta = PageDelta.read(body);
+            break;
+        case LogFile.CLR_RECORD:
+            r.undoNext = body.readLong();
+            r.delta = PageDelta.read(body);
+            break;
+        case LogFile.CHECKPOINT_RECORD:
+            int count = body.readInt();
+            r.liveTids = new long[count];
+            r.firstLsns = new long[count];
+            r.lastLsns = new long[count];
+            for (int i = 0; i < count; i++) {
+                r.liveTids[i] = body.readLong();
+                r.firstLsns[i] = body.readLong();
+                r.lastLsns[i] = body.readLong();
+            }
+            int dirty = body.readInt();
+            r.dirtyPages = new PageId[dirty];
+            r.recLsns = new long[dirty];
+            for (int i = 0; i < dirty; i++) {
+                r.dirtyPages[i] = PageDelta.readPageId(body);
+                r.recLsns[i] = body.readLong();
+            }
+            break;
+        default:
+            break;
+        }
+        if (data.readLong() != lsn) {
+            return null; // a record copied from elsewhere in the log
+        }
+        r.end = in.position();
+        return r;
+    }
+
+    // read the deflated body of a compressed record: its length, the length
+    // of the deflated bytes, and the deflated bytes
+    private static byte[] inflate(DataInputStream data) throws IOException {
+        byte[] out = new byte[data.readInt()];
+        byte[] deflated = new byte[data.readInt()];
+        data.readFully(deflated);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int n = inflater.inflate(out);
+            if (n != out.length || !inflater.finished()) {
+                throw new IOException("compressed log record is corrupt");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("compressed log record is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
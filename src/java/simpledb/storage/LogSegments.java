@@ -0,0 +1,391 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LogSegments stores the log in segment files of a fixed size, next to a
+ * control file that holds the LSN of the last checkpoint, the LSN of the
+ * first record that was not truncated, and the segment size, so the log can
+ * be read back without knowing how it was configured.  Segment n holds
+ * the bytes of the log with LSNs from n * segmentSize up to
+ * (n + 1) * segmentSize, in a file named after the control file followed by
+ * the segment number.  Records may span segments.
+ * <p>
+ * LSNs never change: truncating the log deletes the segments that only hold
+ * bytes before a given LSN, or moves them to an archive directory, where
+ * they can be kept for point-in-time recovery.
+ * <p>
+ * Writes, forces and reads may come from different threads; the set of open
+ * segments is protected by a lock of its own.
+ */
+class LogSegments implements LogBuffer.Sink {
+
+    private static final int READ_CHUNK = 64 * 1024;
+
+    private final File control;
+    private final long segmentSize; // as recorded in the control file, if it was
+    private final RandomAccessFile controlFile;
+
+    /** protects segments, files and unforced */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    private final Map<Long, RandomAccessFile> files = new TreeMap<>();
+    private final Set<FileChannel> unforced = new HashSet<>();
+    private File archive = null;
+
+    /**
+     * Open the log stored next to the specified control file, creating the
+     * control file if needed.  An existing log keeps the segment size it
+     * was written with; the specified one only applies to a new log.
+     */
+    LogSegments(File control, long segmentSize) throws IOException {
+        this.control = control;
+        controlFile = new RandomAccessFile(control, "rw");
+        if (controlFile.length() == 3 * Long.BYTES) {
+            controlFile.seek(2 * Long.BYTES);
+            long stored = controlFile.readLong();
+            if (stored > 0) {
+                segmentSize = stored;
+            }
+        }
+        this.segmentSize = segmentSize;
+        File dir = control.getAbsoluteFile().getParentFile();
+        String prefix = control.getName() + ".";
+        File[] found = dir.listFiles();
+        if (found != null) {
+            for (File f : found) {
+                String name = f.getName();
+                if (name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                    open(Long.parseLong(name.substring(prefix.length())));
+                }
+            }
+        }
+    }
+
+    /** @return the file of the specified segment */
+    File segmentFile(long segment) {
+        return new File(control.getPath() + String.format(".%06d", segment));
+    }
+
+    /** @return the size of a segment, in bytes */
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Move segments dropped by {@link #truncateBefore} to the specified
+     * directory instead of deleting them, or delete them again if null.
+     */
+    void setArchive(File dir) {
+        lock.lock();
+        try {
+            archive = dir;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the LSN of the last checkpoint, or -1 if there is none or the
+     * control file is empty
+     */
+    long readCheckpoint() throws IOException {
+        if (controlFile.length() < 2 * Long.BYTES) {
+            return -1;
+        }
+        controlFile.seek(0);
+        return controlFile.readLong();
+    }
+
+    /**
+     * @return the LSN of the first record that was not truncated, or -1 if
+     * the control file is empty
+     */
+    long readStart() throws IOException {
+        if (controlFile.length() < 2 * Long.BYTES) {
+            return -1;
+        }
+        controlFile.seek(Long.BYTES);
+        return controlFile.readLong();
+    }
+
+    /**
+     * Point the control file at the specified checkpoint and first record,
+     * without forcing it.
+     */
+    void writeControl(long checkpoint, long start) throws IOException {
+        controlFile.seek(0);
+        controlFile.writeLong(checkpoint);
+        controlFile.writeLong(start);
+        controlFile.writeLong(segmentSize);
+    }
+
+    /** @return the numbers of the segments on disk, in order */
+    List<Long> getSegments() {
+        lock.lock();
+        try {
+            return new ArrayList<>(segments.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Force the control file to disk */
+    void forceControl() throws IOException {
+        controlFile.getChannel().force(true);
+    }
+
+    /** Write bytes of the log at the specified LSN, without forcing them */
+    public void write(ByteBuffer src, long lsn) throws IOException {
+        while (src.hasRemaining()) {
+            long segment = lsn / segmentSize;
+            long offset = lsn % segmentSize;
+            FileChannel channel;
+            lock.lock();
+            try {
+                channel = segments.get(segment);
+                if (channel == null) {
+                    channel = open(segment);
+                }
+                unforced.add(channel);
+            } finally {
+                lock.unlock();
+            }
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + (int) Math.min(src.remaining(), segmentSize - offset));
+            while (chunk.hasRemaining()) {
+                offset += channel.write(chunk, offset);
+            }
+            lsn += chunk.position() - src.position();
+            src.position(chunk.position());
+        }
+    }
+
+    /** Force every segment written since the last force to disk */
+    void force() throws IOException {
+        List<FileChannel> toForce;
+        lock.lock();
+        try {
+            toForce = new ArrayList<>(unforced);
+            unforced.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (FileChannel channel : toForce) {
+            channel.force(true);
+        }
+    }
+
+    /** @return a reader of the log starting at the specified LSN */
+    Reader reader(long lsn) {
+        return new Reader(new SegmentStream(lsn));
+    }
+
+    /**
+     * Drop the segments that only hold bytes before the specified LSN:
+     * move them to the archive directory if there is one, or delete them.
+     */
+    void truncateBefore(long lsn) throws IOException {
+        lock.lock();
+        try {
+            while (!segments.isEmpty() && (segments.firstKey() + 1) * segmentSize <= lsn) {
+                long segment = segments.firstKey();
+                close(segment);
+                File f = segmentFile(segment);
+                if (archive != null) {
+                    archive.mkdirs();
+                    Files.move(f.toPath(), new File(archive, f.getName()).toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    f.delete();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Cut off the bytes of the log from the specified LSN on */
+    void truncateAfter(long lsn) throws IOException {
+        lock.lock();
+        try {
+            while (!segments.isEmpty() && segments.lastKey() * segmentSize >= lsn) {
+                long segment = segments.lastKey();
+                close(segment);
+                segmentFile(segment).delete();
+            }
+            if (!segments.isEmpty()) {
+                Map.Entry<Long, FileChannel> last = segments.lastEntry();
+                long length = lsn - last.getKey() * segmentSize;
+                if (length < last.getValue().size()) {
+                    last.getValue().truncate(Math.max(length, 0));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Delete every segment, so the log starts over */
+    void clear() throws IOException {
+        lock.lock();
+        try {
+            for (long segment : new ArrayList<>(segments.keySet())) {
+                close(segment);
+                segmentFile(segment).delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Close every file of the log */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            for (long segment : new ArrayList<>(segments.keySet())) {
+                close(segment);
+            }
+            controlFile.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // lock must be held, or the constructor running
+    private FileChannel open(long segment) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(segmentFile(segment), "rw");
+        files.put(segment, f);
+        segments.put(segment, f.getChannel());
+        return f.getChannel();
+    }
+
+    // lock must be held
+    private void close(long segment) throws IOException {
+        unforced.remove(segments.remove(segment));
+        files.remove(segment).close();
+    }
+
+    // lock must not be held
+    private FileChannel channel(long segment) {
+        lock.lock();
+        try {
+            return segments.get(segment);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A sequential reader of the log that knows the LSN it is at.
+     */
+    static class Reader extends DataInputStream {
+        private final SegmentStream stream;
+
+        private Reader(SegmentStream stream) {
+            super(stream);
+            this.stream = stream;
+        }
+
+        /** @return the LSN of the next byte read */
+        long position() {
+            return stream.position();
+        }
+
+        /**
+         * Move to the specified LSN.  Bytes already read around it are
+         * kept, so records close to each other may be read in any order.
+         */
+        void seek(long lsn) throws IOException {
+            stream.seek(lsn);
+        }
+    }
+
+    // reads the segments in chunks, crossing from one to the next
+    private class SegmentStream extends InputStream {
+        private final ByteBuffer chunk = ByteBuffer.allocate(READ_CHUNK);
+        private long chunkLsn;
+
+        SegmentStream(long lsn) {
+            chunkLsn = lsn;
+            chunk.limit(0);
+        }
+
+        long position() {
+            return chunkLsn + chunk.position();
+        }
+
+        void seek(long lsn) throws IOException {
+            if (lsn >= chunkLsn && lsn < chunkLsn + chunk.limit()) {
+                chunk.position((int) (lsn - chunkLsn));
+                return;
+            }
+            // read the aligned chunk around lsn, within its segment
+            chunkLsn = Math.max(lsn - lsn % READ_CHUNK, lsn - lsn % segmentSize);
+            chunk.clear();
+            chunk.limit(0);
+            fill();
+            if (lsn - chunkLsn <= chunk.limit()) {
+                chunk.position((int) (lsn - chunkLsn));
+            } else {
+                chunkLsn = lsn; // past the end of the log
+                chunk.clear();
+                chunk.limit(0);
+            }
+        }
+
+        private boolean fill() throws IOException {
+            chunkLsn += chunk.position();
+            chunk.clear();
+            long segment = chunkLsn / segmentSize;
+            long offset = chunkLsn % segmentSize;
+            FileChannel channel = channel(segment);
+            if (channel != null) {
+                chunk.limit((int) Math.min(chunk.capacity(), segmentSize - offset));
+                int n;
+                while ((n = channel.read(chunk, offset)) > 0 && chunk.hasRemaining()) {
+                    offset += n;
+                }
+            }
+            chunk.flip();
+            return chunk.hasRemaining();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!chunk.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return chunk.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!chunk.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.remaining());
+            chunk.get(b, off, n);
+            return n;
+        }
+    }
+}
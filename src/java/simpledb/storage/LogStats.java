@@ -0,0 +1,329 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * LogStats describes a log read offline: the records and bytes of each
+ * type, the size of transactions, how far apart checkpoints are, and the
+ * work recovery would do if the database crashed at the end of the log.
+ * The recovery estimate is derived from how fast the log was read and
+ * from the cost of a page write measured next to the log; replaying the
+ * log (see the logreplay command of SimpleDb) measures it instead.
+ * <p>
+ * Use it to size the checkpoint interval and the log segments from real
+ * logs: see {@link LogFile#setCheckpointInterval}.
+ */
+public class LogStats {
+
+    private static final String[] TYPE_NAMES = {
+        "", "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "CLR"
+    };
+
+    /** Number of page writes timed to estimate the cost of redo */
+    private static final int PROBE_WRITES = 32;
+
+    // a transaction as seen in the log
+    private static class Xaction {
+        final long tid;
+        long records = 0;
+        long bytes = 0;
+        String outcome = "live";
+
+        Xaction(long tid) {
+            this.tid = tid;
+        }
+    }
+
+    private final long[] records = new long[TYPE_NAMES.length];
+    private final long[] bytes = new long[TYPE_NAMES.length];
+    private long compressed = 0;
+    private final Map<Long, Xaction> xactions = new HashMap<>();
+    private final List<Long> checkpoints = new ArrayList<>();
+
+    private int segmentCount;
+    private long segmentSize;
+    private long firstLsn;
+    private long endLsn;
+    private long scanNanos;
+
+    private long analysisStart;
+    private long redoStart = -1;
+    private long redoRecords = 0;
+    private int redoPages = 0;
+    private int losers = 0;
+    private long undoRecords = 0;
+    private double pageWriteMillis = 0;
+
+    private LogStats() {
+    }
+
+    /**
+     * Read the log stored next to the specified control file.  The log is
+     * only read; nothing is recovered.
+     *
+     * @param log the control file of the log, as passed to LogFile
+     */
+    public static LogStats scan(File log) throws IOException {
+        if (!log.exists()) {
+            throw new IOException("no log at " + log);
+        }
+        LogStats stats = new LogStats();
+        LogSegments segments = new LogSegments(log, LogFile.DEFAULT_SEGMENT_SIZE);
+        try {
+            stats.read(segments);
+        } finally {
+            segments.close();
+        }
+        stats.pageWriteMillis = measurePageWrite(log.getAbsoluteFile().getParentFile());
+        return stats;
+    }
+
+    private void read(LogSegments segments) throws IOException {
+        segmentCount = segments.getSegments().size();
+        segmentSize = segments.getSegmentSize();
+        firstLsn = Math.max(segments.readStart(), LogFile.LONG_SIZE);
+        long checkpoint = segments.readCheckpoint();
+        analysisStart = checkpoint == LogFile.NO_CHECKPOINT_ID ? firstLsn : checkpoint;
+
+        // the whole log, for the statistics and the analysis pass
+        Map<Long, Long> liveTids = new HashMap<>();
+        Map<PageId, Long> recLsns = new HashMap<>();
+        Map<Long, Long> updates = new HashMap<>();
+        long start = System.nanoTime();
+        LogSegments.Reader in = segments.reader(firstLsn);
+        endLsn = firstLsn;
+        LogRecord r;
+        while ((r = LogRecord.read(in)) != null) {
+            endLsn = r.end;
+            count(r);
+            if (r.lsn < analysisStart) {
+                continue;
+            }
+            switch (r.type) {
+            case LogFile.CHECKPOINT_RECORD:
+                for (int i = 0; i < r.liveTids.length; i++) {
+                    liveTids.putIfAbsent(r.liveTids[i], r.firstLsns[i]);
+                }
+                for (int i = 0; i < r.dirtyPages.length; i++) {
+                    recLsns.putIfAbsent(r.dirtyPages[i], r.recLsns[i]);
+                }
+                break;
+            case LogFile.BEGIN_RECORD:
+                liveTids.put(r.tid, r.lsn);
+                break;
+            case LogFile.UPDATE_RECORD:
+            case LogFile.CLR_RECORD:
+                liveTids.putIfAbsent(r.tid, r.lsn);
+                recLsns.putIfAbsent(r.delta.getPageId(), r.lsn);
+                break;
+            case LogFile.COMMIT_RECORD:
+            case LogFile.ABORT_RECORD:
+                liveTids.remove(r.tid);
+                break;
+            default:
+                break;
+            }
+        }
+        scanNanos = System.nanoTime() - start;
+
+        // the redo and undo passes, counted rather than applied
+        losers = liveTids.size();
+        if (!recLsns.isEmpty() || !liveTids.isEmpty()) {
+            long from = Long.MAX_VALUE;
+            if (!recLsns.isEmpty()) {
+                redoStart = Collections.min(recLsns.values());
+                from = redoStart;
+            }
+            if (!liveTids.isEmpty()) {
+                from = Math.min(from, Collections.min(liveTids.values()));
+            }
+            Set<PageId> pages = new HashSet<>();
+            in = segments.reader(from);
+            while ((r = LogRecord.read(in)) != null) {
+                if (r.type != LogFile.UPDATE_RECORD && r.type != LogFile.CLR_RECORD) {
+                    continue;
+                }
+                Long recLsn = recLsns.get(r.delta.getPageId());
+                if (recLsn != null && r.lsn >= recLsn) {
+                    redoRecords++;
+                    pages.add(r.delta.getPageId());
+                }
+                if (liveTids.containsKey(r.tid)) {
+                    updates.merge(r.tid, r.type == LogFile.UPDATE_RECORD ? 1L : -1L, Long::sum);
+                }
+            }
+            redoPages = pages.size();
+            for (long n : updates.values()) {
+                undoRecords += Math.max(n, 0);
+            }
+        }
+    }
+
+    private void count(LogRecord r) {
+        int len = (int) (r.end - r.lsn);
+        if (r.type > 0 && r.type < TYPE_NAMES.length) {
+            records[r.type]++;
+            bytes[r.type] += len;
+        }
+        if (r.compressed) {
+            compressed++;
+        }
+        if (r.type == LogFile.CHECKPOINT_RECORD) {
+            checkpoints.add(r.lsn);
+            return;
+        }
+        Xaction x = xactions.computeIfAbsent(r.tid, Xaction::new);
+        x.records++;
+        x.bytes += len;
+        if (r.type == LogFile.COMMIT_RECORD) {
+            x.outcome = "committed";
+        } else if (r.type == LogFile.ABORT_RECORD) {
+            x.outcome = "aborted";
+        }
+    }
+
+    // time synchronous page writes at random offsets of a scratch file, the
+    // way HeapFile writes pages
+    private static double measurePageWrite(File dir) throws IOException {
+        File probe = File.createTempFile("logstats", ".probe", dir);
+        byte[] page = new byte[BufferPool.getPageSize()];
+        Random rand = new Random(0);
+        try (RandomAccessFile raf = new RandomAccessFile(probe, "rws")) {
+            raf.setLength((long) PROBE_WRITES * page.length);
+            long start = System.nanoTime();
+            for (int i = 0; i < PROBE_WRITES; i++) {
+                raf.seek((long) rand.nextInt(PROBE_WRITES) * page.length);
+                raf.write(page);
+            }
+            return (System.nanoTime() - start) / 1e6 / PROBE_WRITES;
+        } finally {
+            probe.delete();
+        }
+    }
+
+    /**
+     * @return the number of records of the specified type, named as in the
+     * report: ABORT, COMMIT, UPDATE, BEGIN, CHECKPOINT or CLR
+     */
+    public long getRecordCount(String type) {
+        for (int i = 1; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(type)) {
+                return records[i];
+            }
+        }
+        throw new IllegalArgumentException("no log record type " + type);
+    }
+
+    /** @return the number of transactions with records in the log */
+    public int getTransactionCount() {
+        return xactions.size();
+    }
+
+    /** @return the number of transactions recovery would roll back */
+    public int getLoserCount() {
+        return losers;
+    }
+
+    /** @return the number of UPDATE records and CLRs recovery would redo */
+    public long getRedoRecords() {
+        return redoRecords;
+    }
+
+    /** @return the bytes of log between its first record and its end */
+    public long getLogBytes() {
+        return endLsn - firstLsn;
+    }
+
+    /**
+     * @return the estimated time recovery would take, in ms: reading the
+     * log from the oldest LSN it needs, at the speed it was read here, and
+     * a page write for every record it redoes or undoes
+     */
+    public double getEstimatedRecoveryMillis() {
+        long from = analysisStart;
+        if (redoStart != -1) {
+            from = Math.min(from, redoStart);
+        }
+        double bytesPerMilli = getLogBytes() / Math.max(scanNanos / 1e6, 1e-3);
+        double readMillis = 2 * (endLsn - from) / Math.max(bytesPerMilli, 1);
+        return readMillis + (redoRecords + 2 * undoRecords) * pageWriteMillis;
+    }
+
+    /**
+     * Format the statistics.
+     *
+     * @param top the number of largest transactions to list
+     */
+    public String report(int top) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("log: %d segments of %d bytes, LSNs %d to %d (%d bytes)%n",
+                segmentCount, segmentSize, firstLsn, endLsn, getLogBytes()));
+
+        sb.append("records:\n");
+        for (int type = 1; type < TYPE_NAMES.length; type++) {
+            sb.append(String.format("  %-10s %10d records %12d bytes%n", TYPE_NAMES[type], records[type], bytes[type]));
+        }
+        if (compressed > 0) {
+            sb.append(String.format("  %d UPDATE records compressed%n", compressed));
+        }
+
+        int committed = 0;
+        int aborted = 0;
+        long total = 0;
+        long largest = 0;
+        for (Xaction x : xactions.values()) {
+            if (x.outcome.equals("committed")) {
+                committed++;
+            } else if (x.outcome.equals("aborted")) {
+                aborted++;
+            }
+            total += x.bytes;
+            largest = Math.max(largest, x.bytes);
+        }
+        sb.append(String.format("transactions: %d (%d committed, %d aborted, %d live at the end of the log)%n",
+                xactions.size(), committed, aborted, xactions.size() - committed - aborted));
+        if (!xactions.isEmpty()) {
+            sb.append(String.format("bytes per transaction: %d on average, %d at most%n",
+                    total / xactions.size(), largest));
+            List<Xaction> bySize = new ArrayList<>(xactions.values());
+            bySize.sort((a, b) -> Long.compare(b.bytes, a.bytes));
+            sb.append("largest transactions:\n");
+            for (Xaction x : bySize.subList(0, Math.min(top, bySize.size()))) {
+                sb.append(String.format("  tid %d: %d bytes in %d records, %s%n", x.tid, x.bytes, x.records, x.outcome));
+            }
+        }
+
+        if (checkpoints.isEmpty()) {
+            sb.append("checkpoints: none\n");
+        } else {
+            long maxInterval = 0;
+            for (int i = 1; i < checkpoints.size(); i++) {
+                maxInterval = Math.max(maxInterval, checkpoints.get(i) - checkpoints.get(i - 1));
+            }
+            long last = checkpoints.get(checkpoints.size() - 1);
+            sb.append(String.format("checkpoints: %d", checkpoints.size()));
+            if (checkpoints.size() > 1) {
+                sb.append(String.format(", every %d bytes on average, %d at most",
+                        (last - checkpoints.get(0)) / (checkpoints.size() - 1), maxInterval));
+            }
+            sb.append(String.format("; the last one %d bytes before the end%n", endLsn - last));
+        }
+
+        sb.append(String.format("recovery: analysis from LSN %d, redo of %d records on %d pages%s, undo of %d transactions (%d updates)%n",
+                analysisStart, redoRecords, redoPages, redoStart == -1 ? "" : " from LSN " + redoStart,
+                losers, undoRecords));
+        sb.append(String.format("estimated recovery time: %.0f ms (%.2f ms per page write here)%n",
+                getEstimatedRecoveryMillis(), pageWriteMillis));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,275 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.transaction.TransactionId;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PageDelta is the body of an UPDATE log record: the byte ranges of a page
+ * that changed between two images of it, with their contents in both.
+ * Inserting or deleting a tuple of a HeapPage changes a header byte and one
+ * slot, updating a field changes the bytes of the field, and inserting a key
+ * into a BTreeLeafPage changes the slots it shifts, so the record is a small
+ * fraction of a page.
+ * <p>
+ * Redoing copies the after bytes of every range into an image of the page,
+ * and undoing copies the before bytes; the images are written to disk at
+ * the end of the pass (see {@link Images}). Neither depends on the rest of
+ * the page, so both may be repeated. Deltas of one page must be redone in
+ * log order and undone in reverse log order.
+ */
+class PageDelta {
+
+    /** Changed bytes closer than this are logged as one range */
+    static final int MERGE_GAP = 8;
+
+    private final PageId pid;
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(PageId pid, int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pid = pid;
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta that turns one image of a page into another.
+     *
+     * @param pid the page
+     * @param from the data of the page before the update
+     * @param to the data of the page after the update
+     */
+    static PageDelta diff(PageId pid, byte[] from, byte[] to) {
+        List<int[]> ranges = new ArrayList<>();
+        if (from.length != to.length) {
+            ranges.add(new int[]{0, to.length});
+            from = new byte[to.length];
+        } else {
+            int i = 0;
+            while (i < to.length) {
+                if (from[i] == to[i]) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                int end = i + 1;
+                int j = end;
+                while (j < to.length && j < end + MERGE_GAP) {
+                    if (from[j] != to[j]) {
+                        end = j + 1;
+                    }
+                    j++;
+                }
+                ranges.add(new int[]{start, end - start});
+                i = j;
+            }
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int k = 0; k < ranges.size(); k++) {
+            int off = ranges.get(k)[0];
+            int len = ranges.get(k)[1];
+            offsets[k] = off;
+            before[k] = new byte[len];
+            after[k] = new byte[len];
+            System.arraycopy(from, off, before[k], 0, len);
+            System.arraycopy(to, off, after[k], 0, len);
+        }
+        return new PageDelta(pid, to.length, offsets, before, after);
+    }
+
+    /** @return the page this delta applies to */
+    PageId getPageId() {
+        return pid;
+    }
+
+    /** @return the number of changed byte ranges */
+    int getRangeCount() {
+        return offsets.length;
+    }
+
+    /** @return the number of changed bytes */
+    int getChangedBytes() {
+        int n = 0;
+        for (byte[] b : after) {
+            n += b.length;
+        }
+        return n;
+    }
+
+    /**
+     * Write the delta to the log. The format is the class name of the page
+     * id, the serialized page id, the page size, the number of ranges, and the
+     * offset, length, before bytes and after bytes of each range.
+     */
+    void write(DataOutput out) throws IOException {
+        writePageId(out, pid);
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int k = 0; k < offsets.length; k++) {
+            out.writeInt(offsets[k]);
+            out.writeInt(after[k].length);
+            out.write(before[k]);
+            out.write(after[k]);
+        }
+    }
+
+    /** Read a delta written by {@link #write} */
+    static PageDelta read(DataInput in) throws IOException {
+        PageId pid = readPageId(in);
+        int pageSize = in.readInt();
+        int count = in.readInt();
+        int[] offsets = new int[count];
+        byte[][] before = new byte[count][];
+        byte[][] after = new byte[count][];
+        for (int k = 0; k < count; k++) {
+            offsets[k] = in.readInt();
+            int len = in.readInt();
+            before[k] = new byte[len];
+            after[k] = new byte[len];
+            in.readFully(before[k]);
+            in.readFully(after[k]);
+        }
+        return new PageDelta(pid, pageSize, offsets, before, after);
+    }
+
+    /**
+     * Write a page id to the log: the class name of the id, followed by the
+     * serialized id.
+     */
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
+        int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    /** Read a page id written by {@link #writePageId} */
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object[] idArgs = new Object[numIdArgs];
+            for (int i = 0; i < numIdArgs; i++) {
+                idArgs[i] = in.readInt();
+            }
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            throw new IOException("could not read the page id of a log record", e);
+        }
+    }
+
+    /** @return the delta that undoes this one, logged in a CLR */
+    PageDelta inverse() {
+        return new PageDelta(pid, pageSize, offsets, after, before);
+    }
+
+    /** Apply the after bytes to the image of the page */
+    void redo(Images images) throws IOException {
+        apply(images.get(pid, pageSize), after);
+    }
+
+    /** Apply the before bytes to the image of the page */
+    void undo(Images images) throws IOException {
+        apply(images.get(pid, pageSize), before);
+    }
+
+    private void apply(byte[] data, byte[][] ranges) {
+        for (int k = 0; k < offsets.length; k++) {
+            System.arraycopy(ranges[k], 0, data, offsets[k], ranges[k].length);
+        }
+    }
+
+    /**
+     * The images of the pages a pass of redo or undo applies deltas to. A
+     * page is read from disk when the first delta of it is applied, and
+     * written back once by {@link #write}, however many deltas of it the pass
+     * applies: a page write is synchronous.
+     */
+    static class Images {
+        private final Map<PageId, byte[]> pages = new LinkedHashMap<>();
+
+        /** @return the image of the specified page, read from disk if needed */
+        byte[] get(PageId pid, int pageSize) throws IOException {
+            byte[] data = pages.get(pid);
+            if (data == null) {
+                DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                try {
+                    data = f.readPage(pid).getPageData();
+                } catch (IllegalArgumentException e) {
+                    data = new byte[pageSize]; // the page was never written out
+                }
+                pages.put(pid, data);
+            }
+            return data;
+        }
+
+        /** @return the number of pages held */
+        int size() {
+            return pages.size();
+        }
+
+        /** Write every page held to disk, and forget them */
+        void write() throws IOException {
+            for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+                Database.getCatalog().getDatabaseFile(e.getKey().getTableId())
+                        .writePage(new Image(e.getKey(), e.getValue()));
+            }
+            pages.clear();
+        }
+    }
+
+    // a page image written back by rollback or recovery, or by a flush of
+    // the BufferPool. DbFiles only need the id and the data to write a page.
+    static class Image implements Page {
+        private final PageId pid;
+        private final byte[] data;
+
+        Image(PageId pid, byte[] data) {
+            this.pid = pid;
+            this.data = data;
+        }
+
+        public PageId getId() {
+            return pid;
+        }
+
+        public TransactionId isDirty() {
+            return null;
+        }
+
+        public void markDirty(boolean dirty, TransactionId tid) {
+        }
+
+        public byte[] getPageData() {
+            return data;
+        }
+
+        public Page getBeforeImage() {
+            return this;
+        }
+
+        public void setBeforeImage() {
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * ParallelRedo applies the deltas of the redo pass of recovery on a pool of
+ * worker threads.  Deltas of different pages are independent, so every page
+ * is assigned to one worker by its PageId, and each worker applies the
+ * deltas it is handed in the order they were submitted: the deltas of a
+ * page are redone in log order, while different pages are redone
+ * concurrently.  Each worker keeps the images of its pages (see
+ * PageDelta.Images), and writes each of them once when redo ends.
+ * <p>
+ * The thread reading the log submits the deltas in batches, and blocks when
+ * a worker falls too far behind, so the log tail is never held in memory.
+ * With a single thread the deltas are applied by the submitting thread.
+ */
+class ParallelRedo {
+
+    /** Number of deltas handed to a worker at once */
+    static final int BATCH_SIZE = 64;
+
+    /** Number of batches a worker may have queued */
+    static final int QUEUED_BATCHES = 16;
+
+    // tells a worker that no more batches follow
+    private static final List<PageDelta> END = new ArrayList<>(0);
+
+    private final List<BlockingQueue<List<PageDelta>>> queues = new ArrayList<>();
+    private final List<List<PageDelta>> pending = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final PageDelta.Images images = new PageDelta.Images(); // of the submitting thread
+    private volatile Throwable failure = null;
+
+    /**
+     * Start the workers.
+     *
+     * @param threads the number of worker threads; 1 or less applies the
+     * deltas in the submitting thread
+     */
+    ParallelRedo(int threads) {
+        for (int i = 0; i < threads && threads > 1; i++) {
+            BlockingQueue<List<PageDelta>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+            queues.add(queue);
+            pending.add(new ArrayList<>(BATCH_SIZE));
+            Thread worker = new Thread(() -> work(queue), "redo " + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /** Redo a delta after the deltas of the same page submitted before it */
+    void submit(PageDelta delta) throws IOException {
+        if (workers.isEmpty()) {
+            delta.redo(images);
+            return;
+        }
+        checkFailure();
+        int w = Math.floorMod(delta.getPageId().hashCode(), workers.size());
+        List<PageDelta> batch = pending.get(w);
+        batch.add(delta);
+        if (batch.size() >= BATCH_SIZE) {
+            hand(w, batch);
+            pending.set(w, new ArrayList<>(BATCH_SIZE));
+        }
+    }
+
+    /** Wait until every submitted delta was redone and written, and stop the workers */
+    void finish() throws IOException {
+        images.write();
+        for (int w = 0; w < workers.size(); w++) {
+            if (!pending.get(w).isEmpty()) {
+                hand(w, pending.get(w));
+            }
+            hand(w, END);
+        }
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+
+    // recovery cannot stop halfway, so handing over a batch is not interruptible
+    private void hand(int w, List<PageDelta> batch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queues.get(w).put(batch);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw new IOException("redo failed", t);
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t != null) {
+            throw new IOException("redo failed", t);
+        }
+    }
+
+    // body of a worker: redo every delta of every batch, then write each of
+    // its pages once at END. After a failure the remaining batches are only
+    // drained, so the submitting thread never blocks on a full queue.
+    private void work(BlockingQueue<List<PageDelta>> queue) {
+        PageDelta.Images images = new PageDelta.Images();
+        while (true) {
+            List<PageDelta> batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                continue; // the submitting thread decides when redo ends
+            }
+            if (batch == END) {
+                try {
+                    if (failure == null) {
+                        images.write();
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                }
+                return;
+            }
+            try {
+                for (PageDelta delta : batch) {
+                    if (failure != null) {
+                        break;
+                    }
+                    delta.redo(images);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * VersionStore keeps the committed versions of pages that are still needed
+ * by running snapshot (read-only) transactions.
+ * <p>
+ * Every snapshot transaction is assigned the value of the commit clock when
+ * it begins; it must see exactly the pages as they were committed at that
+ * moment. When a writing transaction commits while snapshots are active, the
+ * before image of each page it wrote (the committed state the snapshots may
+ * still need) and the new after image are added to that page's version chain,
+ * tagged with the commit timestamp. A snapshot reads the newest version whose
+ * timestamp is not larger than its own start timestamp.
+ * <p>
+ * Pages that have no chain have not been committed since the oldest active
+ * snapshot began, so their current committed image (the before image of the
+ * cached page) is the right version for everybody. That image is added to
+ * the chain lazily as its base version so later readers can share it.
+ * <p>
+ * Versions are pruned as soon as no active snapshot can read them anymore.
+ * <p>
+ * The store is guarded by a ReentrantLock instead of its monitor, so that a
+ * virtual thread blocked on it does not pin its carrier thread. A commit
+ * holds it only while it swaps the before images of its pages, after they
+ * were written (see {@link #lockForCommit}).
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** Timestamp of the base version of a chain: visible to every snapshot. */
+    private static final long BASE_VERSION = 0;
+
+    private static class Version {
+        final long commitTs;
+        final Page page;
+
+        Version(long commitTs, Page page) {
+            this.commitTs = commitTs;
+            this.page = page;
+        }
+    }
+
+    /** concurrent so that {@link #isSnapshot} needs no lock: it is asked on every page access */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final Map<PageId, List<Version>> chains = new HashMap<>();
+    private long commitClock = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Register a new snapshot transaction which will read the database as of
+     * the most recent commit.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        lock.lock();
+        try {
+            snapshots.put(tid, commitClock);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if tid was registered with {@link #beginSnapshot} and has not ended yet
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * @return true if a snapshot transaction has begun and not ended yet
+     */
+    public boolean hasSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    /**
+     * Forget a snapshot transaction and drop every version that only it could see.
+     */
+    public void endSnapshot(TransactionId tid) {
+        lock.lock();
+        try {
+            if (snapshots.remove(tid) != null) {
+                prune();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the version of a page visible to the given snapshot.
+     *
+     * @param tid the snapshot transaction
+     * @param pid the page to read
+     * @param current the cached copy of the page, used to build the base version
+     *        when no chain exists yet
+     * @return an immutable copy of the page as of the snapshot's start
+     */
+    public Page getVersion(TransactionId tid, PageId pid, Page current) {
+        lock.lock();
+        try {
+            long startTs = snapshots.get(tid);
+            List<Version> chain = chains.get(pid);
+            if (chain == null) {
+                // no commit since the oldest snapshot began: the committed image is right for everybody
+                chain = new ArrayList<>();
+                chain.add(new Version(BASE_VERSION, current.getBeforeImage()));
+                chains.put(pid, chain);
+            }
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                if (chain.get(i).commitTs <= startTs) {
+                    return chain.get(i).page;
+                }
+            }
+            // cannot happen: the base version is visible to everybody
+            return chain.get(0).page;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record the commit of a writing transaction. The caller holds the lock of
+     * this store (see {@link #lockForCommit}) from before the commit starts
+     * overwriting the before images of its pages until this call returns, so
+     * that no snapshot can observe a half-committed state.
+     *
+     * @param beforeImages the committed images of the written pages prior to this commit
+     * @param afterImages the images of the same pages as written by this commit
+     */
+    public void commit(List<Page> beforeImages, List<Page> afterImages) {
+        lock.lock();
+        try {
+            long commitTs = ++commitClock;
+            if (snapshots.isEmpty()) {
+                return; // nobody can need the old versions
+            }
+            for (int i = 0; i < afterImages.size(); i++) {
+                Page after = afterImages.get(i);
+                List<Version> chain = chains.get(after.getId());
+                if (chain == null) {
+                    chain = new ArrayList<>();
+                    chain.add(new Version(BASE_VERSION, beforeImages.get(i)));
+                    chains.put(after.getId(), chain);
+                }
+                chain.add(new Version(commitTs, after));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of page versions currently retained, for testing
+     */
+    public int numVersions() {
+        lock.lock();
+        try {
+            int n = 0;
+            for (List<Version> chain : chains.values()) {
+                n += chain.size();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keep snapshots from reading pages or starting until {@link #unlockForCommit}
+     * is called, while a commit overwrites the before images of its pages.
+     */
+    void lockForCommit() {
+        lock.lock();
+    }
+
+    void unlockForCommit() {
+        lock.unlock();
+    }
+
+    private void prune() {
+        if (snapshots.isEmpty()) {
+            chains.clear();
+            return;
+        }
+        long oldest = Collections.min(snapshots.values());
+        Iterator<List<Version>> it = chains.values().iterator();
+        while (it.hasNext()) {
+            List<Version> chain = it.next();
+            // keep the newest version visible to the oldest snapshot and everything after it
+            int keep = 0;
+            for (int i = chain.size() - 1; i >= 0; i--) {
+                if (chain.get(i).commitTs <= oldest) {
+                    keep = i;
+                    break;
+                }
+            }
+            if (keep > 0) {
+                chain.subList(0, keep).clear();
+            }
+        }
+    }
+}
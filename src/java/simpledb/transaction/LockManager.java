@@ -3,12 +3,22 @@ package simpledb.transaction;
 import simpledb.storage.PageId;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * LockManager is used to manage locks for transactions.
+ * <p>
+ * The lock table is guarded by a ReentrantLock rather than the object monitor,
+ * and a transaction waiting for a page parks on a Condition of that page until
+ * a lock on it is released or its timeout expires. Waiting this way does not
+ * pin the carrier thread of a virtual thread, and does not burn a CPU the way
+ * spinning on {@link #acquireLock} would.
  */
 public class LockManager {
     private static class Lock {
@@ -34,22 +44,82 @@ public class LockManager {
     }
     private final Map<PageId, List<Lock>> lockMap;
 
+    /** holder of the exclusive lock of every page locked read_write, readable without the monitor */
+    private final Map<PageId, TransactionId> exclusiveHolders;
+
+    private final LockStats stats;
+
+    /** guards lockMap and released */
+    private final ReentrantLock latch;
+
+    /** signalled whenever a lock on the page is released; only present while someone waits */
+    private final Map<PageId, Condition> released;
+
     public LockManager() {
         lockMap = new ConcurrentHashMap<>();
+        exclusiveHolders = new ConcurrentHashMap<>();
+        stats = new LockStats();
+        latch = new ReentrantLock();
+        released = new HashMap<>();
     }
 
+    /**
+     * Acquire a lock, waiting up to timeout ms for conflicting locks to be released.
+     * An interrupted wait gives up like a timed out one.
+     * @return True if the lock was acquired.
+     */
     public boolean tryAcquireLock(PageId pid, TransactionId tid, int type, int timeout) {
-        long now = System.currentTimeMillis();
-        while(true) {
-            if(System.currentTimeMillis() - now > timeout) {
-                return false;
-            }
-            if(acquireLock(pid, tid, type)) {
+        latch.lock();
+        try {
+            if(grant(pid, tid, type)) {
+                stats.recordGrant();
                 return true;
             }
+            long start = System.nanoTime();
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+            try {
+                while(true) {
+                    if(remaining <= 0) {
+                        stats.recordTimeout(pid, System.nanoTime() - start);
+                        return false;
+                    }
+                    // looked up on every wait: a waiter granted the lock in between drops
+                    // the condition of the page if no one else was waiting on it
+                    Condition c = released.computeIfAbsent(pid, p -> latch.newCondition());
+                    try {
+                        remaining = c.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        remaining = 0;
+                        continue;
+                    }
+                    if(grant(pid, tid, type)) {
+                        stats.recordWaitedGrant(pid, System.nanoTime() - start);
+                        return true;
+                    }
+                }
+            } finally {
+                Condition c = released.get(pid);
+                if(c != null && !latch.hasWaiters(c)) released.remove(pid);
+            }
+        } finally {
+            latch.unlock();
         }
     }
 
+    /** Wake up the transactions waiting for a lock on pid. Called with the latch held. */
+    private void signalReleased(PageId pid) {
+        Condition c = released.get(pid);
+        if(c != null) c.signalAll();
+    }
+
+    /**
+     * @return the contention statistics of this lock manager
+     */
+    public LockStats getStats() {
+        return stats;
+    }
+
     /**
      * This function ensure atomicity between "Test" and "Set".
      * @param pid The page to acquire lock from.
@@ -57,7 +127,16 @@ public class LockManager {
      * @param type The type of lock to require. 0: read_only 1: read_write
      * @return True if successfully acquire a lock.
      */
-    public synchronized boolean acquireLock(PageId pid, TransactionId tid, int type) {
+    public boolean acquireLock(PageId pid, TransactionId tid, int type) {
+        latch.lock();
+        try {
+            return grant(pid, tid, type);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    private boolean grant(PageId pid, TransactionId tid, int type) {
         if(lockMap.containsKey(pid)) {
             List<Lock> locks = lockMap.get(pid);
             if(type == 0) {
@@ -76,6 +155,7 @@ public class LockManager {
                 locks.clear();
                 locks.add(new Lock(tid, 1));
                 lockMap.put(pid, locks);
+                exclusiveHolders.put(pid, tid);
                 return true;
             }
         }
@@ -83,6 +163,7 @@ public class LockManager {
             List<Lock> locks = new ArrayList<>();
             locks.add(new Lock(tid, type));
             lockMap.put(pid, locks);
+            if(type == 1) exclusiveHolders.put(pid, tid);
             return true;
         }
     }
@@ -90,35 +171,86 @@ public class LockManager {
     /**
      * see unsafeReleasePage in BufferPool for details.
      */
-    public synchronized void releaseLock(PageId pid, TransactionId tid) {
-        if(lockMap.containsKey(pid)) {
-            List<Lock> locks = lockMap.get(pid);
-            for(int i = 0; i < locks.size(); i++) { // very strange here
-                Lock l = locks.get(i);
-                if(l.getTid().equals(tid)) locks.remove(l);
+    public void releaseLock(PageId pid, TransactionId tid) {
+        latch.lock();
+        try {
+            if(lockMap.containsKey(pid)) {
+                List<Lock> locks = lockMap.get(pid);
+                for(int i = 0; i < locks.size(); i++) { // very strange here
+                    Lock l = locks.get(i);
+                    if(l.getTid().equals(tid)) locks.remove(l);
+                }
+                if(locks.size() == 0) lockMap.remove(pid);
+                else lockMap.put(pid, locks);
+                exclusiveHolders.remove(pid, tid);
+                signalReleased(pid);
             }
-            if(locks.size() == 0) lockMap.remove(pid);
-            else lockMap.put(pid, locks);
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    public void releaseAllLocks(TransactionId tid) {
+        latch.lock();
+        try {
+            Object[] pids = lockMap.keySet().toArray(); // must make a copy clone here
+            for(Object pid: pids) {
+                releaseLock((PageId) pid, tid);
+            }
+        } finally {
+            latch.unlock();
+        }
+    }
+
+    public void releasePage(PageId pid) {
+        latch.lock();
+        try {
+            lockMap.remove(pid);
+            exclusiveHolders.remove(pid);
+            signalReleased(pid);
+        } finally {
+            latch.unlock();
         }
     }
 
-    public synchronized void releaseAllLocks(TransactionId tid) {
-        Object[] pids = lockMap.keySet().toArray(); // must make a copy clone here
-        for(Object pid: pids) {
-            releaseLock((PageId) pid, tid);
+    /**
+     * @return the pages on which tid holds an exclusive (read_write) lock
+     */
+    public List<PageId> getExclusivePages(TransactionId tid) {
+        latch.lock();
+        try {
+            List<PageId> pids = new ArrayList<>();
+            for(Map.Entry<PageId, List<Lock>> e: lockMap.entrySet()) {
+                for(Lock l: e.getValue()) {
+                    if(l.getTid().equals(tid) && l.getLockType() == 1) pids.add(e.getKey());
+                }
+            }
+            return pids;
+        } finally {
+            latch.unlock();
         }
     }
 
-    public synchronized void releasePage(PageId pid) {
-        lockMap.remove(pid);
+    /**
+     * Does not take the latch, so that optimistic readers can call it without contending
+     * with lock acquisitions.
+     * @return the transaction holding an exclusive (read_write) lock on pid, or null if none does
+     */
+    public TransactionId getExclusiveHolder(PageId pid) {
+        return exclusiveHolders.get(pid);
     }
 
-    public synchronized boolean holdsLock(PageId pid, TransactionId tid) {
-        if(!lockMap.containsKey(pid)) return false;
-        List<Lock> locks = lockMap.get(pid);
-        for(Lock l: locks) {
-            if(l.getTid().equals(tid)) return true;
+    public boolean holdsLock(PageId pid, TransactionId tid) {
+        latch.lock();
+        try {
+            if(!lockMap.containsKey(pid)) return false;
+            List<Lock> locks = lockMap.get(pid);
+            for(Lock l: locks) {
+                if(l.getTid().equals(tid)) return true;
+            }
+            return false;
+        } finally {
+            latch.unlock();
         }
-        return false;
     }
 }
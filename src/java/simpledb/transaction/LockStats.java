@@ -0,0 +1,218 @@
+package simpledb.transaction;
+
+import simpledb.common.Database;
+import simpledb.storage.PageId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LockStats collects lock contention statistics for a {@link LockManager}:
+ * how many locks were granted immediately or after a wait, a histogram of the
+ * wait times, how many requests timed out, and per-page wait counts used to
+ * report the most contended pages of each table.
+ * <p>
+ * SimpleDB resolves deadlocks by timing out lock requests, so every timed out
+ * request is counted as a deadlock victim: the transaction that made it aborts.
+ *
+ * @Threadsafe
+ */
+public class LockStats {
+
+    /** Upper bounds (exclusive, in ms) of the wait time histogram buckets; the last bucket is unbounded */
+    private static final long[] BUCKET_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096};
+
+    /** Contention of a single page */
+    public static class PageContention {
+        private final PageId pid;
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+
+        PageContention(PageId pid) {
+            this.pid = pid;
+        }
+
+        public PageId getPageId() {
+            return pid;
+        }
+
+        /** @return the number of lock requests on this page that had to wait */
+        public long getWaits() {
+            return waits.get();
+        }
+
+        /** @return the number of lock requests on this page that timed out */
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        /** @return the total time spent waiting for locks on this page, in ms */
+        public long getWaitMillis() {
+            return waitNanos.get() / 1000000;
+        }
+    }
+
+    private final AtomicLong immediateGrants = new AtomicLong();
+    private final AtomicLong waitedGrants = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private final Map<PageId, PageContention> pages = new ConcurrentHashMap<>();
+
+    /** Record a lock granted without waiting. */
+    void recordGrant() {
+        immediateGrants.incrementAndGet();
+    }
+
+    /**
+     * Record a lock granted after waiting.
+     *
+     * @param pid the locked page
+     * @param waitNanos how long the request waited
+     */
+    void recordWaitedGrant(PageId pid, long waitNanos) {
+        waitedGrants.incrementAndGet();
+        recordWait(pid, waitNanos).waits.incrementAndGet();
+    }
+
+    /**
+     * Record a lock request that gave up waiting, which aborts its transaction.
+     *
+     * @param pid the page that could not be locked
+     * @param waitNanos how long the request waited
+     */
+    void recordTimeout(PageId pid, long waitNanos) {
+        timeouts.incrementAndGet();
+        PageContention pc = recordWait(pid, waitNanos);
+        pc.waits.incrementAndGet();
+        pc.timeouts.incrementAndGet();
+    }
+
+    private PageContention recordWait(PageId pid, long waitNanos) {
+        totalWaitNanos.addAndGet(waitNanos);
+        long millis = waitNanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(bucket);
+        PageContention pc = pages.computeIfAbsent(pid, PageContention::new);
+        pc.waitNanos.addAndGet(waitNanos);
+        return pc;
+    }
+
+    /** @return the number of locks granted, with or without waiting */
+    public long getGrants() {
+        return immediateGrants.get() + waitedGrants.get();
+    }
+
+    /** @return the number of locks granted after waiting */
+    public long getWaitedGrants() {
+        return waitedGrants.get();
+    }
+
+    /** @return the number of lock requests that timed out, i.e. the number of deadlock victims */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /** @return the total time spent waiting for locks, in ms */
+    public long getTotalWaitMillis() {
+        return totalWaitNanos.get() / 1000000;
+    }
+
+    /**
+     * @return the wait time histogram: element i counts the waits shorter than
+     * {@link #getBucketBound}(i) ms that do not fall in an earlier bucket
+     */
+    public long[] getWaitHistogram() {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * @return the exclusive upper bound, in ms, of a histogram bucket, or
+     * Long.MAX_VALUE for the last one
+     */
+    public static long getBucketBound(int bucket) {
+        return bucket < BUCKET_BOUNDS.length ? BUCKET_BOUNDS[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * @param tableId the table to report on
+     * @param n the maximum number of pages to return
+     * @return the pages of the table with the most lock waits, most contended first
+     */
+    public List<PageContention> getTopContendedPages(int tableId, int n) {
+        List<PageContention> result = new ArrayList<>();
+        for (PageContention pc : pages.values()) {
+            if (pc.pid.getTableId() == tableId) {
+                result.add(pc);
+            }
+        }
+        result.sort(Comparator.comparingLong(PageContention::getWaits)
+                .thenComparingLong(PageContention::getWaitMillis).reversed());
+        return result.size() > n ? new ArrayList<>(result.subList(0, n)) : result;
+    }
+
+    /** Forget everything recorded so far. */
+    public void reset() {
+        immediateGrants.set(0);
+        waitedGrants.set(0);
+        timeouts.set(0);
+        totalWaitNanos.set(0);
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+        pages.clear();
+    }
+
+    /**
+     * Format a report of the statistics, including the n most contended pages of
+     * every table that had to wait for a lock.
+     */
+    public String report(int n) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("locks granted: ").append(getGrants())
+                .append(" (").append(getWaitedGrants()).append(" after waiting)\n");
+        sb.append("deadlock victims (lock timeouts): ").append(getTimeouts()).append("\n");
+        sb.append("total lock wait: ").append(getTotalWaitMillis()).append(" ms\n");
+        sb.append("lock wait histogram:\n");
+        long[] counts = getWaitHistogram();
+        long lower = 0;
+        for (int i = 0; i < counts.length; i++) {
+            long upper = getBucketBound(i);
+            if (upper == Long.MAX_VALUE) {
+                sb.append(String.format("  >= %5d ms: %d%n", lower, counts[i]));
+            } else {
+                sb.append(String.format("  < %6d ms: %d%n", upper, counts[i]));
+            }
+            lower = upper;
+        }
+
+        Set<Integer> tableIds = new TreeSet<>();
+        for (PageId pid : pages.keySet()) {
+            tableIds.add(pid.getTableId());
+        }
+        for (int tableId : tableIds) {
+            String name;
+            try {
+                name = Database.getCatalog().getTableName(tableId);
+            } catch (NoSuchElementException e) {
+                name = String.valueOf(tableId);
+            }
+            sb.append("most contended pages of ").append(name).append(":\n");
+            for (PageContention pc : getTopContendedPages(tableId, n)) {
+                sb.append(String.format("  page %d: %d waits, %d timeouts, %d ms waited%n",
+                        pc.pid.getPageNumber(), pc.getWaits(), pc.getTimeouts(), pc.getWaitMillis()));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private static final int ROWS = 5000;
+
+	private TransactionId tid;
+	private List<Tuple> tuples;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		// small pages, so the trees have several levels
+		BufferPool.setPageSize(256);
+		tid = new TransactionId();
+		tuples = BTreeUtility.generateRandomTuples(2, ROWS, 0, ROWS / 4);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private BTreeFile createEmpty() throws Exception {
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+	}
+
+	private TupleIterator source(List<Tuple> tuples) {
+		return new TupleIterator(Utility.getTupleDesc(2), tuples);
+	}
+
+	private List<Integer> keys(DbFileIterator it) throws Exception {
+		List<Integer> keys = new ArrayList<>();
+		it.open();
+		while (it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * Unit test for BTreeFile.bulkLoad() with more tuples than are sorted in memory
+	 */
+	@Test
+	public void loadSortedRuns() throws Exception {
+		BTreeFile bf = createEmpty();
+		bf.bulkLoad(tid, source(tuples), BTreeFile.DEFAULT_FILL_FACTOR, 2);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		List<Integer> expected = new ArrayList<>();
+		for (Tuple t : tuples) {
+			expected.add(((IntField) t.getField(0)).getValue());
+		}
+		Collections.sort(expected);
+		assertEquals(expected, keys(bf.iterator(tid)));
+
+		int key = expected.get(ROWS / 2);
+		for (Op op : new Op[]{ Op.EQUALS, Op.LESS_THAN, Op.GREATER_THAN_OR_EQ }) {
+			long matching = expected.stream().filter(k -> new IntField(k).compare(op, new IntField(key))).count();
+			assertEquals(matching, keys(bf.indexIterator(tid, new IndexPredicate(op, new IntField(key)))).size());
+		}
+	}
+
+	/**
+	 * The fill factor sets how full the pages are
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		BTreeFile half = createEmpty();
+		half.bulkLoad(tid, source(tuples), 0.5);
+		BTreeChecker.checkRep(half, tid, new HashMap<>(), true);
+		BTreeFile full = createEmpty();
+		full.bulkLoad(tid, source(tuples), 1.0);
+		BTreeChecker.checkRep(full, tid, new HashMap<>(), true);
+
+		// pages half full take about twice as many pages
+		assertTrue(1.8 * full.numPages() < half.numPages());
+		assertTrue(half.numPages() < 2.2 * full.numPages());
+	}
+
+	/**
+	 * After a bulk load aborts, the tree is empty and can be inserted into
+	 */
+	@Test
+	public void abort() throws Exception {
+		BTreeFile bf = createEmpty();
+		bf.bulkLoad(tid, source(tuples), BTreeFile.DEFAULT_FILL_FACTOR);
+		Database.getBufferPool().transactionComplete(tid, false);
+
+		tid = new TransactionId();
+		assertTrue(keys(bf.iterator(tid)).isEmpty());
+		for (Tuple t : tuples.subList(0, ROWS / 10)) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), t);
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(ROWS / 10, keys(bf.iterator(tid)).size());
+	}
+
+	/**
+	 * Only an empty tree can be bulk loaded, with tuples of its TupleDesc
+	 */
+	@Test
+	public void rejected() throws Exception {
+		BTreeFile bf = createEmpty();
+		try {
+			bf.bulkLoad(tid, new TupleIterator(Utility.getTupleDesc(3),
+					Collections.singletonList(BTreeUtility.getBTreeTuple(1, 3))), 1.0);
+			fail("expected DbException");
+		} catch (DbException e) {
+			// expected
+		}
+		// only the empty root page is left
+		assertEquals(1, bf.numPages());
+
+		Database.getBufferPool().insertTuple(tid, bf.getId(), tuples.get(0));
+		try {
+			bf.bulkLoad(tid, source(tuples), 1.0);
+			fail("expected DbException");
+		} catch (DbException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.Filter;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final int ROWS = 5000;
+	private static final int GROUPS = 20;
+
+	private TransactionId tid;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static CompositeField key(int... values) {
+		Field[] fields = new Field[values.length];
+		for (int i = 0; i < values.length; i++) {
+			fields[i] = new IntField(values[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	// whether the first fields of a tuple match a predicate on a composite key,
+	// as documented by BTreeFile.indexIterator()
+	private static boolean matches(List<Integer> t, Op op, int... values) {
+		for (int i = 0; i < values.length - 1; i++) {
+			if (t.get(i) != values[i]) {
+				return false;
+			}
+		}
+		int last = values.length - 1;
+		return new IntField(t.get(last)).compare(op, new IntField(values[last]));
+	}
+
+	/**
+	 * Unit test for CompositeField.compare()
+	 */
+	@Test
+	public void compare() {
+		assertTrue(key(1, 5).compare(Op.LESS_THAN, key(2, 0)));
+		assertTrue(key(1, 5).compare(Op.GREATER_THAN, key(1, 4)));
+		assertTrue(key(1, 5).compare(Op.EQUALS, key(1, 5)));
+		assertFalse(key(1, 5).compare(Op.NOT_EQUALS, key(1, 5)));
+
+		// a shorter value is a prefix, and a plain field a prefix of one component
+		assertTrue(key(1, 5).compare(Op.EQUALS, key(1)));
+		assertTrue(key(1, 5).compare(Op.EQUALS, new IntField(1)));
+		assertTrue(key(1, 5).compare(Op.GREATER_THAN, new IntField(0)));
+		assertTrue(key(1, 5).compare(Op.LESS_THAN_OR_EQ, key(1)));
+
+		assertEquals(key(1, 5), CompositeField.leading(key(1, 5, 7)).prefix(2));
+		assertEquals(key(1), CompositeField.leading(key(1, 5)));
+		assertNull(CompositeField.leading(new IntField(1)));
+	}
+
+	/**
+	 * A B+ tree keyed on two fields keeps its tuples in lexicographic order, and
+	 * answers predicates on prefixes of its keys by reading the matching leaves only
+	 */
+	@Test
+	public void prefixSearch() throws Exception {
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE });
+		BTreeFile bf = new BTreeFile(f, new int[]{ 0, 1 }, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+		Random r = new Random(7);
+		List<List<Integer>> tuples = new ArrayList<>();
+		for (int i = 0; i < ROWS; i++) {
+			List<Integer> values = Arrays.asList(r.nextInt(GROUPS), r.nextInt(100), i);
+			tuples.add(values);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(values));
+			if (i % 100 == 99) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+		// a full scan returns the tuples sorted on both key fields
+		Comparator<List<Integer>> byKey = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0))
+				.thenComparing(t -> t.get(1));
+		List<List<Integer>> sorted = new ArrayList<>(tuples);
+		sorted.sort(byKey);
+		List<List<Integer>> keys = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			keys.add(Arrays.asList(((IntField) t.getField(0)).getValue(), ((IntField) t.getField(1)).getValue()));
+		}
+		it.close();
+		assertEquals(ROWS, keys.size());
+		for (int i = 0; i < ROWS; i++) {
+			assertEquals(sorted.get(i).subList(0, 2), keys.get(i));
+		}
+
+		int group = GROUPS / 2;
+		for (Op op : new Op[]{ Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+			for (int[] values : new int[][]{ { group }, { group, 50 }, { group, 0 }, { group, 99 } }) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+				Field value = values.length == 1 ? new IntField(values[0]) : key(values);
+				it = bf.indexIterator(tid, new IndexPredicate(op, value));
+				it.open();
+				int found = 0;
+				while (it.hasNext()) {
+					Tuple t = it.next();
+					assertTrue(bf.getKey(t).compare(op, value));
+					found++;
+				}
+				it.close();
+				long expected = tuples.stream().filter(t -> matches(t, op, values)).count();
+				assertEquals(op + " " + value, expected, found);
+
+				// a lookup within a group reads its leaves, and at most one more
+				if (values.length == 2) {
+					int leaves = 0;
+					for (int p = 1; p <= bf.numPages(); p++) {
+						if (Database.getBufferPool().holdsLock(tid, new BTreePageId(bf.getId(), p, BTreePageId.LEAF))) {
+							leaves++;
+						}
+					}
+					long groupSize = tuples.stream().filter(t -> t.get(0) == group).count();
+					assertTrue(leaves <= 2 + groupSize / (BTreeUtility.getNumTuplesPerPage(3) / 2));
+				}
+			}
+		}
+	}
+
+	/**
+	 * An equality filter on the first field of an index over two fields, and a range
+	 * filter on the second one, are both answered by a scan of the index
+	 */
+	@Test
+	public void plannerUsesPrefix() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 10000, 50, null, tuples, "c");
+		File indexFile = File.createTempFile("composite", ".idx");
+		indexFile.deleteOnExit();
+		SecondaryIndex index = SecondaryIndex.create(tid, "idx", hf.getId(), new int[]{ 0, 1 }, indexFile);
+		assertArrayEquals(new int[]{ 0, 1 }, index.getFields());
+		Database.getBufferPool().transactionComplete(tid);
+		String name = Database.getCatalog().getTableName(hf.getId());
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(name, new TableStats(hf.getId(), 1000));
+
+		tid = new TransactionId();
+		int value = tuples.get(0).get(0);
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c0", Op.EQUALS, Integer.toString(value));
+		lp.addFilter("t.c1", Op.LESS_THAN, "5");
+		lp.addProjectField("t.c2", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		OpIterator scan = plan;
+		while (scan instanceof Operator) {
+			assertFalse(scan instanceof Filter);
+			scan = ((Operator) scan).getChildren()[0];
+		}
+		assertTrue(scan instanceof SecondaryIndexScan);
+		IndexPredicate ipred = ((SecondaryIndexScan) scan).getIndexPredicate();
+		assertEquals(Op.LESS_THAN, ipred.getOp());
+		assertEquals(key(value, 5), ipred.getField());
+
+		int found = 0;
+		plan.open();
+		while (plan.hasNext()) {
+			plan.next();
+			found++;
+		}
+		plan.close();
+		assertEquals(tuples.stream().filter(t -> matches(t, Op.LESS_THAN, value, 5)).count(), found);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
@@ -0,0 +1,203 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeDefragmenterTest extends SimpleDbTestBase {
+	private static final int ROWS = 10000;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+	private List<Integer> keys;
+
+	/**
+	 * Set up initial resources for each unit test: a tree built by random
+	 * inserts, half of whose tuples were then deleted
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		// small pages, so the trees have several levels
+		BufferPool.setPageSize(512);
+		Database.resetBufferPool(500);
+		tid = new TransactionId();
+		File f = File.createTempFile("defrag", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+
+		List<Integer> values = new ArrayList<>();
+		for (int i = 0; i < ROWS; i++) {
+			values.add(i * 4);
+		}
+		Collections.shuffle(values, new Random(11));
+		for (int i = 0; i < ROWS; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(),
+					BTreeUtility.getBTreeTuple(Arrays.asList(values.get(i), i)));
+			if (i % 100 == 99) {
+				commit();
+			}
+		}
+		keys = new ArrayList<>();
+		for (int i = 0; i < ROWS; i++) {
+			if (i % 2 == 0) {
+				keys.add(values.get(i));
+			} else {
+				delete(values.get(i));
+			}
+			if (i % 100 == 99) {
+				commit();
+			}
+		}
+		commit();
+		Collections.sort(keys);
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private void commit() {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	private void delete(int key) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+		it.open();
+		Tuple t = it.next();
+		it.close();
+		Database.getBufferPool().deleteTuple(tid, t);
+	}
+
+	private List<Integer> keys() throws Exception {
+		List<Integer> found = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			found.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return found;
+	}
+
+	// the page numbers of the leaves, in key order
+	private List<Integer> leafPages() throws Exception {
+		List<Integer> pages = new ArrayList<>();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		assertNull(leaf.getLeftSiblingId());
+		while (leaf != null) {
+			pages.add(leaf.getId().getPageNumber());
+			pid = leaf.getRightSiblingId();
+			leaf = pid == null ? null : (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+		}
+		return pages;
+	}
+
+	/**
+	 * The job fills up the leaves, lays them out in key order at the start of
+	 * the file, and gives the free pages at the end of the file back
+	 */
+	@Test
+	public void defragment() throws Exception {
+		int pages = bf.numPages();
+		BTreeDefragmenter job = new BTreeDefragmenter(bf);
+		job.run();
+		assertTrue(job.isDone());
+		assertFalse(job.step());
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(keys, keys());
+		assertTrue(job.getReleasedPages() > 0);
+		assertTrue(bf.numPages() < pages / 2);
+
+		List<Integer> leaves = leafPages();
+		for (int i = 0; i < leaves.size(); i++) {
+			assertEquals(i + 1, (int) leaves.get(i));
+		}
+		int perLeaf = BTreeUtility.getNumTuplesPerPage(2);
+		assertTrue(keys.size() >= leaves.size() * perLeaf * 0.65);
+	}
+
+	/**
+	 * Other transactions can insert and delete between the steps of the job
+	 */
+	@Test
+	public void stepsInterleaveWithUpdates() throws Exception {
+		Random r = new Random(13);
+		BTreeDefragmenter job = new BTreeDefragmenter(bf, 0.75, 4);
+		int steps = 0;
+		while (job.step()) {
+			commit();
+			if (steps++ % 3 == 0) {
+				int key = r.nextInt(ROWS) * 4 + 1;
+				Database.getBufferPool().insertTuple(tid, bf.getId(),
+						BTreeUtility.getBTreeTuple(Arrays.asList(key, -1)));
+				keys.add(key);
+			}
+			if (steps % 7 == 0) {
+				delete(keys.remove(r.nextInt(keys.size())));
+			}
+			commit();
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		Collections.sort(keys);
+		assertEquals(keys, keys());
+	}
+
+	/**
+	 * The end of the file is not cut off while a snapshot transaction runs, but
+	 * once it has ended
+	 */
+	@Test
+	public void truncateWaitsForSnapshots() throws Exception {
+		int pages = bf.numPages();
+		Transaction snapshot = new Transaction(true);
+		snapshot.start();
+		BTreeDefragmenter job = new BTreeDefragmenter(bf);
+		// far more steps than the other phases take
+		int steps = 0;
+		while (steps < 5000 && job.step()) {
+			steps++;
+		}
+		assertFalse(job.isDone());
+		assertEquals(0, job.getReleasedPages());
+		assertEquals(pages, bf.numPages());
+
+		snapshot.commit();
+		job.run();
+		assertTrue(job.isDone());
+		assertTrue(job.getReleasedPages() > 0);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(keys, keys());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeDefragmenterTest.class);
+	}
+}
@@ -4,6 +4,7 @@ import simpledb.common.Database;
 import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.execution.IndexPredicate;
 import simpledb.execution.Predicate.Op;
 
 import java.io.File;
@@ -176,6 +177,104 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testAllocatePages() throws Exception {
+		// small pages, so that the pages of the file need several header pages
+		BufferPool.setPageSize(256);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+
+		// the file is extended by several pages at once, but numPages() only counts
+		// the pages handed out
+		assertEquals(2, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(2, empty.numPages());
+		long length = emptyFile.length();
+		assertEquals(BTreeRootPtrPage.getPageSize() + (1 + BTreeFile.EXTEND_PAGES) * 256, length);
+		for (int i = 3; i < BTreeFile.EXTEND_PAGES + 2; i++)
+			assertEquals(i, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(length, emptyFile.length());
+		assertEquals(BTreeFile.EXTEND_PAGES + 2, empty.getEmptyPageNo(tid, dirtypages));
+		assertTrue(emptyFile.length() > length);
+
+		int slots = BTreeHeaderPage.getNumSlots();
+		while (empty.numPages() < slots + 10)
+			empty.getEmptyPageNo(tid, dirtypages);
+
+		// free pages on the first and the second header page, including the first
+		// page of the second one
+		empty.setEmptyPage(tid, dirtypages, slots);
+		empty.setEmptyPage(tid, dirtypages, 10);
+		assertEquals(10, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(slots, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(empty.numPages() + 1, empty.getEmptyPageNo(tid, dirtypages));
+
+		// once committed, the header pages are known, and searches skip the full ones
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		dirtypages = new HashMap<>();
+		assertEquals(empty.numPages() + 1, empty.getEmptyPageNo(tid, dirtypages));
+		empty.setEmptyPage(tid, dirtypages, slots + 5);
+		empty.setEmptyPage(tid, dirtypages, 20);
+		assertEquals(20, empty.getEmptyPageNo(tid, dirtypages));
+		assertEquals(slots + 5, empty.getEmptyPageNo(tid, dirtypages));
+	}
+
+	@Test
+	public void testSparePagesSurviveReset() throws Exception {
+		BufferPool.setPageSize(256);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		for (int i = 0; i < 200; i++) {
+			Database.getBufferPool().insertTuple(tid, empty.getId(),
+					BTreeUtility.getBTreeTuple(Arrays.asList(i, i)));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		int pages = empty.numPages();
+		long length = emptyFile.length();
+		assertTrue(length > BTreeRootPtrPage.getPageSize() + (long) pages * 256);
+
+		// the file opened again hands out the spare pages left at its end
+		Database.reset();
+		BTreeFile reopened = BTreeUtility.openBTreeFile(2, emptyFile, 0);
+		assertEquals(pages, reopened.numPages());
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		assertEquals(pages + 1, reopened.getEmptyPageNo(tid, dirtypages));
+		assertEquals(length, emptyFile.length());
+	}
+
+	@Test
+	public void testInsertLocksLeafOnly() throws Exception {
+		// This should create a B+ tree with an internal root page
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 2000, null, tuples, 0);
+
+		// make room for one tuple in a leaf page and commit
+		Tuple t = BTreeUtility.getBTreeTuple(tuples.get(0));
+		DbFileIterator it = bigFile.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, t.getField(0)));
+		it.open();
+		Tuple victim = it.next();
+		it.close();
+		Database.getBufferPool().deleteTuple(tid, victim);
+		Database.getBufferPool().transactionComplete(tid);
+
+		// inserting the tuple again does not split, so only its leaf page is locked
+		tid = new TransactionId();
+		Database.getBufferPool().insertTuple(tid, bigFile.getId(), victim);
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bigFile.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPageUnlocked(tid, rootPtrId)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootId));
+		assertTrue(Database.getBufferPool().holdsLock(tid, victim.getRecordId().getPageId()));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
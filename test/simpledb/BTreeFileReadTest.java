@@ -1,14 +1,18 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.IndexPredicate;
 import simpledb.index.*;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 import simpledb.execution.Predicate.Op;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -16,6 +20,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class BTreeFileReadTest extends SimpleDbTestBase {
@@ -207,6 +212,129 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	// wait for read-ahead to bring the pages into the buffer pool
+	private static void waitCached(List<BTreePageId> pids) throws InterruptedException {
+		for(BTreePageId pid : pids) {
+			for(int i = 0; i < 500 && !Database.getBufferPool().isCached(pid); i++) {
+				Thread.sleep(10);
+			}
+			assertTrue(Database.getBufferPool().isCached(pid));
+		}
+	}
+
+	/**
+	 * Iterators read the leaves to the right of the one they are on ahead, up to the
+	 * bound of their predicate, and read more ahead once they reach the last of them
+	 */
+	@Test public void prefetchLeaves() throws Exception {
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bigFile.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		List<BTreePageId> leaves = new ArrayList<>();
+		List<Field> keys = new ArrayList<>();
+		Iterator<BTreeEntry> entries = root.iterator();
+		while(entries.hasNext()) {
+			BTreeEntry e = entries.next();
+			if(leaves.isEmpty()) {
+				leaves.add(e.getLeftChild());
+			}
+			leaves.add(e.getRightChild());
+			keys.add(e.getKey());
+		}
+		assertTrue(leaves.size() > 7);
+
+		// a scan reads the first leaves ahead once open
+		bigFile.setPrefetchLeaves(3);
+		DbFileIterator it = bigFile.iterator(tid);
+		it.open();
+		waitCached(leaves.subList(1, 4));
+		assertFalse(Database.getBufferPool().isCached(leaves.get(4)));
+
+		// and reads the next ones ahead only once it reaches the last leaf read ahead
+		int[] tuples = new int[3];
+		for(int i = 0; i < tuples.length; i++) {
+			tuples[i] = ((BTreeLeafPage) Database.getBufferPool().getPage(tid, leaves.get(i),
+					Permissions.READ_ONLY)).getNumTuples();
+		}
+		int count = 0;
+		while(count < tuples[0] + tuples[1] + 1) {
+			it.next();
+			count++;
+		}
+		Thread.sleep(100);
+		assertFalse(Database.getBufferPool().isCached(leaves.get(4)));
+		while(count < tuples[0] + tuples[1] + tuples[2] + 1) {
+			it.next();
+			count++;
+		}
+		waitCached(leaves.subList(4, 7));
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		assertEquals(5000, count);
+		it.close();
+
+		// a range up to the key separating the third and fourth leaves only reads those ahead
+		Database.getBufferPool().transactionComplete(tid);
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		tid = new TransactionId();
+		bigFile.setPrefetchLeaves(BTreeFile.DEFAULT_PREFETCH_LEAVES);
+		it = bigFile.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, keys.get(2)));
+		it.open();
+		waitCached(leaves.subList(1, 4));
+		assertFalse(Database.getBufferPool().isCached(leaves.get(4)));
+		it.close();
+	}
+
+	/**
+	 * Point lookups running while other threads split pages must always find the
+	 * tuples that were there before, whether their descent was optimistic or not.
+	 */
+	@Test public void lookupsDuringSplits() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000, null, tuples, 0);
+		BlockingQueue<List<Integer>> insertedTuples = new ArrayBlockingQueue<>(10000);
+		Random r = new Random();
+
+		List<BTreeUtility.BTreeInserter> inserters = new ArrayList<>();
+		for(int i = 0; i < 20; i++) {
+			int[] tupdata = new int[]{r.nextInt(BTreeUtility.MAX_RAND_VALUE), r.nextInt(BTreeUtility.MAX_RAND_VALUE)};
+			BTreeUtility.BTreeInserter bi = new BTreeUtility.BTreeInserter(bigFile, tupdata, insertedTuples);
+			bi.start();
+			inserters.add(bi);
+		}
+
+		for(int i = 0; i < 100; i++) {
+			List<Integer> tuple = tuples.get(r.nextInt(tuples.size()));
+			boolean found = false;
+			while(true) {
+				TransactionId reader = new TransactionId();
+				try {
+					DbFileIterator it = bigFile.indexIterator(reader,
+							new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0))));
+					it.open();
+					while(!found && it.hasNext()) {
+						found = tuple.equals(SystemTestUtil.tupleToList(it.next()));
+					}
+					it.close();
+					Database.getBufferPool().transactionComplete(reader);
+					break;
+				} catch (TransactionAbortedException e) {
+					Database.getBufferPool().transactionComplete(reader, false);
+				}
+			}
+			assertTrue(found);
+		}
+
+		for(BTreeUtility.BTreeInserter bi : inserters) {
+			bi.join();
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
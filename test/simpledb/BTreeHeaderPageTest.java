@@ -110,6 +110,16 @@ public class BTreeHeaderPageTest extends SimpleDbTestBase {
 		assertEquals(-1, page.getEmptySlot());
 		page.markSlotUsed(50, false);
 		assertEquals(50, page.getEmptySlot());
+
+		// slots in later words, and slots freed before the first empty one
+		page.markSlotUsed(50, true);
+		page.markSlotUsed(32703, false);
+		assertEquals(32703, page.getEmptySlot());
+		page.markSlotUsed(129, false);
+		assertEquals(129, page.getEmptySlot());
+		page.markSlotUsed(129, true);
+		page.markSlotUsed(32703, true);
+		assertEquals(-1, page.getEmptySlot());
 	}
 
 	/**
@@ -8,6 +8,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -174,6 +175,35 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator(), on a page with empty slots
+	 * between its entries: it returns the entries iterator() returns, in reverse order
+	 */
+	@Test public void reverseIteratorSkipsEmptySlots() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = entries.size() - 2; i > 0; i -= 3)
+			page.deleteKeyAndRightChild(entries.get(i));
+
+		List<BTreeEntry> forward = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			forward.add(it.next());
+		Collections.reverse(forward);
+		it = page.reverseIterator();
+		for (BTreeEntry expected : forward) {
+			BTreeEntry e = it.next();
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+			assertEquals(expected.getRecordId(), e.getRecordId());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -321,6 +351,43 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	// the child to search for f in, found by walking the entries in order
+	private static BTreePageId linearFindChild(BTreeInternalPage page, IntField f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey()))
+				return e.getLeftChild();
+		}
+		return e == null ? null : e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild(), on a page with empty slots
+	 * between its entries
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		page.iterator().forEachRemaining(entries::add);
+		for (int i = 0; i < entries.size(); i += 3)
+			page.deleteKeyAndRightChild(entries.get(i));
+
+		assertEquals(linearFindChild(page, null), page.findChild(null));
+		for (BTreeEntry e : entries) {
+			int key = ((IntField) e.getKey()).getValue();
+			for (int k = key - 1; k <= key + 1; k++)
+				assertEquals(linearFindChild(page, new IntField(k)), page.findChild(new IntField(k)));
+		}
+		assertEquals(linearFindChild(page, new IntField(Integer.MAX_VALUE)),
+				page.findChild(new IntField(Integer.MAX_VALUE)));
+
+		// an empty page has no children to search
+		BTreeInternalPage empty = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		assertEquals(null, empty.findChild(new IntField(0)));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
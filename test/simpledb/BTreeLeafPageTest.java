@@ -7,6 +7,7 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate.Op;
 import simpledb.index.BTreeLeafPage;
 import simpledb.index.BTreePageId;
 import simpledb.index.BTreeUtility;
@@ -196,6 +197,37 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.iterator(Op, Field), on a page with empty slots
+	 * between its tuples
+	 */
+	@Test public void searchIterator() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		List<Tuple> tuples = new ArrayList<>();
+		page.iterator().forEachRemaining(tuples::add);
+		for (int i = 0; i < tuples.size(); i += 3)
+			page.deleteTuple(tuples.get(i));
+
+		List<Integer> keys = new ArrayList<>();
+		page.iterator().forEachRemaining(t -> keys.add(((IntField) t.getField(0)).getValue()));
+		List<Integer> probes = new ArrayList<>();
+		for (int[] tuple : EXAMPLE_VALUES)
+			for (int key = tuple[0] - 1; key <= tuple[0] + 1; key++)
+				probes.add(key);
+		probes.add(Integer.MAX_VALUE);
+		for (Op op : new Op[]{ Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ }) {
+			for (int key : probes) {
+				List<Integer> expected = new ArrayList<>();
+				for (int k : keys)
+					if (new IntField(k).compare(op, new IntField(key)))
+						expected.add(k);
+				List<Integer> actual = new ArrayList<>();
+				page.iterator(op, new IntField(key)).forEachRemaining(t -> actual.add(((IntField) t.getField(0)).getValue()));
+				assertEquals(expected, actual);
+			}
+		}
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.getNumEmptySlots()
 	 */
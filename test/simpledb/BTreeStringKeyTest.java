@@ -0,0 +1,243 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final int ROWS = 2000;
+
+	private TransactionId tid;
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		File f = File.createTempFile("strings", ".dat");
+		f.deleteOnExit();
+		TupleDesc td = new TupleDesc(new Type[]{ Type.STRING_TYPE, Type.INT_TYPE });
+		bf = new BTreeFile(f, 0, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private static StringField key(String s) {
+		return new StringField(s, Type.STRING_LEN);
+	}
+
+	private Tuple tuple(String s, int i) {
+		Tuple t = new Tuple(bf.getTupleDesc());
+		t.setField(0, key(s));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	// keys with a long common prefix, in random order
+	private List<String> randomKeys() {
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < ROWS; i++) {
+			keys.add(String.format("customer/eu-west/%06d", i * 7919 % 1000000));
+		}
+		Collections.shuffle(keys, new Random(42));
+		return keys;
+	}
+
+	private List<String> scan() throws Exception {
+		List<String> keys = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			keys.add(((StringField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		return keys;
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.separator()
+	 */
+	@Test
+	public void separator() {
+		assertEquals(key("b"), BTreeInternalPage.separator(key("apple"), key("banana")));
+		assertEquals(key("abcz"), BTreeInternalPage.separator(key("abcd"), key("abcz")));
+		assertEquals(key("abx"), BTreeInternalPage.separator(key("abcd"), key("abxyz")));
+		assertEquals(key("abcd"), BTreeInternalPage.separator(key("abc"), key("abcd")));
+		assertEquals(key("same"), BTreeInternalPage.separator(key("same"), key("same")));
+		assertEquals(new IntField(7), BTreeInternalPage.separator(new IntField(3), new IntField(7)));
+	}
+
+	/**
+	 * An internal page with short string keys holds more entries than it would
+	 * with keys of maximum length, and writes them out and reads them back
+	 */
+	@Test
+	public void variableLengthPage() throws Exception {
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		assertEquals(page.getMaxEntries(), page.getNumEmptySlots());
+
+		int n = 0;
+		while (page.getNumEmptySlots() > 0) {
+			page.insertEntry(new BTreeEntry(key(String.format("k%05d", n)),
+					new BTreePageId(bf.getId(), n + 2, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), n + 3, BTreePageId.LEAF)));
+			n++;
+		}
+		assertTrue(n > 4 * page.getMaxEntries());
+		assertEquals(n, page.getNumEntries());
+
+		BTreeInternalPage read = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(n, read.getNumEntries());
+		Iterator<BTreeEntry> expected = page.iterator();
+		Iterator<BTreeEntry> it = read.iterator();
+		while (expected.hasNext()) {
+			BTreeEntry e = expected.next();
+			BTreeEntry r = it.next();
+			assertEquals(e.getKey(), r.getKey());
+			assertEquals(e.getLeftChild(), r.getLeftChild());
+			assertEquals(e.getRightChild(), r.getRightChild());
+		}
+		assertFalse(it.hasNext());
+		assertArrayEquals(page.getPageData(), read.getPageData());
+	}
+
+	/**
+	 * A B+ tree keyed on strings stays consistent through inserts and deletes, and
+	 * its truncated separators keep it shallow
+	 */
+	@Test
+	public void insertAndDelete() throws Exception {
+		List<String> keys = randomKeys();
+		for (int i = 0; i < ROWS; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(keys.get(i), i));
+			if (i % 10 == 9) { // commit, so the BufferPool can evict the pages
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<String> sorted = new ArrayList<>(keys);
+		Collections.sort(sorted);
+		assertEquals(sorted, scan());
+
+		// with keys of maximum length, the root could not point to every leaf
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid,
+				rootPtr.getRootId(), Permissions.READ_ONLY);
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		assertTrue(root.getNumEntries() > root.getMaxEntries());
+
+		// delete every other key
+		for (int i = 0; i < ROWS; i += 2) {
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(keys.get(i))));
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+			if (i % 20 == 18) {
+				Database.getBufferPool().transactionComplete(tid);
+				tid = new TransactionId();
+			}
+		}
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<String> left = new ArrayList<>();
+		for (int i = 1; i < ROWS; i += 2) {
+			left.add(keys.get(i));
+		}
+		Collections.sort(left);
+		assertEquals(left, scan());
+	}
+
+	/**
+	 * Deletes keep every page of a deep tree with keys of very different lengths at
+	 * least half full, splitting a parent with no room for a longer separator
+	 */
+	@Test
+	public void deleteKeepsPagesHalfFull() throws Exception {
+		// small pages, so the tree has several levels of internal pages
+		BufferPool.setPageSize(1024);
+		Database.resetBufferPool(500);
+		try {
+			// separators are as long as the common prefix of neighbouring keys, so the
+			// keys of some groups share a long one and the keys of the others a short one
+			Random r = new Random(7);
+			List<String> keys = new ArrayList<>();
+			String filler = "";
+			for (int i = 0; i < ROWS * 2; i++) {
+				if (i % 8 == 0) {
+					filler = r.nextBoolean() ? "" : String.join("", Collections.nCopies(100 + r.nextInt(20), "x"));
+				}
+				keys.add(String.format("%05d%s%03d", i / 8, filler, i % 8));
+			}
+			Collections.shuffle(keys, r);
+			for (int i = 0; i < keys.size(); i++) {
+				Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(keys.get(i), i));
+				if (i % 20 == 19) {
+					Database.getBufferPool().transactionComplete(tid);
+					tid = new TransactionId();
+				}
+			}
+			BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+
+			// delete three keys in four
+			List<String> left = new ArrayList<>();
+			for (int i = 0; i < keys.size(); i++) {
+				if (i % 4 == 3) {
+					left.add(keys.get(i));
+				} else {
+					DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, key(keys.get(i))));
+					it.open();
+					Tuple t = it.next();
+					it.close();
+					Database.getBufferPool().deleteTuple(tid, t);
+				}
+				if (i % 20 == 19) {
+					Database.getBufferPool().transactionComplete(tid);
+					tid = new TransactionId();
+					if (i % 1000 == 999) {
+						BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+					}
+				}
+			}
+			BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+			Collections.sort(left);
+			assertEquals(left, scan());
+		} finally {
+			Database.getBufferPool().transactionComplete(tid);
+			BufferPool.resetPageSize();
+			Database.reset();
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
@@ -0,0 +1,124 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+
+public class CheckpointTest extends SimpleDbTestBase {
+  private static final int SEGMENT_SIZE = 1024;
+
+  private File file;
+  private File archive;
+  private LogFile log;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("checkpointlog", ".log");
+    archive = new File(file.getPath() + "-archive");
+    log = new LogFile(file, SEGMENT_SIZE);
+  }
+
+  @After public void tearDown() {
+    for (File f : segments(file.getParentFile())) {
+      f.delete();
+    }
+    for (File f : segments(archive)) {
+      f.delete();
+    }
+    archive.delete();
+    file.delete();
+  }
+
+  /** The segment files of the log in a directory. */
+  private File[] segments(File dir) {
+    File[] found = dir.listFiles((d, name) -> name.startsWith(file.getName() + "."));
+    return found == null ? new File[0] : found;
+  }
+
+  private void beginAndCommit(int transactions) throws Exception {
+    for (int i = 0; i < transactions; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+  }
+
+  /**
+   * A checkpoint is taken in the background once enough log was written.
+   */
+  @Test public void checkpointsFollowLogVolume() throws Exception {
+    log.setCheckpointInterval(SEGMENT_SIZE);
+    beginAndCommit(200);
+    // checkpoints delete the segments before them
+    long logged = log.getEndLsn() / SEGMENT_SIZE;
+    long deadline = System.currentTimeMillis() + 10000;
+    while ((log.getCheckpointCount() == 0 || segments(file.getParentFile()).length > logged / 2)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(log.getCheckpointCount() > 0);
+    assertTrue(segments(file.getParentFile()).length <= logged / 2);
+  }
+
+  /**
+   * Truncation moves the dropped segments to the archive directory.
+   */
+  @Test public void truncationArchivesSegments() throws Exception {
+    log.setCheckpointInterval(0);
+    log.setArchiveDirectory(archive);
+    beginAndCommit(200);
+    log.logCheckpoint();
+    long logged = (log.getEndLsn() + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+    File[] archived = segments(archive);
+    assertTrue(archived.length > 0);
+    assertEquals(logged, archived.length + segments(file.getParentFile()).length);
+  }
+
+  /**
+   * No checkpoint is taken when they are not scheduled.
+   */
+  @Test public void unscheduledCheckpoints() throws Exception {
+    log.setCheckpointInterval(0);
+    beginAndCommit(200);
+    assertEquals(0, log.getCheckpointCount());
+  }
+
+  /**
+   * A checkpoint leaves the dirty pages of live transactions in the buffer pool.
+   */
+  @Test public void checkpointWritesNoPages() throws Exception {
+    File data = File.createTempFile("checkpoint", ".dat");
+    data.deleteOnExit();
+    HeapFile hf = Utility.createEmptyHeapFile(data.getAbsolutePath(), 2);
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+    Database.getLogFile().logCheckpoint();
+    Page p = Database.getBufferPool().getPage(t.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+    assertNotNull(p.isDirty());
+    t.commit();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CheckpointTest.class);
+  }
+}
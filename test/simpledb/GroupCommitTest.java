@@ -0,0 +1,145 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+  private static final int THREADS = 16;
+  private static final int COMMITS = 50;
+
+  private File file;
+  private LogFile log;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("grouplog", ".log");
+    log = new LogFile(file);
+  }
+
+  @After public void tearDown() {
+    File[] segments = file.getParentFile().listFiles((d, name) -> name.startsWith(file.getName() + "."));
+    for (File f : segments) {
+      f.delete();
+    }
+    file.delete();
+  }
+
+  /** Begin and commit COMMITS transactions on each of THREADS threads. */
+  private void commitConcurrently() throws Exception {
+    List<Thread> threads = new ArrayList<>();
+    List<Exception> failures = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      Thread t = new Thread(() -> {
+        try {
+          for (int j = 0; j < COMMITS; j++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+          }
+        } catch (Exception e) {
+          synchronized (failures) {
+            failures.add(e);
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertEquals(2 * THREADS * COMMITS, log.getTotalRecords());
+  }
+
+  /**
+   * A commit does not return before the log was forced.
+   */
+  @Test public void commitWaitsForForce() throws Exception {
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long forces = log.getForceCount();
+    log.logCommit(tid);
+    assertTrue(log.getForceCount() > forces);
+  }
+
+  /**
+   * Concurrent committers share forces of the log.
+   */
+  @Test public void committersShareForces() throws Exception {
+    commitConcurrently();
+    assertTrue(log.getForceCount() < THREADS * COMMITS);
+  }
+
+  /**
+   * Waiting before forcing lets more committers join each force.
+   */
+  @Test public void delayGathersCommitters() throws Exception {
+    log.setMaxCommitDelay(2000);
+    commitConcurrently();
+    assertTrue(log.getForceCount() <= THREADS * COMMITS / 2);
+  }
+
+  /**
+   * Transactions committing through the BufferPool share forces too: their
+   * pages are written, and their log records forced, without the pool held.
+   */
+  @Test public void bufferPoolCommitsShareForces() throws Exception {
+    List<HeapFile> tables = new ArrayList<>();
+    for (int i = 0; i < THREADS; i++) {
+      File f = File.createTempFile("groupcommit", ".dat");
+      f.deleteOnExit();
+      tables.add(Utility.createEmptyHeapFile(f.getAbsolutePath(), 2));
+    }
+    LogFile dbLog = Database.getLogFile();
+    long forces = dbLog.getForceCount();
+
+    List<Thread> threads = new ArrayList<>();
+    List<Exception> failures = new ArrayList<>();
+    for (HeapFile table : tables) {
+      Thread t = new Thread(() -> {
+        try {
+          for (int j = 0; j < COMMITS; j++) {
+            Transaction xact = new Transaction();
+            xact.start();
+            Database.getBufferPool().insertTuple(xact.getId(), table.getId(), Utility.getHeapTuple(j, 2));
+            xact.commit();
+          }
+        } catch (Exception e) {
+          synchronized (failures) {
+            failures.add(e);
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertTrue(dbLog.getForceCount() - forces < THREADS * COMMITS);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GroupCommitTest.class);
+  }
+}
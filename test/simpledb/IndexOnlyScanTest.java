@@ -0,0 +1,190 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.IndexOnlyScan;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class IndexOnlyScanTest extends SimpleDbTestBase {
+	private static final int ROWS = 10000;
+	private static final int MAX_VALUE = 1000;
+
+	private TransactionId tid;
+	private List<List<Integer>> tuples;
+	private HeapFile hf;
+	private File indexFile;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(3, ROWS, MAX_VALUE, null, tuples, "c");
+		indexFile = File.createTempFile("covering", ".idx");
+		indexFile.deleteOnExit();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private boolean holdsHeapLock() {
+		for (int p = 0; p < hf.numPages(); p++) {
+			if (Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), p))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the plan of a query on field 1 of the table, returning the specified field
+	private OpIterator plan(String field, int value) throws Exception {
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(Database.getCatalog().getTableName(hf.getId()), new TableStats(hf.getId(), 1000));
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, Integer.toString(value));
+		lp.addProjectField(field, null);
+		return lp.physicalPlan(tid, stats, false);
+	}
+
+	private static OpIterator scanOf(OpIterator plan) {
+		while (plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		return plan;
+	}
+
+	/**
+	 * Unit test for IndexOnlyScan: it returns the indexed and included fields
+	 * of the matching tuples, without reading the heap
+	 */
+	@Test
+	public void scanReadsIndexOnly() throws Exception {
+		SecondaryIndex index = SecondaryIndex.create(tid, "idx", hf.getId(), new int[]{ 1 }, new int[]{ 2 }, indexFile);
+		assertArrayEquals(new int[]{ 2 }, index.getIncludes());
+		assertTrue(index.covers(Arrays.asList(1, 2)));
+		assertFalse(index.covers(Arrays.asList(0, 2)));
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		int value = tuples.get(0).get(1);
+		IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t", new IndexPredicate(Op.EQUALS, new IntField(value)));
+		assertEquals(2, scan.getTupleDesc().numFields());
+		assertEquals("t.c1", scan.getTupleDesc().getFieldName(0));
+		assertEquals("t.c2", scan.getTupleDesc().getFieldName(1));
+
+		List<List<Integer>> found = new ArrayList<>();
+		scan.open();
+		while (scan.hasNext()) {
+			Tuple t = scan.next();
+			assertEquals(new IntField(value), t.getField(0));
+			assertEquals(hf.getId(), t.getRecordId().getPageId().getTableId());
+			found.add(Arrays.asList(value, ((IntField) t.getField(1)).getValue()));
+		}
+		scan.close();
+		assertFalse(holdsHeapLock());
+
+		List<List<Integer>> expected = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			if (t.get(1) == value) {
+				expected.add(t.subList(1, 3));
+			}
+		}
+		Comparator<List<Integer>> byInclude = Comparator.comparing(t -> t.get(1));
+		found.sort(byInclude);
+		expected.sort(byInclude);
+		assertEquals(expected, found);
+	}
+
+	/**
+	 * A query reading only fields a secondary index holds is answered by an
+	 * IndexOnlyScan, any other one by a SecondaryIndexScan
+	 */
+	@Test
+	public void plannerUsesCoveringIndex() throws Exception {
+		SecondaryIndex.create(tid, "idx", hf.getId(), new int[]{ 1 }, new int[]{ 2 }, indexFile);
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		int value = tuples.get(0).get(1);
+		OpIterator plan = plan("t.c2", value);
+		assertTrue(scanOf(plan) instanceof IndexOnlyScan);
+		int found = 0;
+		plan.open();
+		while (plan.hasNext()) {
+			plan.next();
+			found++;
+		}
+		plan.close();
+		assertEquals(tuples.stream().filter(t -> t.get(1) == value).count(), found);
+		assertFalse(holdsHeapLock());
+
+		assertTrue(scanOf(plan("t.c0", value)) instanceof SecondaryIndexScan);
+		assertTrue(scanOf(plan("null.*", value)) instanceof SecondaryIndexScan);
+	}
+
+	/**
+	 * The included fields of an index are saved in the catalog file
+	 */
+	@Test
+	public void catalogSavesIncludes() throws Exception {
+		File dir = Files.createTempDirectory("catalog").toFile();
+		dir.deleteOnExit();
+		File data = new File(dir, "t.dat");
+		data.deleteOnExit();
+		new File(dir, "idx.idx").deleteOnExit();
+		Files.copy(hf.getFile().toPath(), data.toPath());
+		File catalog = new File(dir, "catalog.txt");
+		catalog.deleteOnExit();
+		try (PrintWriter w = new PrintWriter(catalog)) {
+			w.println("t (c0 int, c1 int, c2 int)");
+		}
+
+		Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+		int tableid = Database.getCatalog().getTableId("t");
+		SecondaryIndex index = SecondaryIndex.create(tid, "idx", tableid, new int[]{ 1 }, new int[]{ 2, 0 },
+				new File(dir, "idx.idx"));
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getCatalog().saveIndex(index);
+
+		Database.getCatalog().clear();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+		tableid = Database.getCatalog().getTableId("t");
+		List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableid);
+		assertEquals(1, indexes.size());
+		assertArrayEquals(new int[]{ 1 }, indexes.get(0).getFields());
+		assertArrayEquals(new int[]{ 2, 0 }, indexes.get(0).getIncludes());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(IndexOnlyScanTest.class);
+	}
+}
@@ -4,6 +4,7 @@ import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
@@ -11,8 +12,12 @@ import simpledb.common.Utility;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapPageId;
 import simpledb.storage.PageId;
+import simpledb.transaction.LockStats;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.List;
+
 public class LockingTest extends TestUtil.CreateHeapFile {
   private PageId p0;
     private PageId p1;
@@ -193,6 +198,29 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getLockStats().
+   * A lock request that times out is counted against the contended page.
+   */
+  @Test public void contentionIsRecorded() throws Exception {
+    LockStats stats = bp.getLockStats();
+    long grants = stats.getGrants();
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    assertEquals(grants + 1, stats.getGrants());
+
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_ONLY);
+      fail("expected the lock request to time out");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(1, stats.getTimeouts());
+    List<LockStats.PageContention> top = stats.getTopContendedPages(p0.getTableId(), 3);
+    assertEquals(1, top.size());
+    assertEquals(p0, top.get(0).getPageId());
+    assertEquals(1, top.get(0).getWaits());
+  }
+
   /**
    * JUnit suite target
    */
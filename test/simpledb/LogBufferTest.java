@@ -0,0 +1,147 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.LogBuffer;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+public class LogBufferTest {
+  private static final int BUFFERS = 4;
+  private static final int SIZE = 16;
+
+  private File file;
+  private RandomAccessFile raf;
+  private FileChannel channel;
+  private LogBuffer buffer;
+
+  @Before public void setUp() throws Exception {
+    file = File.createTempFile("logbuffer", ".log");
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    buffer = new LogBuffer(BUFFERS, SIZE);
+    buffer.reset(8);
+  }
+
+  @After public void tearDown() throws Exception {
+    raf.close();
+    file.delete();
+  }
+
+  private static byte[] bytes(int len, int first) {
+    byte[] b = new byte[len];
+    for (int i = 0; i < len; i++) {
+      b[i] = (byte) (first + i);
+    }
+    return b;
+  }
+
+  private byte[] read(long position, int len) throws Exception {
+    byte[] b = new byte[len];
+    raf.seek(position);
+    raf.readFully(b);
+    return b;
+  }
+
+  private void flush() throws Exception {
+    LogBuffer.Batch batch = buffer.claim();
+    batch.writeTo(channel);
+    buffer.release(batch);
+  }
+
+  /**
+   * Appends get increasing LSNs, starting at the LSN the buffer was reset to.
+   */
+  @Test public void lsnsIncrease() {
+    assertEquals(8, buffer.append(bytes(5, 0), 0, 5));
+    assertEquals(13, buffer.append(bytes(3, 0), 0, 3));
+    assertEquals(16, buffer.getEndLsn());
+  }
+
+  /**
+   * Records spanning buffers are written out at their LSN.
+   */
+  @Test public void recordsSpanBuffers() throws Exception {
+    byte[] a = bytes(10, 1);
+    byte[] b = bytes(30, 50);
+    long la = buffer.append(a, 0, a.length);
+    long lb = buffer.append(b, 0, b.length);
+    flush();
+    assertArrayEquals(a, read(la, a.length));
+    assertArrayEquals(b, read(lb, b.length));
+    assertEquals(8 + 40, raf.length());
+  }
+
+  /**
+   * The ring is full until claimed buffers are released, and is reused after.
+   */
+  @Test public void buffersAreRecycled() throws Exception {
+    assertTrue(buffer.hasRoom(BUFFERS * SIZE));
+    assertFalse(buffer.hasRoom(BUFFERS * SIZE + 1));
+    buffer.append(bytes(BUFFERS * SIZE, 0), 0, BUFFERS * SIZE);
+    assertFalse(buffer.hasRoom(1));
+
+    LogBuffer.Batch batch = buffer.claim();
+    assertTrue(buffer.hasClaimed());
+    assertFalse(buffer.hasRoom(1));
+    batch.writeTo(channel);
+    buffer.release(batch);
+    assertFalse(buffer.hasClaimed());
+    assertTrue(buffer.hasRoom(BUFFERS * SIZE));
+
+    for (int i = 0; i < 10; i++) {
+      byte[] b = bytes(SIZE + 3, i);
+      long lsn = buffer.append(b, 0, b.length);
+      flush();
+      assertArrayEquals(b, read(lsn, b.length));
+    }
+  }
+
+  /**
+   * Appends made while a batch is written go out with the next batch.
+   */
+  @Test public void appendWhileClaimed() throws Exception {
+    byte[] a = bytes(20, 0);
+    byte[] b = bytes(20, 100);
+    long la = buffer.append(a, 0, a.length);
+    LogBuffer.Batch first = buffer.claim();
+    long lb = buffer.append(b, 0, b.length);
+    LogBuffer.Batch second = buffer.claim();
+    second.writeTo(channel);
+    first.writeTo(channel);
+    buffer.release(first);
+    buffer.release(second);
+    assertFalse(buffer.hasClaimed());
+    assertArrayEquals(a, read(la, a.length));
+    assertArrayEquals(b, read(lb, b.length));
+  }
+
+  /**
+   * A batch claimed before a reset is ignored when released.
+   */
+  @Test public void resetDropsClaims() {
+    buffer.append(bytes(20, 0), 0, 20);
+    LogBuffer.Batch batch = buffer.claim();
+    buffer.reset(100);
+    assertFalse(buffer.hasClaimed());
+    buffer.append(bytes(SIZE, 0), 0, SIZE);
+    buffer.release(batch);
+    assertEquals(100 + SIZE, buffer.getEndLsn());
+    assertTrue(buffer.hasRoom((BUFFERS - 1) * SIZE));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogBufferTest.class);
+  }
+}
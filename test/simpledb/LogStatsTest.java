@@ -0,0 +1,143 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.storage.LogStats;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class LogStatsTest extends SimpleDbTestBase {
+  private File file;
+  private LogFile log;
+  private HeapFile hf;
+  private byte[] image;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("logstats", ".log");
+    log = new LogFile(file);
+    log.setCheckpointInterval(0);
+    File data = File.createTempFile("logstats", ".dat");
+    data.deleteOnExit();
+    hf = Utility.createEmptyHeapFile(data.getAbsolutePath(), 2);
+    image = HeapPage.createEmptyPageData();
+  }
+
+  @After public void tearDown() {
+    File[] segments = file.getParentFile().listFiles((d, name) -> name.startsWith(file.getName() + "."));
+    for (File f : segments) {
+      f.delete();
+    }
+    file.delete();
+  }
+
+  /** Log the insert of a tuple into the first page of the table. */
+  private void insert(TransactionId tid, int value) throws Exception {
+    HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), image);
+    page.insertTuple(Utility.getHeapTuple(new int[]{value, value}));
+    log.logWrite(tid, image, page);
+    image = page.getPageData();
+  }
+
+  /**
+   * The records of each type and each transaction are counted, and the
+   * transaction live at the end of the log is the one recovery undoes.
+   */
+  @Test public void countsRecordsAndTransactions() throws Exception {
+    TransactionId live = new TransactionId();
+    log.logXactionBegin(live);
+
+    TransactionId committed = new TransactionId();
+    log.logXactionBegin(committed);
+    insert(committed, 1);
+    insert(committed, 2);
+    log.logCommit(committed);
+
+    TransactionId aborted = new TransactionId();
+    log.logXactionBegin(aborted);
+    insert(aborted, 3);
+    log.logAbort(aborted);
+
+    log.logCheckpoint();
+    insert(live, 4);
+    log.force();
+
+    LogStats stats = LogStats.scan(file);
+    assertEquals(3, stats.getRecordCount("BEGIN"));
+    assertEquals(4, stats.getRecordCount("UPDATE"));
+    assertEquals(1, stats.getRecordCount("CLR"));
+    assertEquals(1, stats.getRecordCount("COMMIT"));
+    assertEquals(1, stats.getRecordCount("ABORT"));
+    assertEquals(1, stats.getRecordCount("CHECKPOINT"));
+    assertEquals(3, stats.getTransactionCount());
+    assertEquals(1, stats.getLoserCount());
+    assertEquals(log.getEndLsn() - 8, stats.getLogBytes());
+    assertTrue(stats.getRedoRecords() >= 1);
+    assertTrue(stats.getEstimatedRecoveryMillis() > 0);
+    assertTrue(stats.report(2).contains("tid " + committed.getId()));
+  }
+
+  /**
+   * A log which updated the B+ tree of an index is replayed on copies of
+   * the table and of the index, and leaves the originals alone.
+   */
+  @Test public void replaysIndexUpdates() throws Exception {
+    File dir = Files.createTempDirectory("logstats").toFile();
+    File table = new File(dir, "t.dat");
+    File tree = new File(dir, "t_a.idx");
+    File catalog = new File(dir, "catalog.txt");
+    Files.write(table.toPath(), HeapPage.createEmptyPageData());
+    tree.createNewFile();
+    Files.write(catalog.toPath(), "t (a int, b int)\nindex t_a on t (a)\n".getBytes());
+    try {
+      Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+      int tableid = Database.getCatalog().getTableId("t");
+      BTreeFile bf = Database.getCatalog().getIndex("t_a").getFile();
+
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      HeapPage page = new HeapPage(new HeapPageId(tableid, 0), HeapPage.createEmptyPageData());
+      page.insertTuple(Utility.getHeapTuple(new int[]{1, 1}));
+      log.logWrite(tid, HeapPage.createEmptyPageData(), page);
+      BTreeLeafPage leaf = new BTreeLeafPage(new BTreePageId(bf.getId(), 1, BTreePageId.LEAF),
+          BTreeLeafPage.createEmptyPageData(), bf.keyFields());
+      leaf.insertTuple(Utility.getHeapTuple(new int[]{1, 0, 0}));
+      log.logWrite(tid, BTreeLeafPage.createEmptyPageData(), leaf);
+      log.logCommit(tid);
+
+      Database.getCatalog().clear();
+      SimpleDb.main(new String[]{"logreplay", file.getAbsolutePath(), catalog.getAbsolutePath(), "2"});
+      assertArrayEquals(HeapPage.createEmptyPageData(), Files.readAllBytes(table.toPath()));
+      assertEquals(0, tree.length());
+    } finally {
+      for (File f : dir.listFiles()) {
+        f.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogStatsTest.class);
+  }
+}
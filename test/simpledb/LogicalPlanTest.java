@@ -0,0 +1,138 @@
+package simpledb;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+    private static final int ROWS = 20000;
+
+    List<List<Integer>> tuples;
+    BTreeFile bf;
+    Map<String, TableStats> stats;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        BTreeFile random = BTreeUtility.createRandomBTreeFile(2, ROWS, ROWS, null, tuples, 0);
+        // the same file, with named fields the planner can refer to
+        bf = new BTreeFile(random.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(bf, "t");
+        stats = new HashMap<>();
+        stats.put("t", new TableStats(bf.getId(), 1000));
+    }
+
+    /** The scan of the table at the bottom of a plan and the operators above it. */
+    private List<OpIterator> path(OpIterator plan) {
+        List<OpIterator> path = new ArrayList<>();
+        path.add(plan);
+        while (plan instanceof Operator && ((Operator) plan).getChildren().length > 0) {
+            plan = ((Operator) plan).getChildren()[0];
+            path.add(plan);
+        }
+        return path;
+    }
+
+    private int count(OpIterator plan) throws Exception {
+        int n = 0;
+        plan.open();
+        while (plan.hasNext()) {
+            plan.next();
+            n++;
+        }
+        plan.close();
+        return n;
+    }
+
+    private long matching(int field, Predicate.Op op, int value) {
+        return tuples.stream()
+                .filter(t -> new IntField(t.get(field)).compare(op, new IntField(value)))
+                .count();
+    }
+
+    /**
+     * A selective filter on the key is answered by a BTreeScan, without a
+     * Filter on top, and returns the same tuples.
+     */
+    @Test public void selectiveKeyFilterUsesIndex() throws Exception {
+        int key = tuples.get(0).get(0);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.EQUALS, Integer.toString(key));
+        lp.addProjectField("t.c1", null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        List<OpIterator> path = path(plan);
+        Assert.assertTrue(path.get(path.size() - 1) instanceof BTreeScan);
+        for (OpIterator op : path) {
+            Assert.assertFalse(op instanceof Filter);
+        }
+        Assert.assertEquals(matching(0, Predicate.Op.EQUALS, key), count(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A filter on a field other than the key cannot use the index.
+     */
+    @Test public void nonKeyFilterScansTable() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.EQUALS, Integer.toString(tuples.get(0).get(1)));
+        lp.addProjectField("t.c0", null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        List<OpIterator> path = path(plan);
+        Assert.assertTrue(path.get(path.size() - 1) instanceof SeqScan);
+        Assert.assertTrue(path.get(path.size() - 2) instanceof Filter);
+        Assert.assertEquals(matching(1, Predicate.Op.EQUALS, tuples.get(0).get(1)), count(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Of several filters, the one on the key is answered by the index and the
+     * others are applied to its output.
+     */
+    @Test public void otherFiltersApplyToIndexScan() throws Exception {
+        int key = ROWS - ROWS / 50;
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(bf.getId(), "t");
+        lp.addFilter("t.c1", Predicate.Op.GREATER_THAN, Integer.toString(ROWS / 2));
+        lp.addFilter("t.c0", Predicate.Op.GREATER_THAN_OR_EQ, Integer.toString(key));
+        lp.addProjectField("t.c0", null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        List<OpIterator> path = path(plan);
+        Assert.assertTrue(path.get(path.size() - 1) instanceof BTreeScan);
+        Assert.assertTrue(path.get(path.size() - 2) instanceof Filter);
+        long expected = tuples.stream().filter(t -> t.get(0) >= key && t.get(1) > ROWS / 2).count();
+        Assert.assertEquals(expected, count(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
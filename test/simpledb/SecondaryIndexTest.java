@@ -0,0 +1,238 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+	private static final int ROWS = 10000;
+	private static final int MAX_VALUE = 10000;
+
+	private TransactionId tid;
+	private List<List<Integer>> tuples;
+	private HeapFile hf;
+	private File indexFile;
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+		tuples = new ArrayList<>();
+		hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples, "c");
+		indexFile = File.createTempFile("secondary", ".idx");
+		indexFile.deleteOnExit();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	private long matching(int field, Op op, int value) {
+		return tuples.stream()
+				.filter(t -> new IntField(t.get(field)).compare(op, new IntField(value)))
+				.count();
+	}
+
+	// the values of field 1 of the tuples returned by the scan, checking
+	// that each of them matches the predicate on field 1
+	private List<Integer> scan(SecondaryIndex index, IndexPredicate ipred) throws Exception {
+		SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t", ipred);
+		List<Integer> values = new ArrayList<>();
+		scan.open();
+		while (scan.hasNext()) {
+			Tuple t = scan.next();
+			if (ipred != null) {
+				assertTrue(t.getField(1).compare(ipred.getOp(), ipred.getField()));
+			}
+			values.add(((IntField) t.getField(1)).getValue());
+		}
+		scan.close();
+		return values;
+	}
+
+	/**
+	 * Unit test for SecondaryIndex.create() and SecondaryIndexScan
+	 */
+	@Test
+	public void createAndScan() throws Exception {
+		SecondaryIndex index = SecondaryIndex.create(tid, "idx", hf.getId(), 1, indexFile);
+		assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(hf.getId()));
+
+		// a scan without a predicate returns every tuple, in key order
+		List<Integer> all = scan(index, null);
+		assertEquals(ROWS, all.size());
+		List<Integer> sorted = new ArrayList<>(all);
+		Collections.sort(sorted);
+		assertEquals(sorted, all);
+
+		int value = tuples.get(0).get(1);
+		for (Op op : new Op[]{ Op.EQUALS, Op.LESS_THAN, Op.GREATER_THAN_OR_EQ }) {
+			assertEquals(matching(1, op, value), scan(index, new IndexPredicate(op, new IntField(value))).size());
+		}
+		assertTrue(scan(index, new IndexPredicate(Op.EQUALS, new IntField(MAX_VALUE))).isEmpty());
+	}
+
+	/**
+	 * Unit test for the maintenance of indexes by BufferPool.insertTuple()
+	 * and BufferPool.deleteTuple()
+	 */
+	@Test
+	public void bufferPoolMaintainsIndex() throws Exception {
+		SecondaryIndex index = SecondaryIndex.create(tid, "idx", hf.getId(), 1, indexFile);
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(MAX_VALUE));
+
+		Tuple t = new Tuple(hf.getTupleDesc());
+		t.setField(0, new IntField(-1));
+		t.setField(1, new IntField(MAX_VALUE));
+		Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+		assertEquals(Arrays.asList(MAX_VALUE, MAX_VALUE), scan(index, ipred));
+
+		// delete one of the two copies, as read through the index
+		SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t", ipred);
+		scan.open();
+		Database.getBufferPool().deleteTuple(tid, scan.next());
+		scan.close();
+		assertEquals(Collections.singletonList(MAX_VALUE), scan(index, ipred));
+		assertEquals(ROWS + 1, scan(index, null).size());
+	}
+
+	/**
+	 * The entry of a tuple is found by one descent of the tree, without
+	 * reading the entries of the other tuples with the same value
+	 */
+	@Test
+	public void deleteAmongDuplicates() throws Exception {
+		HeapFile dups = SystemTestUtil.createRandomHeapFile(2, ROWS, 2, null, new ArrayList<>(), "c");
+		SecondaryIndex index = SecondaryIndex.create(tid, "dups", dups.getId(), 1, indexFile);
+		Database.getBufferPool().transactionComplete(tid);
+
+		tid = new TransactionId();
+		SeqScan ss = new SeqScan(tid, dups.getId());
+		ss.open();
+		Tuple t = null;
+		for (int i = 0; i <= ROWS / 2; i++) {
+			t = ss.next();
+		}
+		ss.close();
+		Database.getBufferPool().deleteTuple(tid, t);
+
+		BTreeFile tree = index.getFile();
+		int lockedLeaves = 0;
+		for (int i = 1; i <= tree.numPages(); i++) {
+			if (Database.getBufferPool().holdsLock(tid, new BTreePageId(tree.getId(), i, BTreePageId.LEAF))) {
+				lockedLeaves++;
+			}
+		}
+		assertTrue(lockedLeaves <= 2);
+
+		IndexPredicate ipred = new IndexPredicate(Op.EQUALS, t.getField(1));
+		SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, "t", ipred);
+		scan.open();
+		int n = 0;
+		while (scan.hasNext()) {
+			assertNotEquals(t.getRecordId(), scan.next().getRecordId());
+			n++;
+		}
+		scan.close();
+		assertTrue(n > 0);
+		assertEquals(ROWS - 1, scan(index, null).size());
+	}
+
+	/**
+	 * Unit test for Catalog.saveIndex(), and the loading of saved indexes
+	 */
+	@Test
+	public void catalogSavesIndex() throws Exception {
+		File dir = Files.createTempDirectory("catalog").toFile();
+		dir.deleteOnExit();
+		File data = new File(dir, "t.dat");
+		data.deleteOnExit();
+		new File(dir, "idx.idx").deleteOnExit();
+		Files.copy(hf.getFile().toPath(), data.toPath());
+		File catalog = new File(dir, "catalog.txt");
+		catalog.deleteOnExit();
+		try (PrintWriter w = new PrintWriter(catalog)) {
+			w.println("t (c0 int, c1 int)");
+		}
+
+		Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+		int tableid = Database.getCatalog().getTableId("t");
+		SecondaryIndex index = SecondaryIndex.create(tid, "idx", tableid, 1, new File(dir, "idx.idx"));
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getCatalog().saveIndex(index);
+
+		Database.getCatalog().clear();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+		tableid = Database.getCatalog().getTableId("t");
+		List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableid);
+		assertEquals(1, indexes.size());
+		assertEquals("idx", indexes.get(0).getName());
+		assertEquals(1, indexes.get(0).getField());
+
+		tid = new TransactionId();
+		int value = tuples.get(0).get(1);
+		assertEquals(matching(1, Op.EQUALS, value),
+				scan(indexes.get(0), new IndexPredicate(Op.EQUALS, new IntField(value))).size());
+	}
+
+	/**
+	 * A selective filter on an indexed field of a heap table is answered by
+	 * a SecondaryIndexScan
+	 */
+	@Test
+	public void plannerUsesIndex() throws Exception {
+		SecondaryIndex.create(tid, "idx", hf.getId(), 1, indexFile);
+		Database.getBufferPool().transactionComplete(tid);
+		String name = Database.getCatalog().getTableName(hf.getId());
+		Map<String, TableStats> stats = new HashMap<>();
+		stats.put(name, new TableStats(hf.getId(), 1000));
+
+		tid = new TransactionId();
+		int value = tuples.get(0).get(1);
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(hf.getId(), "t");
+		lp.addFilter("t.c1", Op.EQUALS, Integer.toString(value));
+		lp.addProjectField("t.c0", null);
+		OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+		while (plan instanceof Operator) {
+			plan = ((Operator) plan).getChildren()[0];
+		}
+		assertTrue(plan instanceof SecondaryIndexScan);
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(SecondaryIndexTest.class);
+	}
+}
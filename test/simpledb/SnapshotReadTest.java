@@ -0,0 +1,117 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class SnapshotReadTest extends TestUtil.CreateHeapFile {
+  private PageId p0, p2;
+  private TransactionId tid1;
+
+  // just so we have a pointer shorter than Database.getBufferPool()
+  private BufferPool bp;
+
+  /**
+   * Set up initial resources for each unit test.
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+
+    // clear all state from the buffer pool
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+    // create a new empty HeapFile and populate it with three pages.
+    TransactionId tid = new TransactionId();
+    for (int i = 0; i < 1025; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(3, empty.numPages());
+
+    this.p0 = new HeapPageId(empty.getId(), 0);
+    this.p2 = new HeapPageId(empty.getId(), 2);
+    this.tid1 = new TransactionId();
+
+    bp.getPage(tid, p0, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.getPage(tid, p2, Permissions.READ_WRITE).markDirty(true, tid);
+    bp.flushAllPages();
+    bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+  }
+
+  /** Insert a tuple into the page on behalf of tid1, without committing. */
+  private HeapPage dirty(PageId pid) throws Exception {
+    HeapPage p = (HeapPage) bp.getPage(tid1, pid, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid1);
+    return p;
+  }
+
+  /**
+   * A snapshot reader is not blocked by a page write lock and does not see
+   * the uncommitted changes made under it.
+   */
+  @Test public void readUnderWriteLock() throws Exception {
+    HeapPage written = dirty(p2);
+
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    HeapPage seen = (HeapPage) bp.getPage(reader, p2, Permissions.READ_ONLY);
+    assertNotSame(written, seen);
+    assertEquals(written.getNumEmptySlots() + 1, seen.getNumEmptySlots());
+    bp.transactionComplete(reader, true);
+
+    // the reader took no lock, so the writer can still commit
+    bp.transactionComplete(tid1, true);
+  }
+
+  /**
+   * A snapshot keeps seeing the version of the page as of its start after a
+   * writer commits, while a snapshot started after the commit sees the new
+   * version. Versions are dropped once no snapshot needs them.
+   */
+  @Test public void commitAfterSnapshot() throws Exception {
+    int before = ((HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY)).getNumEmptySlots();
+
+    TransactionId oldReader = new TransactionId();
+    bp.beginSnapshot(oldReader);
+    dirty(p2);
+    bp.transactionComplete(tid1, true);
+
+    TransactionId newReader = new TransactionId();
+    bp.beginSnapshot(newReader);
+    assertEquals(before,
+        ((HeapPage) bp.getPage(oldReader, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    assertEquals(before - 1,
+        ((HeapPage) bp.getPage(newReader, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+
+    bp.transactionComplete(oldReader, true);
+    assertEquals(before - 1,
+        ((HeapPage) bp.getPage(newReader, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(newReader, true);
+    assertEquals(0, bp.numPageVersions());
+  }
+
+  /**
+   * Snapshot transactions are read-only.
+   */
+  @Test(expected = DbException.class) public void writeFromSnapshot() throws Exception {
+    TransactionId reader = new TransactionId();
+    bp.beginSnapshot(reader);
+    bp.getPage(reader, p0, Permissions.READ_WRITE);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotReadTest.class);
+  }
+
+}
@@ -11,6 +11,8 @@ import org.junit.Assert;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Predicate;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.Field;
 import simpledb.storage.HeapFile;
@@ -160,4 +162,33 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify the cost estimates of index scans of a BTreeFile: a point lookup
+	 * costs about a descent of the tree, far less than a scan, and ranges cost
+	 * more as they cover more leaves. Fields other than the key have no index.
+	 */
+	@Test public void estimateIndexScanCostTest() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 20000, 20000, null, null, 0);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(bf, name);
+		TableStats s = new TableStats(bf.getId(), IO_COST);
+
+		double scan = s.estimateScanCost();
+		double lookup = s.estimateIndexScanCost(0, Predicate.Op.EQUALS, new IntField(10000));
+		Assert.assertTrue(lookup >= IO_COST);
+		Assert.assertTrue(lookup <= 4 * IO_COST);
+		Assert.assertTrue(lookup * 10 < scan);
+
+		double narrow = s.estimateIndexScanCost(0, Predicate.Op.GREATER_THAN, new IntField(18000));
+		double wide = s.estimateIndexScanCost(0, Predicate.Op.GREATER_THAN, new IntField(2000));
+		Assert.assertTrue(lookup <= narrow);
+		Assert.assertTrue(narrow < wide);
+		Assert.assertTrue(wide <= scan + 4 * IO_COST);
+
+		Assert.assertEquals(Double.POSITIVE_INFINITY,
+				s.estimateIndexScanCost(1, Predicate.Op.EQUALS, new IntField(10000)), 0);
+		Assert.assertEquals(Double.POSITIVE_INFINITY,
+				s.estimateIndexScanCost(0, Predicate.Op.NOT_EQUALS, new IntField(10000)), 0);
+	}
 }
@@ -0,0 +1,131 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeEntry;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times point lookups in a full internal page and a full leaf page, walking
+ * the entries and tuples in order as the descent used to and binary
+ * searching the key slots. Both must find the same child and tuple; the
+ * timings and their ratio are printed, so more lookups can be measured by
+ * raising the constants below.
+ */
+public class BTreeLookupBenchmarkTest extends SimpleDbTestBase {
+    private static final int LOOKUPS = 100000;
+    private static final int ROUNDS = 3;
+
+    // the child to search for f in, found by walking the entries in order
+    private static BTreePageId linearFindChild(BTreeInternalPage page, IntField f) {
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry e = null;
+        while (it.hasNext()) {
+            e = it.next();
+            if (f.compare(Op.LESS_THAN_OR_EQ, e.getKey()))
+                return e.getLeftChild();
+        }
+        return e == null ? null : e.getRightChild();
+    }
+
+    // the first tuple whose key is at least f, found by walking the tuples in order
+    private static Tuple linearFindTuple(BTreeLeafPage page, IntField f) {
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getField(0).compare(Op.GREATER_THAN_OR_EQ, f))
+                return t;
+        }
+        return null;
+    }
+
+    private static Tuple binaryFindTuple(BTreeLeafPage page, IntField f) {
+        Iterator<Tuple> it = page.iterator(Op.GREATER_THAN_OR_EQ, f);
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /** Run the lookups of the keys, and return the time taken in ns; found counts the hits. */
+    private static long time(Lookup lookup, IntField[] keys, int[] found) {
+        long start = System.nanoTime();
+        for (IntField key : keys) {
+            if (lookup.find(key) != null)
+                found[0]++;
+        }
+        return System.nanoTime() - start;
+    }
+
+    private interface Lookup {
+        Object find(IntField key);
+    }
+
+    private static void report(String what, int entries, long linear, long binary) {
+        System.out.println(LOOKUPS + " lookups in " + what + " of " + entries + " keys: "
+                + linear / 1000000 + " ms walking them, " + binary / 1000000 + " ms binary searching, "
+                + String.format("%.1fx", (double) linear / Math.max(1, binary)));
+    }
+
+    @Test public void binarySearchMatchesLinearSearch() throws Exception {
+        File f = File.createTempFile("lookupbench", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+
+        BTreeInternalPage internal = new BTreeInternalPage(new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL),
+                BTreeInternalPage.createEmptyPageData(), 0);
+        int entries = 0;
+        while (internal.getNumEmptySlots() > 0) {
+            internal.insertEntry(new BTreeEntry(new IntField(2 * entries),
+                    new BTreePageId(bf.getId(), entries + 2, BTreePageId.LEAF),
+                    new BTreePageId(bf.getId(), entries + 3, BTreePageId.LEAF)));
+            entries++;
+        }
+        BTreeLeafPage leaf = new BTreeLeafPage(new BTreePageId(bf.getId(), 2, BTreePageId.LEAF),
+                BTreeLeafPage.createEmptyPageData(), 0);
+        int tuples = 0;
+        while (leaf.getNumEmptySlots() > 0) {
+            leaf.insertTuple(BTreeUtility.getBTreeTuple(new int[]{2 * tuples, tuples}));
+            tuples++;
+        }
+
+        // keys in and between the keys of the pages, and past their ends
+        Random rand = new Random(0);
+        IntField[] keys = new IntField[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            keys[i] = new IntField(rand.nextInt(2 * Math.max(entries, tuples) + 2) - 1);
+        }
+        for (int i = 0; i < LOOKUPS; i += 97) {
+            assertEquals(linearFindChild(internal, keys[i]), internal.findChild(keys[i]));
+            assertEquals(linearFindTuple(leaf, keys[i]), binaryFindTuple(leaf, keys[i]));
+        }
+
+        // the last round is reported, once the JIT has compiled both searches
+        long linearChild = 0, binaryChild = 0, linearTuple = 0, binaryTuple = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            int[] linearFound = new int[1], binaryFound = new int[1];
+            linearChild = time(key -> linearFindChild(internal, key), keys, linearFound);
+            binaryChild = time(internal::findChild, keys, binaryFound);
+            linearTuple = time(key -> linearFindTuple(leaf, key), keys, linearFound);
+            binaryTuple = time(key -> binaryFindTuple(leaf, key), keys, binaryFound);
+            assertEquals(linearFound[0], binaryFound[0]);
+        }
+        report("an internal page", entries, linearChild, binaryChild);
+        report("a leaf page", tuples, linearTuple, binaryTuple);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BTreeLookupBenchmarkTest.class);
+    }
+}
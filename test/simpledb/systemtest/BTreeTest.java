@@ -2,6 +2,7 @@ package simpledb.systemtest;
 
 import simpledb.common.Database;
 import simpledb.execution.IndexPredicate;
+import simpledb.index.BTreeChecker;
 import simpledb.index.BTreeFile;
 import simpledb.index.BTreeUtility;
 import simpledb.storage.*;
@@ -9,10 +10,12 @@ import simpledb.storage.*;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Test;
@@ -217,6 +220,59 @@ public class BTreeTest extends SimpleDbTestBase {
 		
     }
 
+	/**
+	 * Run inserts, each in a transaction of its own, from the specified number of threads,
+	 * and return the number of inserts committed per second.
+	 */
+	private double insertRate(BTreeFile bf, int threads, int inserts,
+			BlockingQueue<List<Integer>> insertedTuples) throws Exception {
+		AtomicInteger committed = new AtomicInteger();
+		List<Thread> workers = new ArrayList<>();
+		for(int i = 0; i < threads; i++) {
+			workers.add(new Thread(() -> {
+				for(int j = 0; j < inserts / threads; j++) {
+					BTreeInserter bi = new BTreeInserter(bf, getRandomTupleData(), insertedTuples);
+					bi.run();
+					if(bi.succeeded()) {
+						committed.incrementAndGet();
+					}
+				}
+			}));
+		}
+		long start = System.nanoTime();
+		for(Thread worker : workers) {
+			worker.start();
+		}
+		for(Thread worker : workers) {
+			worker.join();
+		}
+		return committed.get() * 1e9 / (System.nanoTime() - start);
+	}
+
+	/**
+	 * Test that more threads commit more inserts per second. Leaf splits do not keep the
+	 * internal pages they change locked until the inserting transaction commits, and do
+	 * not wait for each other unless they change the same pages, so the transactions
+	 * overlap their commits.
+	 */
+	@Test public void testInsertThroughputScales() throws Exception {
+		BufferPool.setPageSize(1024);
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, tuples, 0);
+		Database.resetBufferPool(500);
+		BlockingQueue<List<Integer>> insertedTuples = new ArrayBlockingQueue<>(100000);
+		insertedTuples.addAll(tuples);
+
+		insertRate(bf, 1, 100, insertedTuples); // warm up
+		double one = insertRate(bf, 1, 400, insertedTuples);
+		double many = insertRate(bf, 8, 400, insertedTuples);
+		System.out.println(String.format("inserts per second: %.0f with 1 thread, %.0f with 8 threads", one, many));
+		assertTrue(many > one);
+
+		// the splits left a valid tree
+		BTreeChecker.checkRep(bf, new TransactionId(), new HashMap<>(), true);
+	}
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeTest.class);
@@ -435,6 +435,173 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestCrashAfterRecovery()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts but does not commit
+        // checkpoint
+        // T2 inserts and commits
+        // crash, then crash again right after recovery
+        // recovery must not undo T1 twice nor lose T2
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        Database.getLogFile().logCheckpoint();
+
+        doInsert(hf2, 31, 32);
+
+        crash();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 30, false);
+        look(hf2, t, 31, true);
+        look(hf2, t, 32, true);
+        t.commit();
+
+        // a transaction committed after recovery survives the next one
+        doInsert(hf1, 33, -1);
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 30, false);
+        look(hf1, t, 33, true);
+        t.commit();
+    }
+
+    @Test public void TestRollbackAcrossOtherTransactions()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, many transactions log updates and commit, with a
+        // checkpoint in between, T1 inserts again and aborts. T3 does the
+        // same but is still open at a crash. both are undone by following
+        // their own records backwards
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 40);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        for (int i = 0; i < 10; i++) {
+            doInsert(hf2, 100 + i, -1);
+        }
+        Database.getLogFile().logCheckpoint();
+        insertRow(hf1, t1, 41);
+        abort(t1);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf1, t3, 60);
+        Database.getBufferPool().flushAllPages();
+        for (int i = 10; i < 20; i++) {
+            doInsert(hf2, 100 + i, -1);
+        }
+        Database.getLogFile().logCheckpoint();
+        insertRow(hf1, t3, 61);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 40, false);
+        look(hf1, t, 41, false);
+        look(hf1, t, 60, false);
+        look(hf1, t, 61, false);
+        for (int i = 0; i < 20; i++) {
+            look(hf2, t, 100 + i, true);
+        }
+        t.commit();
+    }
+
+    @Test public void TestTornCommitRecord()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts and commits, but the crash garbles the end of its
+        // COMMIT record: its checksum fails, so T1 did not commit
+
+        doInsert(hf1, 3, 4);
+        File[] segments = new File(".").listFiles((d, name) -> name.startsWith("log."));
+        Arrays.sort(segments);
+        try (RandomAccessFile raf = new RandomAccessFile(segments[segments.length - 1], "rw")) {
+            raf.seek(raf.length() - 3);
+            int b = raf.read();
+            raf.seek(raf.length() - 3);
+            raf.write(b ^ 0xff);
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf1, t, 4, false);
+        t.commit();
+    }
+
+    @Test public void TestCompressedUpdates()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getLogFile().setCompressUpdates(true);
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts many rows, so its UPDATE record is compressed, and
+        // aborts; T2 does the same and commits, T3 is open at a crash
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 100; i++) {
+            insertRow(hf1, t1, 200 + i);
+        }
+        abort(t1);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < 100; i++) {
+            insertRow(hf1, t2, 300 + i);
+        }
+        t2.commit();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        for (int i = 0; i < 100; i++) {
+            insertRow(hf1, t3, 400 + i);
+        }
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        for (int i = 0; i < 100; i++) {
+            look(hf1, t, 200 + i, false);
+            look(hf1, t, 300 + i, true);
+            look(hf1, t, 400 + i, false);
+        }
+        t.commit();
+    }
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
@@ -0,0 +1,50 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that UPDATE records log the bytes a transaction changed rather
+ * than whole page images.
+ */
+public class LogVolumeTest extends SimpleDbTestBase {
+    private static final int TRANSACTIONS = 20;
+
+    @Test public void smallInsertsLogFewBytes() throws Exception {
+        File file = File.createTempFile("logvolume", ".dat");
+        file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+
+        // the first commit truncates the log
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(-1, 2));
+        t.commit();
+        long start = Database.getLogFile().getEndLsn();
+
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+        long perTransaction = (Database.getLogFile().getEndLsn() - start) / TRANSACTIONS;
+        // BEGIN, UPDATE and COMMIT records; two page images alone would be 2 * page size
+        assertTrue("logged " + perTransaction + " bytes per insert",
+                perTransaction < BufferPool.getPageSize() / 16);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LogVolumeTest.class);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Generates a log of committed updates whose pages never reached disk, as
+ * after a crash, and times recovery of the same log with a single redo
+ * thread and with a pool of them. Both must leave the same pages on disk;
+ * the timings are printed, so larger logs can be measured by raising the
+ * constants below.
+ */
+public class RecoveryBenchmarkTest extends SimpleDbTestBase {
+    private static final int PAGES = 64;
+    private static final int TRANSACTIONS = 200;
+    private static final int UPDATES_PER_TRANSACTION = 5;
+
+    private File data;
+    private File logFile;
+
+    /** Log tuple inserts into random pages and return the page images they leave. */
+    private byte[][] generateLog(HeapFile hf) throws Exception {
+        byte[][] images = new byte[PAGES][];
+        for (int p = 0; p < PAGES; p++) {
+            images[p] = HeapPage.createEmptyPageData();
+        }
+        Random rand = new Random(0);
+        LogFile log = new LogFile(logFile);
+        log.setCheckpointInterval(0);
+        for (int t = 0; t < TRANSACTIONS; t++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int u = 0; u < UPDATES_PER_TRANSACTION; u++) {
+                int p = rand.nextInt(PAGES);
+                HeapPage page = new HeapPage(new HeapPageId(hf.getId(), p), images[p]);
+                page.insertTuple(Utility.getHeapTuple(new int[]{t, u}));
+                log.logWrite(tid, images[p], page);
+                images[p] = page.getPageData();
+            }
+            log.logCommit(tid);
+        }
+        return images;
+    }
+
+    /** Reset the data file to empty pages, recover, and return the time taken in ms. */
+    private long recover(int threads) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(data, "rw")) {
+            raf.setLength(0);
+            raf.setLength((long) PAGES * BufferPool.getPageSize());
+        }
+        LogFile log = new LogFile(logFile);
+        log.setRedoThreads(threads);
+        long start = System.nanoTime();
+        log.recover();
+        // no shutdown: its checkpoint would leave nothing to redo for the next run
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private void assertPages(HeapFile hf, byte[][] images) {
+        for (int p = 0; p < PAGES; p++) {
+            byte[] onDisk = hf.readPage(new HeapPageId(hf.getId(), p)).getPageData();
+            assertTrue("page " + p, Arrays.equals(images[p], onDisk));
+        }
+    }
+
+    @Test public void parallelRedoMatchesSerialRedo() throws Exception {
+        data = File.createTempFile("recoverybench", ".dat");
+        data.deleteOnExit();
+        logFile = File.createTempFile("recoverybench", ".log");
+        HeapFile hf = Utility.openHeapFile(2, data);
+        try {
+            byte[][] images = generateLog(hf);
+
+            long serial = recover(1);
+            assertPages(hf, images);
+
+            // each page is written once, synchronously, when redo ends, so a few
+            // threads overlap those writes even on one core
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+            long parallel = recover(threads);
+            assertPages(hf, images);
+
+            System.out.println("recovery of " + TRANSACTIONS * UPDATES_PER_TRANSACTION + " updates: "
+                    + serial + " ms with 1 redo thread, " + parallel + " ms with " + threads);
+        } finally {
+            File[] segments = logFile.getParentFile().listFiles(
+                    (d, name) -> name.startsWith(logFile.getName() + "."));
+            for (File f : segments) {
+                f.delete();
+            }
+            logFile.delete();
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecoveryBenchmarkTest.class);
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs one transaction per session, each session on its own virtual thread,
+ * against a handful of HeapFile tables: writers insert under page locks and
+ * force the log on commit, most readers scan under page locks too, and the
+ * others scan snapshots. Locks, page reads and log forces must block without
+ * pinning carrier threads for this to be limited by the disk rather than by
+ * the size of the carrier pool.
+ * <p>
+ * The test is skipped on JVMs without virtual threads.
+ */
+public class VirtualThreadLoadTest extends SimpleDbTestBase {
+    private static final int SESSIONS = 10000;
+    private static final int TABLES = 10;
+    private static final int ROWS = 20;
+    /**
+     * of every KINDS sessions on a table, INSERTS insert a tuple, LOCKED_SCANS
+     * scan the table under page locks, and the others scan it from a snapshot
+     */
+    private static final int KINDS = 5;
+    private static final int INSERTS = 2;
+    private static final int LOCKED_SCANS = 2;
+    private static final int TIMEOUT_MINUTES = 10;
+
+    /** @return an executor running each task on a virtual thread of its own, or null */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static int count(TransactionId tid, HeapFile f) throws Exception {
+        SeqScan ss = new SeqScan(tid, f.getId(), "");
+        ss.open();
+        int n = 0;
+        while (ss.hasNext()) {
+            ss.next();
+            n++;
+        }
+        ss.close();
+        return n;
+    }
+
+    @Test public void manyConcurrentTransactions() throws Exception {
+        ExecutorService sessions = newSessionExecutor();
+        Assume.assumeTrue("this JVM has no virtual threads", sessions != null);
+
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < TABLES; i++) {
+            tables.add(SystemTestUtil.createRandomHeapFile(2, ROWS, null, null));
+        }
+
+        AtomicInteger aborts = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < SESSIONS; i++) {
+            final int session = i;
+            results.add(sessions.submit(() -> {
+                HeapFile f = tables.get(session % TABLES);
+                int kind = session / TABLES % KINDS;
+                boolean insert = kind < INSERTS;
+                boolean snapshot = kind >= INSERTS + LOCKED_SCANS;
+                while (true) {
+                    Transaction t = new Transaction(snapshot);
+                    t.start();
+                    try {
+                        if (insert) {
+                            Database.getBufferPool().insertTuple(t.getId(), f.getId(),
+                                    Utility.getHeapTuple(session, 2));
+                        } else {
+                            assertTrue(count(t.getId(), f) >= ROWS);
+                        }
+                        t.commit();
+                        return null;
+                    } catch (TransactionAbortedException e) {
+                        aborts.incrementAndGet();
+                        t.abort();
+                    }
+                }
+            }));
+        }
+        sessions.shutdown();
+        assertTrue("Timed out waiting for the sessions to complete",
+                sessions.awaitTermination(TIMEOUT_MINUTES, TimeUnit.MINUTES));
+        for (Future<?> result : results) {
+            result.get(); // rethrow any failure of a session
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(SESSIONS + " transactions in " + elapsed + " ms, "
+                + aborts.get() + " aborted and retried");
+
+        // every insert committed exactly once
+        Transaction t = new Transaction();
+        t.start();
+        for (HeapFile f : tables) {
+            assertEquals(ROWS + SESSIONS / TABLES / KINDS * INSERTS, count(t.getId(), f));
+        }
+        t.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(VirtualThreadLoadTest.class);
+    }
+}